@@ -2,10 +2,22 @@ package com.media.cache;
 
 import android.content.Context;
 
+import com.media.cache.eviction.EvictionPolicy;
+import com.media.cache.eviction.LruEvictionPolicy;
+
 import java.io.File;
 
 public class LocalProxyConfig {
 
+    private static final int DEFAULT_NIO_EVENT_LOOP_COUNT = 2;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    private static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000L;
+    private static final int DEFAULT_DOWNLOAD_THREAD_COUNT = 3;
+    private static final long DEFAULT_READAHEAD_DURATION = 60 * 1000L;
+    private static final long DEFAULT_CACHE_HEAD_SIZE = 4 * 1024 * 1024L;
+    private static final int DEFAULT_LIVE_CACHE_TS_COUNT = 10;
+    private static final int DEFAULT_SERVER_IDLE_TIMEOUT = 30 * 1000;
+
     private boolean mIsDebug = false;
     private Context mContext;
     private File mCacheRoot;
@@ -20,6 +32,16 @@ public class LocalProxyConfig {
     private long mMaxBufferSize;
     private long mMinBufferSize;
     private boolean mIgnoreAllCertErrors;
+    private boolean mNioServerEnable;
+    private int mNioEventLoopCount = DEFAULT_NIO_EVENT_LOOP_COUNT;
+    private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long mKeepAliveDuration = DEFAULT_KEEP_ALIVE_DURATION;
+    private int mDownloadThreadCount = DEFAULT_DOWNLOAD_THREAD_COUNT;
+    private long mReadaheadDuration = DEFAULT_READAHEAD_DURATION;
+    private EvictionPolicy mEvictionPolicy = new LruEvictionPolicy();
+    private long mCacheHeadSize = DEFAULT_CACHE_HEAD_SIZE;
+    private int mLiveCacheTsCount = DEFAULT_LIVE_CACHE_TS_COUNT;
+    private int mServerIdleTimeOut = DEFAULT_SERVER_IDLE_TIMEOUT;
 
     public LocalProxyConfig(Context context, File cacheRoot,
                                  long cacheSize, int readTimeOut,
@@ -96,4 +118,91 @@ public class LocalProxyConfig {
     public boolean shouldIgnoreAllCertErrors() {
         return mIgnoreAllCertErrors;
     }
+
+    //true: selector based proxy server; false: blocking thread-per-socket server.
+    public void setNioServerEnable(boolean enable) {
+        mNioServerEnable = enable;
+    }
+
+    public boolean isNioServerEnable() { return mNioServerEnable; }
+
+    public void setNioEventLoopCount(int count) {
+        if (count > 0) {
+            mNioEventLoopCount = count;
+        }
+    }
+
+    public int getNioEventLoopCount() { return mNioEventLoopCount; }
+
+    //Upstream connections opened to one host at the same time, also the idle keep-alive connections kept per host.
+    public void setMaxConnectionsPerHost(int count) {
+        if (count > 0) {
+            mMaxConnectionsPerHost = count;
+        }
+    }
+
+    public int getMaxConnectionsPerHost() { return mMaxConnectionsPerHost; }
+
+    //Idle keep-alive upstream connections are evicted after the duration.
+    public void setKeepAliveDuration(long duration) {
+        if (duration > 0) {
+            mKeepAliveDuration = duration;
+        }
+    }
+
+    public long getKeepAliveDuration() { return mKeepAliveDuration; }
+
+    //Worker threads of the download scheduler shared by all the videos.
+    public void setDownloadThreadCount(int count) {
+        if (count > 0) {
+            mDownloadThreadCount = count;
+        }
+    }
+
+    public int getDownloadThreadCount() { return mDownloadThreadCount; }
+
+    //Duration of the hls segments downloaded ahead of the playing segment.
+    public void setReadaheadDuration(long duration) {
+        if (duration > 0) {
+            mReadaheadDuration = duration;
+        }
+    }
+
+    public long getReadaheadDuration() { return mReadaheadDuration; }
+
+    //Which cached video is deleted first when the cache is full.
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        if (policy != null) {
+            mEvictionPolicy = policy;
+        }
+    }
+
+    public EvictionPolicy getEvictionPolicy() { return mEvictionPolicy; }
+
+    //Bytes at the head of a video which are kept when its tail is evicted, 0 evicts whole videos only.
+    public void setCacheHeadSize(long size) {
+        if (size >= 0) {
+            mCacheHeadSize = size;
+        }
+    }
+
+    public long getCacheHeadSize() { return mCacheHeadSize; }
+
+    //The latest segments of a live hls video kept on disk, the older ones are deleted.
+    public void setLiveCacheTsCount(int count) {
+        if (count > 0) {
+            mLiveCacheTsCount = count;
+        }
+    }
+
+    public int getLiveCacheTsCount() { return mLiveCacheTsCount; }
+
+    //A connection of the player is closed if it sends no request or does not read the response for it, 0 never.
+    public void setServerIdleTimeOut(int timeOut) {
+        if (timeOut >= 0) {
+            mServerIdleTimeOut = timeOut;
+        }
+    }
+
+    public int getServerIdleTimeOut() { return mServerIdleTimeOut; }
 }
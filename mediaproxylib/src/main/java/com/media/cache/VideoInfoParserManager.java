@@ -4,13 +4,16 @@ import android.net.Uri;
 import android.text.TextUtils;
 
 import com.media.cache.hls.M3U8;
+import com.media.cache.hls.M3U8Ts;
 import com.media.cache.hls.M3U8Utils;
+import com.media.cache.listener.IM3U8ParseListener;
 import com.media.cache.listener.IVideoInfoCallback;
 import com.media.cache.listener.IVideoInfoParseCallback;
 import com.media.cache.utils.HttpUtils;
 import com.media.cache.utils.LocalProxyThreadUtils;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
 
 import java.io.File;
 import java.util.HashMap;
@@ -55,10 +58,13 @@ public class VideoInfoParserManager {
             }
 
             String finalUrl = info.getVideoUrl();
+            //One HEAD probe gives both the final location and the mime type.
+            UpstreamClient.Metadata metadata = null;
 
             //Redirect is enabled, send redirect request to get final location.
             if (mConfig.isRedirect() && shouldRedirect) {
-                finalUrl = HttpUtils.getFinalUrl(mConfig, info.getVideoUrl(), headers);
+                metadata = UpstreamClient.getInstance(mConfig).probe(info.getVideoUrl(), headers);
+                finalUrl = metadata.finalUrl;
                 if (TextUtils.isEmpty(finalUrl)) {
                     mCallback.onBaseVideoInfoFailed(new Throwable("FinalUrl is null."));
                     return;
@@ -103,7 +109,10 @@ public class VideoInfoParserManager {
                 mimeType = contentType;
             } else {
                 //Add more video mimeType.
-                mimeType = HttpUtils.getMimeType(mConfig, finalUrl, headers);
+                if (metadata == null) {
+                    metadata = UpstreamClient.getInstance(mConfig).probe(finalUrl, headers);
+                }
+                mimeType = metadata.contentType;
             }
             LogUtils.i("parseVideoInfo mimeType="+mimeType);
             if (mimeType != null) {
@@ -145,29 +154,77 @@ public class VideoInfoParserManager {
     }
 
     private void parseM3U8Info(VideoCacheInfo info, HashMap<String, String> headers) {
+        M3U8StreamingListener listener = new M3U8StreamingListener(info, mCallback);
         try {
-            M3U8 m3u8 = M3U8Utils.parseM3U8Info(info.getVideoUrl(), false, null);
-            //HLS LIVE video cannot be proxy cached.
+            M3U8 m3u8 = M3U8Utils.parseM3U8Info(info.getVideoUrl(), false, null, listener);
+            if (listener.mStarted) {
+                M3U8Utils.createRemoteM3U8(new File(info.getSaveDir()), m3u8);
+                return;
+            }
+            prepareM3U8Dir(info);
             if (m3u8.hasEndList()) {
-                String saveName = LocalProxyUtils.computeMD5(info.getVideoUrl());
-                File dir = new File(mConfig.getCacheRoot(), saveName);
-                if (!dir.exists()) {
-                    dir.mkdir();
-                }
-                M3U8Utils.createRemoteM3U8(dir, m3u8);
-
-                info.setSaveDir(dir.getAbsolutePath());
-                info.setVideoType(Video.Type.HLS_TYPE);
+                M3U8Utils.createRemoteM3U8(new File(info.getSaveDir()), m3u8);
                 mCallback.onM3U8InfoSuccess(info, m3u8);
             } else {
+                //The live playlist is reloaded by its task, nothing of it is kept for the next start.
                 info.setVideoType(Video.Type.HLS_LIVE_TYPE);
-                mCallback.onLiveM3U8Callback(info);
+                mCallback.onLiveM3U8Callback(info, m3u8);
             }
         } catch (Exception e) {
+            if (listener.mStarted) {
+                //The download task is told by the M3U8.
+                LogUtils.w("parseM3U8Info failed after the download started, exception=" + e);
+                return;
+            }
             mCallback.onM3U8InfoFailed(e);
         }
     }
 
+    private void prepareM3U8Dir(VideoCacheInfo info) {
+        String saveName = LocalProxyUtils.computeMD5(info.getVideoUrl());
+        File dir = new File(mConfig.getCacheRoot(), saveName);
+        if (!dir.exists()) {
+            dir.mkdir();
+        }
+        info.setSaveDir(dir.getAbsolutePath());
+        info.setVideoType(Video.Type.HLS_TYPE);
+    }
+
+    /**
+     * A VOD playlist is known to be complete before its last line is read, its download task is started
+     * with the first ts, the rest of the ts are appended to the task's M3U8 while the parsing goes on.
+     */
+    private class M3U8StreamingListener implements IM3U8ParseListener {
+
+        private final VideoCacheInfo mInfo;
+        private final IVideoInfoCallback mInfoCallback;
+        private boolean mStarted;
+
+        M3U8StreamingListener(VideoCacheInfo info, IVideoInfoCallback callback) {
+            mInfo = info;
+            mInfoCallback = callback;
+        }
+
+        @Override
+        public void onTsParsed(M3U8 m3u8, M3U8Ts ts) {
+            if (mStarted || !M3U8Utils.PLAYLIST_TYPE_VOD.equals(m3u8.getPlaylistType())) {
+                return;
+            }
+            mStarted = true;
+            LogUtils.i("parseM3U8Info start download before the playlist is parsed, url=" + mInfo.getVideoUrl());
+            prepareM3U8Dir(mInfo);
+            mInfoCallback.onM3U8InfoSuccess(mInfo, m3u8);
+        }
+
+        @Override
+        public void onM3U8Parsed(M3U8 m3u8) {
+        }
+
+        @Override
+        public void onM3U8ParseFailed(M3U8 m3u8, Throwable error) {
+        }
+    }
+
     public void parseM3U8File(VideoCacheInfo info, IVideoInfoParseCallback callback) {
         File remoteM3U8File = new File(info.getSaveDir(), "remote.m3u8");
         if (!remoteM3U8File.exists()) {
@@ -0,0 +1,430 @@
+package com.media.cache.download;
+
+import com.media.cache.LocalProxyConfig;
+import com.media.cache.Video;
+import com.media.cache.VideoCacheInfo;
+import com.media.cache.eviction.EvictionPolicy;
+import com.media.cache.utils.LocalProxyThreadUtils;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide index of the cached videos, one entry per video directory of the cache root.
+ *
+ * The directories are scanned once when the index is created, after that the sizes are updated
+ * by the bytes the download tasks and the proxy write, so the cache is trimmed without listing
+ * or stat-ing the cache root again. Which video is evicted is decided by the {@link EvictionPolicy}
+ * of the config.
+ *
+ * A video chosen by the policy first only loses its tail, the head of the cache head size is kept
+ * for an instant restart. The videos are deleted as a whole only if the cache is still full after
+ * all the tails are evicted.
+ */
+public class CacheIndex {
+
+    //The requests of one playback closer than this are one access of the video.
+    private static final long ACCESS_INTERVAL = 30 * 1000L;
+
+    private static CacheIndex sInstance;
+
+    private final File mCacheRoot;
+    private final long mCacheSize;
+    private final long mHeadSize;
+    private final EvictionPolicy mPolicy;
+    private final M3U8KeyManager mKeyManager;
+    private HashMap<String, Entry> mEntries = new HashMap<>();
+    private final HashSet<String> mActiveNames = new HashSet<>();
+    //Videos whose files are being truncated or deleted, they are activated after it.
+    private final HashSet<String> mEvictingNames = new HashSet<>();
+    private long mTotalSize;
+    private boolean mLoaded;
+    private boolean mTrimScheduled;
+
+    private static class Entry {
+        long size;
+        long accessTime;
+        int activeCount; // Videos being played or downloaded are not evicted.
+        boolean headOnly; // The tail is evicted, only the whole video can be evicted then.
+    }
+
+    public static synchronized CacheIndex getInstance(LocalProxyConfig config) {
+        if (sInstance == null) {
+            sInstance = new CacheIndex(config);
+            sInstance.reload();
+        }
+        return sInstance;
+    }
+
+    private CacheIndex(LocalProxyConfig config) {
+        mCacheRoot = config.getCacheRoot();
+        mCacheSize = config.getCacheSize();
+        mHeadSize = config.getCacheHeadSize();
+        mPolicy = config.getEvictionPolicy();
+        mKeyManager = M3U8KeyManager.getInstance(config);
+    }
+
+    //Scan the cache root again in background, after the cache files are deleted by others.
+    public void reload() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "CacheIndexLoader");
+        thread.start();
+    }
+
+    private void load() {
+        List<File> dirs = LocalProxyUtils.getLruFileList(mCacheRoot);
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.size = LocalProxyUtils.countTotalSize(dir);
+            entry.accessTime = dir.lastModified();
+            entries.put(dir.getName(), entry);
+        }
+        synchronized (this) {
+            //The videos used during the scan are the most recent ones, they keep their active state.
+            for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+                Entry entry = entries.remove(item.getKey());
+                if (entry != null) {
+                    item.getValue().size = Math.max(item.getValue().size, entry.size);
+                }
+                entries.put(item.getKey(), item.getValue());
+            }
+            mPolicy.clear();
+            long totalSize = 0;
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                mPolicy.onAdded(item.getKey(), item.getValue().size, item.getValue().accessTime);
+                totalSize += item.getValue().size;
+            }
+            mEntries = new HashMap<>(entries);
+            mTotalSize = totalSize;
+            mLoaded = true;
+            LogUtils.i("CacheIndex loaded " + mEntries.size() + " videos, totalSize=" + mTotalSize);
+        }
+        trim();
+    }
+
+    //The video of the cache file is played or served.
+    public void touch(File file) {
+        String name = getVideoName(file);
+        if (name == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = mEntries.get(name);
+            if (entry == null) {
+                createEntry(name, now);
+            } else {
+                if (now - entry.accessTime > ACCESS_INTERVAL) {
+                    mPolicy.onAccessed(name, now);
+                }
+                entry.accessTime = now;
+            }
+        }
+    }
+
+    //Bytes added to the video of the cache file, the cache is trimmed in background if it is full.
+    public void addSize(File file, long size) {
+        String name = getVideoName(file);
+        if (name == null || size == 0) {
+            return;
+        }
+        boolean shouldTrim;
+        synchronized (this) {
+            Entry entry = getOrCreateEntry(name);
+            entry.size += size;
+            mTotalSize += size;
+            mPolicy.onSizeChanged(name, entry.size);
+            shouldTrim = mLoaded && mTotalSize > mCacheSize && !mTrimScheduled;
+            if (shouldTrim) {
+                mTrimScheduled = true;
+            }
+        }
+        if (shouldTrim) {
+            LocalProxyThreadUtils.submitRunnableTask(new Runnable() {
+                @Override
+                public void run() {
+                    trim();
+                }
+            });
+        }
+    }
+
+    /**
+     * A video being evicted is activated once its files are evicted, so the task which activates it
+     * never reads the cache while it is cut.
+     */
+    public void setActive(File file, boolean active) {
+        String name = getVideoName(file);
+        if (name != null) {
+            synchronized (this) {
+                while (active && mEvictingNames.contains(name)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                Entry entry = getOrCreateEntry(name);
+                entry.activeCount = Math.max(0, entry.activeCount + (active ? 1 : -1));
+                if (entry.activeCount > 0) {
+                    mActiveNames.add(name);
+                    entry.headOnly = false;
+                } else {
+                    mActiveNames.remove(name);
+                    //The cache info of the stopped task is written in background after it.
+                    entry.accessTime = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    //Delete the expired videos, then evict the tails of the videos chosen by the policy until the
+    //cache fits, then the whole videos. The last video is always kept.
+    //The files of a chosen video are evicted only if it is not activated since it is chosen.
+    public void trim() {
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Long> evictedNames = new LinkedHashMap<>(); // Sizes of the evicted videos.
+        LinkedHashMap<String, Long> tailNames = new LinkedHashMap<>();    // Sizes before the tails are evicted.
+        synchronized (this) {
+            mTrimScheduled = false;
+            if (!mLoaded) {
+                return;
+            }
+            String name;
+            while ((name = mPolicy.evictExpired(now, mActiveNames)) != null) {
+                removeEntry(name, evictedNames);
+            }
+            if (mHeadSize > 0 && mTotalSize > mCacheSize) {
+                HashSet<String> excludedNames = new HashSet<>(mActiveNames);
+                for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+                    Entry entry = item.getValue();
+                    if (entry.headOnly || entry.size <= mHeadSize || now - entry.accessTime < ACCESS_INTERVAL) {
+                        excludedNames.add(item.getKey());
+                    }
+                }
+                //The policy keeps the video, it is cold still, only its size is changed.
+                while (mTotalSize > mCacheSize && (name = mPolicy.peekVictim(excludedNames)) != null) {
+                    excludedNames.add(name);
+                    Entry entry = mEntries.get(name);
+                    if (entry == null) {
+                        continue;
+                    }
+                    //The size is corrected by the files left after the tail is evicted.
+                    tailNames.put(name, entry.size);
+                    mTotalSize -= entry.size - mHeadSize;
+                    entry.size = mHeadSize;
+                    entry.headOnly = true;
+                    mPolicy.onSizeChanged(name, entry.size);
+                }
+            }
+            while (mTotalSize > mCacheSize && mEntries.size() > 1
+                    && (name = mPolicy.evict(mActiveNames)) != null) {
+                removeEntry(name, evictedNames);
+            }
+        }
+        for (Map.Entry<String, Long> item : tailNames.entrySet()) {
+            String name = item.getKey();
+            synchronized (this) {
+                Entry entry = mEntries.get(name);
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.activeCount > 0) {
+                    //It is played again since it is chosen, its tail is kept.
+                    mTotalSize += item.getValue() - entry.size;
+                    entry.size = item.getValue();
+                    mPolicy.onSizeChanged(name, entry.size);
+                    continue;
+                }
+                mEvictingNames.add(name);
+            }
+            long size = -1;
+            try {
+                size = evictTail(new File(mCacheRoot, name));
+            } finally {
+                synchronized (this) {
+                    mEvictingNames.remove(name);
+                    notifyAll();
+                    Entry entry = mEntries.get(name);
+                    if (entry != null && size < 0) {
+                        removeEntry(name, evictedNames);
+                    } else if (entry != null) {
+                        entry.size += size - mHeadSize;
+                        mTotalSize += size - mHeadSize;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Long> item : evictedNames.entrySet()) {
+            String name = item.getKey();
+            synchronized (this) {
+                if (mActiveNames.contains(name)) {
+                    //It is played again since it is chosen, the entry is created again by the activation.
+                    Entry entry = getOrCreateEntry(name);
+                    entry.size += item.getValue();
+                    mTotalSize += item.getValue();
+                    mPolicy.onSizeChanged(name, entry.size);
+                    continue;
+                }
+                mEvictingNames.add(name);
+            }
+            File dir = new File(mCacheRoot, name);
+            try {
+                if (dir.exists() && !LocalProxyUtils.deleteFile(dir)) {
+                    LogUtils.w("CacheIndex delete " + dir.getAbsolutePath() + " failed.");
+                } else {
+                    LogUtils.i("CacheIndex evicted " + name);
+                }
+                mKeyManager.unregisterKeys(dir);
+            } finally {
+                synchronized (this) {
+                    mEvictingNames.remove(name);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the first head size bytes of a .video file, or the first segments of a hls video
+     * within the head size, the cache info is updated so the next task downloads the tail again.
+     * @return the size of the video directory after it, -1 if the tail cannot be evicted.
+     */
+    private long evictTail(File dir) {
+        VideoCacheInfo info = LocalProxyUtils.readProxyCacheInfo(dir);
+        if (info == null) {
+            return -1;
+        }
+        try {
+            if (info.getVideoType() == Video.Type.HLS_TYPE) {
+                evictTsTail(dir, info);
+            } else {
+                evictVideoTail(dir, info);
+            }
+        } catch (Exception e) {
+            LogUtils.w("CacheIndex evictTail " + dir.getAbsolutePath() + " failed, exception=" + e);
+            return -1;
+        }
+        info.setIsCompleted(false);
+        LocalProxyUtils.writeProxyCacheInfo(info, dir);
+        long size = LocalProxyUtils.countTotalSize(dir);
+        LogUtils.i("CacheIndex evicted the tail of " + dir.getName() + ", size=" + size);
+        return size;
+    }
+
+    private void evictVideoTail(File dir, VideoCacheInfo info) throws Exception {
+        File videoFile = new File(dir, dir.getName() + EntireVideoDownloadTask.VIDEO_SUFFIX);
+        if (!videoFile.exists()) {
+            throw new FileNotFoundException(videoFile.getAbsolutePath());
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(videoFile, "rw");
+        try {
+            if (randomAccessFile.length() > mHeadSize) {
+                randomAccessFile.setLength(mHeadSize);
+            }
+        } finally {
+            LocalProxyUtils.close(randomAccessFile);
+        }
+        LinkedHashMap<Long, Long> segmentList = new LinkedHashMap<>();
+        long cachedLength = 0;
+        if (info.getSegmentList() != null) {
+            for (Map.Entry<Long, Long> item : info.getSegmentList().entrySet()) {
+                long end = Math.min(item.getValue(), mHeadSize);
+                if (item.getKey() < end) {
+                    segmentList.put(item.getKey(), end);
+                    cachedLength += end - item.getKey();
+                }
+            }
+        }
+        info.setSegmentList(segmentList);
+        info.setCachedLength(cachedLength);
+    }
+
+    //The contiguous segments from the first one are the head, at least the first segment is kept.
+    private void evictTsTail(File dir, VideoCacheInfo info) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        HashMap<Integer, File> tsFiles = new HashMap<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith(M3U8VideoDownloadTask.TS_PREFIX) && fileName.endsWith(".ts")) {
+                try {
+                    tsFiles.put(Integer.parseInt(fileName.substring(
+                            M3U8VideoDownloadTask.TS_PREFIX.length(), fileName.length() - 3)), file);
+                } catch (NumberFormatException e) {
+                    LogUtils.w("CacheIndex unknown ts file " + fileName);
+                }
+            }
+        }
+        long headSize = 0;
+        int index = 0;
+        File tsFile;
+        while ((tsFile = tsFiles.get(index)) != null && (index == 0 || headSize + tsFile.length() <= mHeadSize)) {
+            headSize += tsFile.length();
+            tsFiles.remove(index);
+            index++;
+        }
+        for (File file : tsFiles.values()) {
+            file.delete();
+        }
+        //Only the head ts are cached now.
+        info.setCachedTs(index);
+    }
+
+    private Entry getOrCreateEntry(String name) {
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry : createEntry(name, System.currentTimeMillis());
+    }
+
+    private Entry createEntry(String name, long now) {
+        Entry entry = new Entry();
+        entry.accessTime = now;
+        mEntries.put(name, entry);
+        mPolicy.onAdded(name, 0, now);
+        return entry;
+    }
+
+    private void removeEntry(String name, Map<String, Long> evictedNames) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mTotalSize -= entry.size;
+            evictedNames.put(name, entry.size);
+        }
+    }
+
+    //Name of the video directory under the cache root which contains the file.
+    private String getVideoName(File file) {
+        File parent = file.getParentFile();
+        while (parent != null) {
+            if (parent.equals(mCacheRoot)) {
+                return file.getName();
+            }
+            file = parent;
+            parent = file.getParentFile();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.media.cache.download;
+
+import com.media.cache.LocalProxyConfig;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide download worker pool shared by all the download tasks.
+ * Queued jobs run by priority then by submission order, a job can be cancelled or moved to
+ * another priority while it is queued, so seeking does not rebuild any thread pool.
+ */
+public class DownloadScheduler {
+
+    public static final int PRIORITY_PLAYING = 0;   // The segment the player is requesting.
+    public static final int PRIORITY_READAHEAD = 1; // Segments just after the playing position.
+    public static final int PRIORITY_BACKGROUND = 2;// The rest of the current video.
+    public static final int PRIORITY_PRELOAD = 3;   // Videos which are not playing.
+
+    private static final long KEEP_ALIVE_TIME = 60L;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private static DownloadScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public static synchronized DownloadScheduler getInstance(LocalProxyConfig config) {
+        if (sInstance == null) {
+            sInstance = new DownloadScheduler(config.getDownloadThreadCount());
+        }
+        return sInstance;
+    }
+
+    private DownloadScheduler(int threadCount) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName("VideoDownloadThread-" + mIndex.getAndIncrement());
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Job schedule(Runnable runnable, int priority) {
+        Job job = new Job(runnable, priority, mSequence.getAndIncrement());
+        mExecutor.execute(job);
+        return job;
+    }
+
+    //Move a queued job to the priority, a running job keeps running.
+    public void reprioritize(Job job, int priority) {
+        if (job.mPriority == priority) {
+            return;
+        }
+        if (mExecutor.remove(job)) {
+            job.mPriority = priority;
+            mExecutor.execute(job);
+        }
+    }
+
+    //A job of a higher priority is waiting for a worker, a preload gives its worker up then.
+    public boolean hasQueuedJobBefore(int priority) {
+        Runnable head = mExecutor.getQueue().peek();
+        return head instanceof Job && ((Job) head).mPriority < priority;
+    }
+
+    public class Job implements Runnable, Comparable<Job> {
+
+        private final Runnable mRunnable;
+        private final long mSequence;
+        private volatile int mPriority;
+        private int mState = STATE_QUEUED;
+        private Thread mThread;
+
+        private Job(Runnable runnable, int priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mState != STATE_QUEUED) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+                mThread = Thread.currentThread();
+            }
+            try {
+                mRunnable.run();
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                    if (mState == STATE_RUNNING) {
+                        mState = STATE_FINISHED;
+                    }
+                }
+                //Do not leak the interruption of cancel() to the next job of the thread.
+                Thread.interrupted();
+            }
+        }
+
+        //Remove the job from the queue, or interrupt it if it is running.
+        public void cancel() {
+            synchronized (this) {
+                if (mState == STATE_FINISHED || mState == STATE_CANCELLED) {
+                    return;
+                }
+                if (mState == STATE_RUNNING && mThread != null) {
+                    mThread.interrupt();
+                }
+                mState = STATE_CANCELLED;
+            }
+            mExecutor.remove(this);
+        }
+
+        //Drop the job if it has not started yet, a running job keeps running.
+        public boolean cancelIfQueued() {
+            synchronized (this) {
+                if (mState != STATE_QUEUED) {
+                    return false;
+                }
+                mState = STATE_CANCELLED;
+            }
+            mExecutor.remove(this);
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return mState == STATE_CANCELLED;
+        }
+
+        public synchronized boolean isDone() {
+            return mState == STATE_FINISHED || mState == STATE_CANCELLED;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
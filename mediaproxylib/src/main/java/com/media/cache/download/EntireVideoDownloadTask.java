@@ -3,6 +3,7 @@ package com.media.cache.download;
 import com.media.cache.LocalProxyConfig;
 import com.media.cache.VideoCacheInfo;
 import com.media.cache.listener.IVideoProxyCacheCallback;
+import com.media.cache.utils.BandwidthMeter;
 import com.media.cache.utils.LocalProxyThreadUtils;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
@@ -13,45 +14,54 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-
-import javax.net.ssl.HttpsURLConnection;
-
-import androidx.annotation.Nullable;
 
 public class EntireVideoDownloadTask extends VideoDownloadTask {
 
-    private static final String VIDEO_SUFFIX = ".video";
+    static final String VIDEO_SUFFIX = ".video";
+
+    //The uncached ranges are downloaded in chunks by several ranged connections at the same time.
+    private static final int MAX_CHUNK_CONNECTIONS = 3;
+    private static final long MIN_CHUNK_SIZE = 512 * 1024L;
+    private static final long MAX_CHUNK_SIZE = 8 * 1024 * 1024L;
+    private static final long CHUNK_DURATION = 2000L; // A chunk takes about 2 seconds at the measured speed.
+    //The moov box after the mdat is preloaded with the head if it is not larger than this.
+    private static final long MAX_PRELOAD_MOOV_SIZE = 16 * 1024 * 1024L;
 
     private final LinkedHashMap<Long, Long> mSegmentList;
-    private LinkedHashMap<Long, VideoRange> mVideoRangeMap;
-    private VideoRange mCurDownloadRange;
+    private final RangeSet mCachedRanges = new RangeSet();
+    private final List<Chunk> mActiveChunks = new ArrayList<>();
+    private volatile long mPlayingPosition;
+    private volatile long mChunkSize = MIN_CHUNK_SIZE;
+    private volatile boolean mRangeUnsupported;
+    private volatile long mPreloadSize;
+    private boolean mMoovChecked;
+    private long mMoovStart = -1L;
+    private long mMoovEnd;
     private long mTotalLength;
+    private final GrowingFile mGrowingFile;
 
-    class VideoRange {
+    //One ranged request [start, end) of the video file.
+    class Chunk {
 
-        long start; //segment start.
-        long end;   //segment end.
+        final long start;
+        volatile long end;
+        volatile long position;
 
-        VideoRange(long start, long end) {
+        Chunk(long start, long end) {
             this.start = start;
             this.end = end;
-        }
-
-        @Override
-        public boolean equals(@Nullable Object obj) {
-            VideoRange range = (VideoRange)obj;
-            return (start == range.start) && (end == range.end);
+            this.position = start;
         }
 
         public String toString() {
-            return "VideoRange[start="+start+", end="+end+"]";
+            return "Chunk[start="+start+", end="+end+", position="+position+"]";
         }
     }
 
@@ -61,53 +71,44 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
         super(config, info, headers);
         this.mTotalLength = info.getTotalLength();
         this.mSegmentList = mInfo.getSegmentList();
-        this.mVideoRangeMap = new LinkedHashMap<>();
-        mCurDownloadRange = new VideoRange(Long.MIN_VALUE, Long.MAX_VALUE);
-        initSegements();
+        mGrowingFile = GrowingFile.register(new File(mSaveDir, mSaveName + VIDEO_SUFFIX));
+        mGrowingFile.setTotalLength(mTotalLength);
+        mGrowingFile.setRemoteSource(mFinalUrl, mHeaders, new GrowingFile.RangeListener() {
+            @Override
+            public void onRangeFetched(long start, long end) {
+                mergeFetchedRange(start, end);
+            }
+        });
+        //The tail of the file may be evicted by the cache index after the info was written.
+        long fileLength = mGrowingFile.getFile().length();
+        initSegements(fileLength);
+        if (info.getIsCompleted() && fileLength < mTotalLength) {
+            info.setIsCompleted(false);
+        }
+        if (info.getIsCompleted()) {
+            mGrowingFile.markCompleted();
+        }
     }
 
-    private void initSegements() {
+    private void initSegements(long fileLength) {
         Iterator iterator = mSegmentList.entrySet().iterator();
         LogUtils.i( "initSegments size="+mSegmentList.size());
         while (iterator.hasNext()) {
             Map.Entry<Long, Long> item = (Map.Entry<Long, Long>)iterator.next();
             long start = item.getKey();
-            long end = item.getValue();
-            mVideoRangeMap.put(start, new VideoRange(start, end));
-        }
-        printVideoRange();
-    }
-
-    private synchronized VideoRange getVideoRequestRange(long curSeekPosition) {
-        long rangeStart = 0;
-        long rangeEnd = Long.MAX_VALUE;
-        printVideoRange();
-        Iterator iterator = mVideoRangeMap.entrySet().iterator();
-        while(iterator.hasNext()) {
-            Map.Entry<Long, VideoRange> item = (Map.Entry<Long, VideoRange>)iterator.next();
-            VideoRange range = item.getValue();
-            if (range.start > curSeekPosition) {
-                rangeEnd = range.start;
-                break;
-            }
-            if (range.start <= curSeekPosition && range.end >= curSeekPosition) {
-                rangeStart = range.end;
-                continue;
-            }
-            if (curSeekPosition > range.end + BUFFER_SIZE) {
-                rangeStart = curSeekPosition;
-                continue;
-            } else {
-                rangeStart = range.end;
-                continue;
+            long end = Math.min(item.getValue(), fileLength);
+            if (start < end) {
+                mCachedRanges.add(start, end);
+                mGrowingFile.onWritten(start, end - start);
             }
         }
-        VideoRange range = new VideoRange(rangeStart, rangeEnd);
-        return range;
+        printVideoRange();
     }
 
     @Override
     public void startDownload(IVideoProxyCacheCallback callback) {
+        endPreload();
+        setCacheActive(true);
         startTimerTask();
         mIsPlaying = false;
         seekToDownload(0L, callback);
@@ -115,9 +116,9 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void resumeDownload() {
-        LogUtils.i("BaseVideoDownloadTask resumeDownload current position="+mCurrentCachedSize);
+        LogUtils.i("BaseVideoDownloadTask resumeDownload playing position="+mPlayingPosition);
         mShouldSuspendDownloadTask = false;
-        seekToDownload(mCurrentCachedSize, mCallback);
+        seekToDownload(mPlayingPosition, mCallback);
     }
 
     @Override
@@ -158,13 +159,26 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
             notifyCacheProgress();
             return;
         }
+        mPlayingPosition = Math.max(0, curSeekPosition);
+        schedulePrepareJob(DownloadScheduler.PRIORITY_PLAYING);
+    }
 
-        mDownloadExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
-        mDownloadExecutor.execute(new Runnable() {
+    @Override
+    public void startPreload(long preloadSize, int priority) {
+        if (mInfo.getIsCompleted() || preloadSize <= 0 || !beginPreload(priority)) {
+            return;
+        }
+        LogUtils.i("BaseVideoDownloadTask startPreload size=" + preloadSize + ", priority=" + mPreloadPriority);
+        mPreloadSize = preloadSize;
+        mPlayingPosition = 0;
+        schedulePrepareJob(mPreloadPriority);
+    }
+
+    //Fetch the content length and create the video file, then start the chunks.
+    private void schedulePrepareJob(final int priority) {
+        scheduleJob(new Runnable() {
             @Override
             public void run() {
-                mCurDownloadRange = getVideoRequestRange(curSeekPosition);
-                LogUtils.i("seekToDownload ### mCurDownloadRange="+mCurDownloadRange);
                 if (mTotalLength == 0) {
                     mTotalLength = getContentLength(mFinalUrl);
                     LogUtils.i("file length = " + mTotalLength);
@@ -173,10 +187,10 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
                         return;
                     }
                     mInfo.setTotalLength(mTotalLength);
+                    mGrowingFile.setTotalLength(mTotalLength);
                 }
-                File videoFile;
                 try {
-                    videoFile = new File(mSaveDir, mSaveName + VIDEO_SUFFIX);
+                    File videoFile = new File(mSaveDir, mSaveName + VIDEO_SUFFIX);
                     if (!videoFile.exists()) {
                         videoFile.createNewFile();
                     }
@@ -184,86 +198,279 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
                     LogUtils.w("BaseDownloadTask createNewFile failed, exception="+e.getMessage());
                     return;
                 }
+                checkVideoReady();
+                scheduleChunks(priority);
+            }
+        }, priority);
+    }
+
+    /**
+     * Fill the free connections with the uncached chunks from the playing position.
+     * The chunk nearest to the playing position is scheduled first, with the given priority,
+     * so the startup does not wait for the chunks behind it.
+     */
+    private synchronized void scheduleChunks(int priority) {
+        if (mShouldSuspendDownloadTask || mTotalLength <= 0) {
+            return;
+        }
+        if (isPreloading()) {
+            schedulePreloadChunks();
+            return;
+        }
+        long from = mPlayingPosition;
+        while (mActiveChunks.size() < MAX_CHUNK_CONNECTIONS) {
+            Chunk chunk = mRangeUnsupported ? nextEntireChunk() : nextChunk(from, mTotalLength);
+            if (chunk == null && !mRangeUnsupported && from > 0) {
+                //Then the gaps before the playing position left by the seeking.
+                from = 0;
+                chunk = nextChunk(from, mTotalLength);
+            }
+            if (chunk == null) {
+                break;
+            }
+            LogUtils.i("scheduleChunks " + chunk + ", priority=" + priority);
+            mActiveChunks.add(chunk);
+            scheduleJob(createChunkRunnable(chunk), priority);
+            priority = DownloadScheduler.PRIORITY_READAHEAD;
+            from = chunk.end;
+        }
+    }
 
-                if (videoFile != null && videoFile.exists() &&
-                        videoFile.length() > BUFFER_SIZE) {
-                    notifyVideoReady();
+    //The head of the preload size, then the moov box if the mp4 has it after the mdat.
+    private synchronized void schedulePreloadChunks() {
+        while (mActiveChunks.size() < MAX_CHUNK_CONNECTIONS) {
+            Chunk chunk = null;
+            if (!mRangeUnsupported) {
+                chunk = nextChunk(0, Math.min(mPreloadSize, mTotalLength));
+                if (chunk == null && mActiveChunks.isEmpty() && !mMoovChecked) {
+                    mMoovChecked = true;
+                    findMoovRange(mCachedRanges.nextMissing(0));
+                }
+                if (chunk == null && mMoovStart >= 0) {
+                    chunk = nextChunk(mMoovStart, mMoovEnd);
                 }
+            }
+            if (chunk == null) {
+                break;
+            }
+            LogUtils.i("schedulePreloadChunks " + chunk + ", priority=" + mPreloadPriority);
+            mActiveChunks.add(chunk);
+            scheduleJob(createChunkRunnable(chunk), mPreloadPriority);
+        }
+        if (mActiveChunks.isEmpty()) {
+            LogUtils.i("BaseVideoDownloadTask preload finished, size=" + mPreloadedSize.get());
+            finishPreload();
+        }
+    }
 
-                if (mCurDownloadRange.start == Long.MIN_VALUE) {
-                    mCurDownloadRange.start = 0;
+    //Walk the top level boxes of the cached head, an mp4 which is not optimized for streaming
+    //has the moov box after the mdat, the player cannot start without it.
+    private void findMoovRange(long cachedEnd) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(mGrowingFile.getFile(), "r");
+            byte[] header = new byte[16];
+            long offset = 0;
+            while (offset + 8 <= cachedEnd) {
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(header, 0, 8);
+                long size = readUInt32(header, 0);
+                String type = new String(header, 4, 4, "ISO-8859-1");
+                if (offset == 0 && !"ftyp".equals(type)) {
+                    return;
                 }
-                if (mCurDownloadRange.end == Long.MAX_VALUE) {
-                    mCurDownloadRange.end = mTotalLength;
+                if (size == 1) {
+                    if (offset + 16 > cachedEnd) {
+                        break;
+                    }
+                    randomAccessFile.readFully(header, 8, 8);
+                    size = (readUInt32(header, 8) << 32) | readUInt32(header, 12);
+                } else if (size == 0) {
+                    size = mTotalLength - offset;
+                }
+                if (size < 8) {
+                    return;
                 }
+                if ("moov".equals(type)) {
+                    mMoovStart = offset;
+                    mMoovEnd = Math.min(mTotalLength, offset + size);
+                    return;
+                }
+                offset += size;
+            }
+            //The next box header is not cached, it is the moov box after the mdat in most files.
+            if (offset < mTotalLength && mTotalLength - offset <= MAX_PRELOAD_MOOV_SIZE) {
+                mMoovStart = offset;
+                mMoovEnd = mTotalLength;
+            }
+        } catch (IOException e) {
+            LogUtils.w("BaseVideoDownloadTask findMoovRange failed, exception=" + e);
+        } finally {
+            LocalProxyUtils.close(randomAccessFile);
+        }
+        LogUtils.i("BaseVideoDownloadTask moov range " + mMoovStart + "-" + mMoovEnd);
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        return ((data[offset] & 0xffL) << 24) | ((data[offset + 1] & 0xffL) << 16)
+                | ((data[offset + 2] & 0xffL) << 8) | (data[offset + 3] & 0xffL);
+    }
+
+    //The first range in [from, limit) which is neither cached nor being downloaded.
+    private synchronized Chunk nextChunk(long from, long limit) {
+        long start = mCachedRanges.nextMissing(from);
+        for (Chunk chunk = getActiveChunk(start); chunk != null; chunk = getActiveChunk(start)) {
+            start = mCachedRanges.nextMissing(chunk.end);
+        }
+        if (start >= limit) {
+            return null;
+        }
+        long end = Math.min(Math.min(limit, start + mChunkSize), mCachedRanges.nextStart(start));
+        for (Chunk chunk : mActiveChunks) {
+            if (chunk.start > start && chunk.start < end) {
+                end = chunk.start;
+            }
+        }
+        return new Chunk(start, end);
+    }
+
+    private synchronized Chunk getActiveChunk(long position) {
+        for (Chunk chunk : mActiveChunks) {
+            if (chunk.start <= position && position < chunk.end) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    //The server ignores Range, only one request of the whole file can fill the cache.
+    private synchronized Chunk nextEntireChunk() {
+        if (!mActiveChunks.isEmpty() || isCompleted()) {
+            return null;
+        }
+        return new Chunk(0, mTotalLength);
+    }
 
-                InputStream inputStream = null;
-                RandomAccessFile randomAccessFile = null;
+    private Runnable createChunkRunnable(final Chunk chunk) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                long startPosition = chunk.position;
+                boolean finished = false;
                 try {
-                    LogUtils.i("seekToDownload start request video range:" + mCurDownloadRange);
-                    LogUtils.i("begin request");
-                    long rangeEnd = mCurDownloadRange.end;
-                    long rangeStart = mCurDownloadRange.start;
-                    mCurrentCachedSize = rangeStart;
-
-                    inputStream = getResponseBody(mFinalUrl, rangeStart, rangeEnd);
-                    byte[] buf = new byte[BUFFER_SIZE];
-
-                    LogUtils.i("begin response");
-
-                    //Read http stream body.
-
-                    randomAccessFile = new RandomAccessFile(videoFile.getAbsolutePath(), "rw");
-                    randomAccessFile.seek(rangeStart);
-                    int readLength = 0;
-                    while ((readLength = inputStream.read(buf)) != -1) {
-                        if (mCurrentCachedSize + readLength > rangeEnd) {
-                            randomAccessFile.write(buf, 0, (int)(rangeEnd - mCurrentCachedSize));
-                            mCurrentCachedSize = rangeEnd;
-                        } else {
-                            randomAccessFile.write(buf, 0, readLength);
-                            mCurrentCachedSize += readLength;
-                        }
-                        notifyCacheProgress();
-                        if (mCurrentCachedSize >= BUFFER_SIZE + rangeStart) {
-                            notifyVideoReady();
-                        }
-                        if (mCurrentCachedSize >= rangeEnd) {
-                            LogUtils.w("BaseVideoDownloadTask innerThread segment download finished.");
-                            notifyNextVideoSegment(rangeEnd);
-                        }
-                    }
+                    downloadChunk(chunk);
+                    finished = chunk.position >= chunk.end;
+                    BandwidthMeter.getInstance().onTransferred(chunk.position - startPosition,
+                            System.currentTimeMillis() - startTime);
                 } catch (IOException e) {
-                    LogUtils.w( "BaseVideo Download file failed, exception: " + e);
-
-                    checkCacheFile(mSaveDir);
+                    LogUtils.w( "BaseVideo Download " + chunk + " failed, exception: " + e);
 
                     //InterruptedIOException is just interrupted by external operation.
-                    if (e instanceof InterruptedIOException) {
+                    if (!(e instanceof InterruptedIOException)) {
+                        checkCacheFile(mSaveDir);
+                        notifyFailed(e);
+                        onChunkFinished(chunk);
                         return;
                     }
+                }
+                if (finished) {
+                    updateChunkSize(chunk, System.currentTimeMillis() - startTime);
+                }
+                onChunkFinished(chunk);
+                if (!isCompleted()) {
+                    //A cancelled chunk is scheduled again if the download goes on after the seeking.
+                    scheduleChunks(DownloadScheduler.PRIORITY_READAHEAD);
+                }
+            }
+        };
+    }
 
-                    notifyFailed(e);
+    private void downloadChunk(Chunk chunk) throws IOException {
+        File videoFile = new File(mSaveDir, mSaveName + VIDEO_SUFFIX);
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            connection = openRangeConnection(mFinalUrl, chunk.start, chunk.end - 1);
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                mRangeUnsupported = true;
+                if (chunk.start != 0) {
+                    LogUtils.w("BaseVideoDownloadTask range is not supported, download from 0.");
                     return;
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                        if (randomAccessFile != null) {
-                            randomAccessFile.close();
-                        }
-                    } catch (IOException e) {
-                        LogUtils.w( "Close stream failed, exception: " + e.getMessage());
-                    }
                 }
-
+                //The whole body follows.
+                chunk.end = mTotalLength;
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Download " + chunk + " failed, responseCode=" + responseCode);
             }
-        });
+            inputStream = connection.getInputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+
+            randomAccessFile = new RandomAccessFile(videoFile.getAbsolutePath(), "rw");
+            randomAccessFile.seek(chunk.start);
+            mGrowingFile.setDownloadRange(chunk, chunk.start, chunk.end);
+            while (chunk.position < chunk.end) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException(chunk + " is cancelled.");
+                }
+                if (shouldStopPreload(chunk)) {
+                    throw new InterruptedIOException(chunk + " yields to the playing videos.");
+                }
+                int readLength = inputStream.read(buf, 0, (int) Math.min(buf.length, chunk.end - chunk.position));
+                if (readLength == -1) {
+                    throw new IOException(chunk + " ended early.");
+                }
+                randomAccessFile.write(buf, 0, readLength);
+                if (isPreloading()) {
+                    mPreloadedSize.addAndGet(readLength);
+                }
+                long writeStart = chunk.position;
+                chunk.position += readLength;
+                //Wake up the proxy responses waiting for these bytes.
+                mGrowingFile.onWritten(writeStart, readLength);
+                mGrowingFile.setDownloadRange(chunk, chunk.position, chunk.end);
+                notifyCacheProgress();
+                checkVideoReady();
+            }
+            LogUtils.i("BaseVideoDownloadTask " + chunk + " download finished.");
+        } finally {
+            mGrowingFile.setDownloadRange(chunk, -1L, -1L);
+            LocalProxyUtils.close(inputStream);
+            LocalProxyUtils.close(randomAccessFile);
+            //A cancelled chunk is abandoned, only a finished one keeps the connection alive.
+            if (chunk.position >= chunk.end) {
+                mUpstreamClient.release(connection);
+            } else {
+                mUpstreamClient.disconnect(connection);
+            }
+        }
+    }
+
+    //A preload chunk is given up for a queued job of a playing video, it is queued again behind it.
+    //The whole file the server sends without Range is not read beyond the preload size.
+    private boolean shouldStopPreload(Chunk chunk) {
+        return isPreloading() && (mScheduler.hasQueuedJobBefore(mPreloadPriority)
+                || (mRangeUnsupported && chunk.position >= mPreloadSize));
+    }
+
+    //Size the next chunks to be downloaded in about CHUNK_DURATION by one connection.
+    private void updateChunkSize(Chunk chunk, long costTime) {
+        long chunkSize = (chunk.end - chunk.start) * CHUNK_DURATION / Math.max(1, costTime);
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
 
-        //mCurDownloadRange download finished. Please download next range.
-        //1.pauseDownload;
-        //2.seekToDownload next range;
+    private void onChunkFinished(Chunk chunk) {
+        synchronized (this) {
+            mActiveChunks.remove(chunk);
+            if (chunk.position > chunk.start) {
+                mergeFetchedRange(chunk.start, chunk.position);
+            }
+        }
+        if (isCompleted()) {
+            updateProxyCacheInfo();
+        }
     }
 
     private void notifyFailed(Exception e) {
@@ -274,9 +481,10 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void pauseDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
+        if (!isDownloadTaskPaused()) {
+            //Set first, so a job finishing while the others are cancelled does not schedule the next one.
             mShouldSuspendDownloadTask = true;
+            cancelJobs();
         }
         updateProxyCacheInfo();
         writeProxyCacheInfo();
@@ -285,31 +493,32 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void stopDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
+        if (!isDownloadTaskPaused()) {
             mShouldSuspendDownloadTask = true;
+            cancelJobs();
         }
         updateProxyCacheInfo();
         writeProxyCacheInfo();
         checkCacheFile(mSaveDir);
+        mGrowingFile.release();
+        setCacheActive(false);
 
         cancelTimer();
     }
 
     private synchronized void updateProxyCacheInfo() {
         LogUtils.i( "BaseVideoDownloadTask updateProxyCacheInfo");
-        if (!isCompleted()) {
-            if (mCurrentCachedSize > mTotalLength)
-                mCurDownloadRange.end = mTotalLength;
-            else
-                mCurDownloadRange.end = mCurrentCachedSize;
-            mergeVideoRange();
-            mInfo.setCachedLength(mCurDownloadRange.end);
-            mInfo.setIsCompleted(isCompleted());
-        } else {
-            mInfo.setIsCompleted(true);
+        //The bytes written by the cancelled chunks are kept.
+        for (Chunk chunk : mActiveChunks) {
+            if (chunk.position > chunk.start) {
+                mergeFetchedRange(chunk.start, chunk.position);
+            }
         }
+        updateSegmentList();
+        mInfo.setCachedLength(mCachedRanges.getLength());
+        mInfo.setIsCompleted(isCompleted());
         if (mInfo.getIsCompleted()) {
+            mGrowingFile.markCompleted();
             notifyCacheFinished();
         }
     }
@@ -330,111 +539,41 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
         }
     }
 
-    private synchronized void mergeVideoRange() {
-        //merge  mCurDownloadRange in  mVideoRangeMap.
-        if (mVideoRangeMap.size() < 1) {
-            LogUtils.i("mergeVideoRange mCurDownloadRange="+mCurDownloadRange);
-            if (mCurDownloadRange.start != Long.MIN_VALUE &&
-                    mCurDownloadRange.end != Long.MAX_VALUE &&
-                    mCurDownloadRange.start < mCurDownloadRange.end) {
-                mVideoRangeMap.put(mCurDownloadRange.start, mCurDownloadRange);
-            } else {
-                LogUtils.i( "mergeVideoRange Cannot merge video range.");
-            }
-        } else if (!mVideoRangeMap.containsValue(mCurDownloadRange)) {
-            LogUtils.i("mergeVideoRange rangeLength>1, mCurDownloadRange="+mCurDownloadRange);
-
-            if (mCurDownloadRange.start == Long.MIN_VALUE
-                    || mCurDownloadRange.end == Long.MAX_VALUE
-                    || mCurDownloadRange.start >= mCurDownloadRange.end
-                    || mCurrentCachedSize <= mCurDownloadRange.start) {
-                return;
-            }
-
-            //1.Convert mCurDownloadRange into FinalRange.
-            VideoRange finalRange = new VideoRange(Long.MIN_VALUE, Long.MAX_VALUE);
-            Iterator iterator = mVideoRangeMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<Long, VideoRange> item = (Map.Entry<Long, VideoRange>) iterator.next();
-                VideoRange range = item.getValue();
-                LogUtils.i("mergeVideoRange  item range="+range);
-                if (range.start > mCurDownloadRange.end) {
-                    finalRange.end = mCurDownloadRange.end;
-                    break;
-                }
-                if (range.start <= mCurDownloadRange.end && range.end >= mCurDownloadRange.end) {
-                    finalRange.end = range.end;
-                    break;
-                }
-                if (range.end >= mCurDownloadRange.start && range.start <= mCurDownloadRange.start) {
-                    finalRange.start = range.start;
-                    continue;
-                }
-                if (range.end < mCurDownloadRange.start) {
-                    finalRange.start = mCurDownloadRange.start;
-                    continue;
-                }
-            }
-
-            //2.Generate FinalRange.
-            if (finalRange.start == Long.MIN_VALUE) {
-                finalRange.start = mCurDownloadRange.start;
-            }
-            if (finalRange.end == Long.MAX_VALUE) {
-                finalRange.end = mCurDownloadRange.end;
-            }
-            LogUtils.i("finalRange = " + finalRange);
-            //3.Put FinalRange into mVideoRangeMap container.
-            mVideoRangeMap.put(finalRange.start, finalRange);
-            //4.Remove redundancy range from mVideoRangeMap.
-            iterator = mVideoRangeMap.entrySet().iterator();
-            LinkedHashMap<Long, VideoRange> tempVideoRangeMap = new LinkedHashMap<>();
-            while(iterator.hasNext()) {
-                Map.Entry<Long, VideoRange> item = (Map.Entry<Long, VideoRange>) iterator.next();
-                VideoRange range = item.getValue();
-                if (!containRange(finalRange, range)) {
-                    tempVideoRangeMap.put(range.start, range);
-                }
-            }
-            mVideoRangeMap.clear();
-            mVideoRangeMap.putAll(tempVideoRangeMap);
-        }
-        LinkedHashMap<Long, Long> tempSegmentList = new LinkedHashMap<>();
-        Iterator iterator = mVideoRangeMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<Long, VideoRange> item = (Map.Entry<Long, VideoRange>) iterator.next();
-            VideoRange range = item.getValue();
-            tempSegmentList.put(range.start, range.end);
-        }
+    //The segment list is only the persisted copy of the ranges, it is rebuilt before it is written.
+    private synchronized void updateSegmentList() {
         mSegmentList.clear();
-        mSegmentList.putAll(tempSegmentList);
+        mSegmentList.putAll(mCachedRanges.toMap());
         mInfo.setSegmentList(mSegmentList);
     }
 
-    //5.Determine video cache is complete?
-    private synchronized boolean isCompleted() {
-        if (mVideoRangeMap.size() != 1) {
-            return false;
-        }
-        //The key is 0L, not 0; remember it.
-        VideoRange range = mVideoRangeMap.get(0L);
-        if (range != null && range.end == mTotalLength) {
-            return true;
+    //Merge the downloaded chunk, or the uncached gap the proxy fetched for the player, so it is not downloaded again.
+    private void mergeFetchedRange(long start, long end) {
+        long addedLength;
+        synchronized (this) {
+            long cachedLength = mCachedRanges.getLength();
+            mCachedRanges.add(start, end);
+            addedLength = mCachedRanges.getLength() - cachedLength;
         }
-        return false;
+        mCacheIndex.addSize(mSaveDir, addedLength);
     }
 
-    private boolean containRange(VideoRange range1, VideoRange range2) {
-        return range1.start < range2.start && range1.end >= range2.end;
+    //5.Determine video cache is complete?
+    private synchronized boolean isCompleted() {
+        return mTotalLength > 0 && mCachedRanges.nextMissing(0) >= mTotalLength;
     }
 
     private synchronized void printVideoRange() {
-        Iterator iterator = mVideoRangeMap.entrySet().iterator();
-        LogUtils.i("printVideoRange size="+mVideoRangeMap.size());
-        while (iterator.hasNext()) {
-            Map.Entry<Long, VideoRange> item = (Map.Entry<Long, VideoRange>) iterator.next();
-            VideoRange range = item.getValue();
-            LogUtils.i( "printVideoRange range="+range);
+        LogUtils.i("printVideoRange size="+mCachedRanges.size()+", "+mCachedRanges);
+    }
+
+    //The player can start once a buffer from the playing position is cached.
+    private void checkVideoReady() {
+        if (mIsPlaying) {
+            return;
+        }
+        long available = mGrowingFile.getAvailableLength(mPlayingPosition);
+        if (available >= BUFFER_SIZE || (available > 0 && mPlayingPosition + available >= mTotalLength)) {
+            notifyVideoReady();
         }
     }
 
@@ -453,6 +592,7 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
                 mCallback.onCacheProgressChanged(mInfo.getVideoUrl(), 100,
                         mTotalLength, null);
             } else {
+                mCurrentCachedSize = Math.min(getCachedLength(), mTotalLength);
                 mInfo.setCachedLength(mCurrentCachedSize);
                 int percent = (int) (mCurrentCachedSize * 1.0f * 100 / mTotalLength);
                 mCallback.onCacheProgressChanged(mInfo.getVideoUrl(), percent,
@@ -461,13 +601,13 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
         }
     }
 
-    //1.current segment has been downloaded.
-    //2.start to download next video's segment.
-    private void notifyNextVideoSegment(long rangeStart) {
-        pauseDownload();
-        if (rangeStart < mTotalLength) {
-            seekToDownload(rangeStart, mCallback);
+    //The merged ranges and the bytes of the chunks being downloaded.
+    private synchronized long getCachedLength() {
+        long cachedLength = mCachedRanges.getLength();
+        for (Chunk chunk : mActiveChunks) {
+            cachedLength += chunk.position - chunk.start;
         }
+        return cachedLength;
     }
 
     private void notifyCacheFinished() {
@@ -478,46 +618,23 @@ public class EntireVideoDownloadTask extends VideoDownloadTask {
         }
     }
 
-    private InputStream getResponseBody(String url, long start, long end) throws IOException {
-        HttpURLConnection connection = openConnection(url);
-        connection.setRequestProperty("Range",
-                "bytes=" + start + "-" +
-                        end);
-        return connection.getInputStream();
+    private HttpURLConnection openRangeConnection(String url, long start, long end) throws IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        if (mHeaders != null) {
+            headers.putAll(mHeaders);
+        }
+        headers.put("Range", "bytes=" + start + "-" + end);
+        return mUpstreamClient.open(url, headers);
     }
 
+    //HEAD request, the body is not downloaded just for the length.
     private long getContentLength(String videoUrl) {
         long length = 0;
-        HttpURLConnection connection = null;
         try {
-            connection = openConnection(videoUrl);
-            length = connection.getContentLength();
+            length = mUpstreamClient.probe(videoUrl, mHeaders).contentLength;
         } catch (Exception e) {
             LogUtils.w( "BaseDownloadTask failed, exception="+e.getMessage());
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-                connection = null;
-            }
         }
         return length;
     }
-
-    private HttpURLConnection openConnection(String videoUrl)
-            throws IOException {
-        HttpURLConnection connection;
-        URL url = new URL(videoUrl);
-        connection = (HttpURLConnection)url.openConnection();
-        if (mConfig.shouldIgnoreAllCertErrors() && connection instanceof HttpsURLConnection) {
-            trustAllCert((HttpsURLConnection)(connection));
-        }
-        connection.setConnectTimeout(mConfig.getReadTimeOut());
-        connection.setReadTimeout(mConfig.getConnTimeOut());
-        if (mHeaders != null) {
-            for (Map.Entry<String, String> item : mHeaders.entrySet()) {
-                connection.setRequestProperty(item.getKey(), item.getValue());
-            }
-        }
-        return connection;
-    }
 }
@@ -0,0 +1,294 @@
+package com.media.cache.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache file which is still being written by a download task.
+ * The proxy response waits on the byte ranges which are not written yet and is woken up
+ * by the writer's progress, so the player can read ahead of the download without EOF.
+ *
+ * A whole-file fetch, like a ts segment, is single-flight: {@link #beginFetch(File)} lets only
+ * the first requester download into a temp file, the others attach to it as readers, and
+ * {@link #publish()} renames the temp file to the cache file once it is complete.
+ */
+public class GrowingFile {
+
+    //The proxy waits for the download task if it will reach the position within this distance.
+    private static final long MAX_WAIT_DISTANCE = 512 * 1024L;
+
+    private static final String TEMP_SUFFIX = ".download";
+
+    private static final Map<String, GrowingFile> sGrowingFiles = new HashMap<>();
+
+    private final File mFile;
+    private final File mTargetFile; // Published file of a fetch, null if mFile is written in place.
+    private final RangeSet mWrittenRanges = new RangeSet();
+    private long mTotalLength;
+    private final HashMap<Object, long[]> mDownloadRanges = new HashMap<>(); // writer -> {next byte, end(exclusive)}
+    private boolean mCompleted;
+    private boolean mReleased;
+    private boolean mFailed;
+    private String mRemoteUrl;
+    private HashMap<String, String> mHeaders;
+    private RangeListener mRangeListener;
+
+    //Notified when the proxy fetches a gap of the file by itself.
+    public interface RangeListener {
+        void onRangeFetched(long start, long end);
+    }
+
+    private GrowingFile(File file, File targetFile) {
+        mFile = file;
+        mTargetFile = targetFile;
+    }
+
+    private String getKey() {
+        return (mTargetFile != null ? mTargetFile : mFile).getAbsolutePath();
+    }
+
+    public static GrowingFile register(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (sGrowingFiles) {
+            GrowingFile growingFile = sGrowingFiles.get(key);
+            if (growingFile == null) {
+                growingFile = new GrowingFile(file, null);
+                sGrowingFiles.put(key, growingFile);
+            }
+            return growingFile;
+        }
+    }
+
+    /**
+     * Start fetching the whole file into a temp file.
+     * @return null if the file is cached or another requester is fetching it, attach to
+     * {@link #get(File)} then.
+     */
+    public static GrowingFile beginFetch(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (sGrowingFiles) {
+            if (sGrowingFiles.containsKey(key) || file.exists()) {
+                return null;
+            }
+            GrowingFile growingFile = new GrowingFile(new File(file.getPath() + TEMP_SUFFIX), file);
+            growingFile.mFile.delete();
+            sGrowingFiles.put(key, growingFile);
+            return growingFile;
+        }
+    }
+
+    public static GrowingFile get(File file) {
+        synchronized (sGrowingFiles) {
+            return sGrowingFiles.get(file.getAbsolutePath());
+        }
+    }
+
+    //The writer stops, readers will only get the bytes which are on disk.
+    public void release() {
+        synchronized (sGrowingFiles) {
+            if (sGrowingFiles.get(getKey()) == this) {
+                sGrowingFiles.remove(getKey());
+            }
+        }
+        synchronized (this) {
+            mReleased = true;
+            notifyAll();
+        }
+    }
+
+    //The file being written, the temp file for a fetch.
+    public File getFile() {
+        return mFile;
+    }
+
+    //The cache file readers open once it is published.
+    public File getCacheFile() {
+        return mTargetFile != null ? mTargetFile : mFile;
+    }
+
+    //Rename the complete temp file to the cache file, the fetch is aborted if it is incomplete.
+    public boolean publish() {
+        long writtenLength;
+        synchronized (this) {
+            writtenLength = mWrittenRanges.nextMissing(0);
+        }
+        if (mTargetFile == null || (mTotalLength > 0 && writtenLength != mTotalLength) ||
+                !mFile.renameTo(mTargetFile)) {
+            abort();
+            return false;
+        }
+        synchronized (this) {
+            mTotalLength = writtenLength;
+            mCompleted = true;
+        }
+        release();
+        return true;
+    }
+
+    //The fetch failed, the readers get an IOException and the temp file is deleted.
+    public void abort() {
+        synchronized (this) {
+            if (mCompleted) {
+                return;
+            }
+            mFailed = true;
+        }
+        release();
+        if (mTargetFile != null) {
+            mFile.delete();
+        }
+    }
+
+    //Wait until the writer finishes, returns true if the file is completed.
+    public synchronized boolean awaitFinished(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mReleased) {
+            long waitTime = deadline - System.currentTimeMillis();
+            if (waitTime <= 0) {
+                break;
+            }
+            wait(waitTime);
+        }
+        return mCompleted;
+    }
+
+    public synchronized void setRemoteSource(String url, HashMap<String, String> headers,
+                                             RangeListener listener) {
+        mRemoteUrl = url;
+        mHeaders = headers;
+        mRangeListener = listener;
+    }
+
+    public synchronized String getRemoteUrl() {
+        return mRemoteUrl;
+    }
+
+    public synchronized HashMap<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * The writer of the download task will write [position, end) in order, the proxy waits for it
+     * instead of fetching these bytes. A negative position removes the writer.
+     */
+    public synchronized void setDownloadRange(Object writer, long position, long end) {
+        if (position < 0 || position >= end) {
+            mDownloadRanges.remove(writer);
+        } else {
+            long[] range = mDownloadRanges.get(writer);
+            if (range == null) {
+                mDownloadRanges.put(writer, new long[] { position, end });
+            } else {
+                range[0] = position;
+                range[1] = end;
+            }
+        }
+        notifyAll();
+    }
+
+    public synchronized void setTotalLength(long totalLength) {
+        mTotalLength = totalLength;
+        notifyAll();
+    }
+
+    public synchronized long getTotalLength() {
+        return mTotalLength;
+    }
+
+    public synchronized boolean isCompleted() {
+        return mCompleted;
+    }
+
+    public synchronized void markCompleted() {
+        mCompleted = true;
+        notifyAll();
+    }
+
+    public synchronized void onWritten(long start, long length) {
+        if (length <= 0) {
+            return;
+        }
+        mWrittenRanges.add(start, start + length);
+        notifyAll();
+    }
+
+    //Bytes written by the proxy's own ranged request.
+    public void onFetched(long start, long length) {
+        RangeListener listener;
+        synchronized (this) {
+            onWritten(start, length);
+            listener = mRangeListener;
+        }
+        if (listener != null) {
+            listener.onRangeFetched(start, start + length);
+        }
+    }
+
+    /**
+     * The position is in an uncached gap which no writer of the download task will reach soon,
+     * the proxy should request the gap from network by itself.
+     */
+    public synchronized boolean shouldFetch(long position) {
+        if (mCompleted || mReleased || mRemoteUrl == null || getAvailableLength(position) > 0) {
+            return false;
+        }
+        for (long[] range : mDownloadRanges.values()) {
+            if (position >= range[0] && position < range[1] && position - range[0] <= MAX_WAIT_DISTANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //End of the uncached gap at the position.
+    public synchronized long getGapEnd(long position) {
+        long nextStart = mWrittenRanges.nextStart(position);
+        if (nextStart != Long.MAX_VALUE && (mTotalLength <= 0 || nextStart < mTotalLength)) {
+            return nextStart;
+        }
+        return mTotalLength;
+    }
+
+    public synchronized long getAvailableLength(long position) {
+        if (mCompleted) {
+            return mTotalLength - position;
+        }
+        return mWrittenRanges.nextMissing(position) - position;
+    }
+
+    /**
+     * Wait until some bytes from the position are written.
+     * @return the length which can be read from the position, -1 if the position is at the end,
+     * 0 if nothing is written before the timeout.
+     */
+    public synchronized long awaitAvailable(long position, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            if (mFailed) {
+                throw new IOException("Fetch " + mFile.getName() + " failed.");
+            }
+            if ((mCompleted || mTotalLength > 0) && position >= mTotalLength) {
+                return -1;
+            }
+            long available = getAvailableLength(position);
+            if (available > 0) {
+                return available;
+            }
+            if (mReleased) {
+                long length = mFile.length() - position;
+                return length > 0 ? length : -1;
+            }
+            long waitTime = deadline - System.currentTimeMillis();
+            if (waitTime <= 0) {
+                return 0;
+            }
+            try {
+                wait(waitTime);
+            } catch (InterruptedException e) {
+                throw new IOException("Wait " + mFile.getName() + " interrupted.", e);
+            }
+        }
+    }
+}
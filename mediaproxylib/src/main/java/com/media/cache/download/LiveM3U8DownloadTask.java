@@ -0,0 +1,412 @@
+package com.media.cache.download;
+
+import com.media.cache.LocalProxyConfig;
+import com.media.cache.VideoCacheInfo;
+import com.media.cache.hls.M3U8;
+import com.media.cache.hls.M3U8InitSegment;
+import com.media.cache.hls.M3U8Ts;
+import com.media.cache.hls.M3U8Utils;
+import com.media.cache.listener.IVideoProxyCacheCallback;
+import com.media.cache.utils.BandwidthMeter;
+import com.media.cache.utils.HttpUtils;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Proxy of a live hls stream, a media playlist without '#EXT-X-ENDLIST'.
+ * The playlist is reloaded at the target duration cadence(RFC 8216 6.3.4), the new ts are
+ * prefetched for the player, and the proxy playlist is regenerated in memory after every reload.
+ * The ts are named by their media sequence number, only the latest ones are kept on disk.
+ */
+public class LiveM3U8DownloadTask extends VideoDownloadTask {
+
+    //The player starts a few target durations before the live edge, these ts are prefetched first.
+    private static final int INITIAL_PREFETCH_TS_COUNT = 3;
+    private static final long MIN_RELOAD_INTERVAL = 500L;
+    private static final String PROXY_M3U8 = "proxy.m3u8";
+
+    private static final HashMap<String, LiveM3U8DownloadTask> sRunningTasks = new HashMap<>();
+
+    private final String mPlaylistUrl;
+    private volatile M3U8 mM3U8;
+    private volatile byte[] mPlaylist;   // The proxy playlist of the latest reload.
+    private long mLastSequence = -1;     // The newest ts known, guarded by this.
+    private long mTrimmedSequence = -1;  // The ts up to it are deleted, guarded by this.
+    private Timer mReloadTimer;
+    private volatile boolean mRunning;
+
+    public LiveM3U8DownloadTask(LocalProxyConfig config, VideoCacheInfo info, M3U8 m3u8,
+                                HashMap<String, String> headers) {
+        super(config, info, headers);
+        mPlaylistUrl = m3u8.getUrl();
+        mM3U8 = m3u8;
+    }
+
+    /**
+     * The proxy playlist of the live video served from memory.
+     * @param uri the request path, /{saveName}/proxy.m3u8
+     * @return null if it is not the playlist of a running live task.
+     */
+    public static byte[] getPlaylist(String uri) {
+        int separator = uri.lastIndexOf('/');
+        if (separator <= 1 || !uri.startsWith(PROXY_M3U8, separator + 1) ||
+                uri.length() != separator + 1 + PROXY_M3U8.length()) {
+            return null;
+        }
+        LiveM3U8DownloadTask task;
+        synchronized (sRunningTasks) {
+            task = sRunningTasks.get(uri.substring(uri.charAt(0) == '/' ? 1 : 0, separator));
+        }
+        return task != null ? task.mPlaylist : null;
+    }
+
+    @Override
+    public void startDownload(IVideoProxyCacheCallback callback) {
+        mCallback = callback;
+        endPreload();
+        setCacheActive(true);
+        synchronized (sRunningTasks) {
+            sRunningTasks.put(mSaveName, this);
+        }
+        try {
+            onPlaylistLoaded(mM3U8, false);
+        } catch (IOException e) {
+            LogUtils.w("LiveM3U8DownloadTask start " + mPlaylistUrl + " failed, exception=" + e);
+            if (mCallback != null) {
+                mCallback.onCacheFailed(mInfo.getVideoUrl(), e);
+            }
+            return;
+        }
+        startReload();
+        notifyVideoReady();
+    }
+
+    //The playlist is loaded already, only the ts at the live edge are prefetched below the playing videos.
+    //The video is pinned until they are downloaded.
+    @Override
+    public void startPreload(long preloadSize, int priority) {
+        if (!beginPreload(priority)) {
+            return;
+        }
+        try {
+            onPlaylistLoaded(mM3U8, true);
+        } catch (IOException e) {
+            LogUtils.w("LiveM3U8DownloadTask preload " + mPlaylistUrl + " failed, exception=" + e);
+        }
+        if (!hasPreloadJobs()) {
+            finishPreload();
+        }
+    }
+
+    @Override
+    public void resumeDownload() {
+        setCacheActive(true);
+        startReload();
+    }
+
+    //The live stream is always downloaded at the live edge, seeking within the window is served by the proxy.
+    @Override
+    public void seekToDownload(float seekPercent) {
+    }
+
+    @Override
+    public void seekToDownload(long curPosition, long totalDuration) {
+    }
+
+    @Override
+    public void seekToDownload(float seekPercent, IVideoProxyCacheCallback callback) {
+    }
+
+    @Override
+    public void seekToDownload(int curDownloadTs, IVideoProxyCacheCallback callback) {
+    }
+
+    @Override
+    public void seekToDownload(long curLength, IVideoProxyCacheCallback callback) {
+    }
+
+    @Override
+    public void pauseDownload() {
+        stopReload();
+        cancelJobs();
+        setCacheActive(false);
+    }
+
+    @Override
+    public void stopDownload() {
+        synchronized (sRunningTasks) {
+            if (sRunningTasks.get(mSaveName) == this) {
+                sRunningTasks.remove(mSaveName);
+            }
+        }
+        pauseDownload();
+        checkCacheFile(mSaveDir);
+        releaseKeys();
+    }
+
+    private synchronized void startReload() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mReloadTimer = new Timer("LiveM3U8Reload-" + mSaveName);
+        scheduleReload(true);
+    }
+
+    private synchronized void stopReload() {
+        mRunning = false;
+        if (mReloadTimer != null) {
+            mReloadTimer.cancel();
+            mReloadTimer = null;
+        }
+    }
+
+    //A changed playlist is reloaded after the target duration, an unchanged one after half of it.
+    private synchronized void scheduleReload(boolean changed) {
+        if (!mRunning || mReloadTimer == null) {
+            return;
+        }
+        long interval = (long) (mM3U8.getTargetDuration() * (changed ? 1000 : 500));
+        mReloadTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, Math.max(MIN_RELOAD_INTERVAL, interval));
+    }
+
+    private void reload() {
+        boolean changed = false;
+        try {
+            M3U8 m3u8 = loadPlaylist();
+            changed = onPlaylistLoaded(m3u8, false);
+            if (m3u8.hasEndList()) {
+                LogUtils.i("LiveM3U8DownloadTask " + mPlaylistUrl + " ends.");
+                stopReload();
+                return;
+            }
+        } catch (Exception e) {
+            LogUtils.w("LiveM3U8DownloadTask reload " + mPlaylistUrl + " failed, exception=" + e);
+        }
+        scheduleReload(changed);
+    }
+
+    //The playlist is fetched with the timeouts and the headers of the other requests of the video, a stalled
+    //reload fails instead of blocking the reload timer.
+    private M3U8 loadPlaylist() throws IOException {
+        HttpURLConnection connection = null;
+        boolean loaded = false;
+        try {
+            connection = mUpstreamClient.open(mPlaylistUrl, mHeaders);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpUtils.RESPONSE_OK) {
+                throw new IOException("responseCode=" + responseCode);
+            }
+            M3U8 m3u8 = M3U8Utils.parseM3U8Info(mPlaylistUrl, connection.getInputStream());
+            loaded = true;
+            return m3u8;
+        } finally {
+            if (loaded) {
+                mUpstreamClient.release(connection);
+            } else if (connection != null) {
+                mUpstreamClient.disconnect(connection);
+            }
+        }
+    }
+
+    //Prefetch the new ts of the playlist and regenerate the proxy playlist, returns true if it has new ts.
+    private boolean onPlaylistLoaded(M3U8 m3u8, boolean preload) throws IOException {
+        int count = m3u8.getTsCount();
+        long firstSequence = m3u8.getSequence();
+        for (int index = 0; index < count; index++) {
+            m3u8.getTs(index).setIndex((int) (firstSequence + index));
+        }
+        int firstNew;
+        synchronized (this) {
+            firstNew = mLastSequence < 0 ? Math.max(0, count - INITIAL_PREFETCH_TS_COUNT) :
+                    (int) Math.max(0, Math.min(count, mLastSequence + 1 - firstSequence));
+            if (count > 0) {
+                mLastSequence = Math.max(mLastSequence, firstSequence + count - 1);
+            }
+        }
+        mM3U8 = m3u8;
+        mPlaylist = buildPlaylist(m3u8);
+        for (int index = firstNew; index < count; index++) {
+            final M3U8Ts ts = m3u8.getTs(index);
+            requestKey(ts);
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        downloadTs(ts);
+                    } catch (Exception e) {
+                        LogUtils.w("LiveM3U8DownloadTask download " + ts.getIndexName() + " failed, exception=" + e);
+                    }
+                }
+            };
+            if (preload) {
+                schedulePreloadJob(runnable);
+            } else {
+                scheduleJob(runnable, DownloadScheduler.PRIORITY_PLAYING);
+            }
+        }
+        trimCachedTs();
+        return firstNew < count;
+    }
+
+    private byte[] buildPlaylist(M3U8 m3u8) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(M3U8Utils.PLAYLIST_HEADER + "\n");
+        builder.append(M3U8Utils.TAG_VERSION + ":" + m3u8.getVersion() + "\n");
+        builder.append(M3U8Utils.TAG_MEDIA_SEQUENCE + ":" + m3u8.getSequence() + "\n");
+        builder.append(M3U8Utils.TAG_TARGET_DURATION + ":" + (int) Math.ceil(m3u8.getTargetDuration()) + "\n");
+        for (int index = 0; index < m3u8.getTsCount(); index++) {
+            M3U8Ts ts = m3u8.getTs(index);
+            if (ts.hasKey() && ts.getMethod() != null) {
+                builder.append(M3U8Utils.TAG_KEY + ":METHOD=" + ts.getMethod());
+                if (ts.getKeyUri() != null) {
+                    mKeyManager.registerKey(mSaveDir, ts, mHeaders);
+                    builder.append(",URI=\"" + ts.getLocalKeyUri() + "\"");
+                }
+                if (ts.getKeyIV() != null) {
+                    builder.append(",IV=" + ts.getKeyIV());
+                }
+                builder.append("\n");
+            }
+            if (ts.hasDiscontinuity()) {
+                builder.append(M3U8Utils.TAG_DISCONTINUITY + "\n");
+            }
+            M3U8InitSegment initSegment = ts.getInitSegment();
+            if (initSegment != null && (index == 0 || !initSegment.equals(m3u8.getTs(index - 1).getInitSegment()))) {
+                builder.append(M3U8Utils.TAG_MAP + ":URI=\"" +
+                        initSegment.getProxyUrl(mConfig.getHost(), mConfig.getPort(), mSaveName) + "\"\n");
+            }
+            builder.append(M3U8Utils.TAG_MEDIA_DURATION + ":" + ts.getDuration() + ",\n");
+            builder.append(ts.getProxyUrl(mConfig.getHost(), mConfig.getPort(), mSaveName)).append("\n");
+        }
+        if (m3u8.hasEndList()) {
+            builder.append(M3U8Utils.TAG_ENDLIST + "\n");
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private void downloadTs(M3U8Ts ts) throws IOException {
+        File file = new File(mSaveDir, ts.getIndexName());
+        GrowingFile growingFile = GrowingFile.beginFetch(file);
+        if (growingFile == null) {
+            //Cached or being fetched by the proxy for the player.
+            return;
+        }
+        HttpURLConnection connection = null;
+        FileOutputStream fos = null;
+        boolean isTruncated = false; // Only the head of a whole resource is read for the byte range.
+        try {
+            HashMap<String, String> headers = mHeaders;
+            if (ts.hasByteRange()) {
+                headers = new HashMap<>();
+                if (mHeaders != null) {
+                    headers.putAll(mHeaders);
+                }
+                headers.put("Range", "bytes=" + ts.getByteRangeOffset() + "-" +
+                        (ts.getByteRangeOffset() + ts.getByteRangeLength() - 1));
+            }
+            connection = mUpstreamClient.open(ts.getUrl(), headers);
+            int responseCode = connection.getResponseCode();
+            long length;
+            if (ts.hasByteRange() && responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                length = ts.getByteRangeLength();
+            } else if (responseCode == HttpUtils.RESPONSE_OK && !ts.hasByteRange()) {
+                length = UpstreamClient.getContentLength(connection);
+            } else if (responseCode == HttpUtils.RESPONSE_OK && ts.getByteRangeOffset() == 0) {
+                length = ts.getByteRangeLength();
+                isTruncated = true;
+            } else {
+                throw new IOException("responseCode=" + responseCode);
+            }
+            growingFile.setTotalLength(length);
+            long startTime = System.currentTimeMillis();
+            InputStream inputStream = connection.getInputStream();
+            fos = new FileOutputStream(growingFile.getFile());
+            byte[] buf = new byte[BUFFER_SIZE];
+            long position = 0;
+            int len;
+            while ((!isTruncated || position < length) && (len = inputStream.read(buf, 0,
+                    isTruncated ? (int) Math.min(buf.length, length - position) : buf.length)) != -1) {
+                fos.write(buf, 0, len);
+                growingFile.onWritten(position, len);
+                position += len;
+            }
+            fos.close();
+            if (growingFile.publish()) {
+                mCacheIndex.addSize(mSaveDir, position);
+                BandwidthMeter.getInstance().onTransferred(position, System.currentTimeMillis() - startTime);
+            }
+        } finally {
+            LocalProxyUtils.close(fos);
+            if (growingFile.isCompleted() && !isTruncated) {
+                mUpstreamClient.release(connection);
+            } else if (connection != null) {
+                mUpstreamClient.disconnect(connection);
+            }
+            //No-op if the file is published.
+            growingFile.abort();
+        }
+    }
+
+    //Delete the ts behind the cached window, also the ones fetched by the proxy for the player and the
+    //ones left by the earlier sessions. The ts of the current playlist are always kept.
+    private void trimCachedTs() {
+        long end;
+        synchronized (this) {
+            end = mLastSequence - Math.max(mConfig.getLiveCacheTsCount(), mM3U8.getTsCount());
+            if (end < 0 || end <= mTrimmedSequence) {
+                return;
+            }
+            mTrimmedSequence = end;
+        }
+        File[] files = mSaveDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long deletedSize = 0;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(M3U8VideoDownloadTask.TS_PREFIX) || !fileName.endsWith(".ts")) {
+                continue;
+            }
+            long sequence;
+            try {
+                sequence = Long.parseLong(fileName.substring(
+                        M3U8VideoDownloadTask.TS_PREFIX.length(), fileName.length() - 3));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            long length = file.length();
+            if (sequence <= end && file.delete()) {
+                deletedSize += length;
+            }
+        }
+        if (deletedSize > 0) {
+            mCacheIndex.addSize(mSaveDir, -deletedSize);
+        }
+    }
+
+    private void notifyVideoReady() {
+        if (mCallback != null && !mIsPlaying) {
+            String url = String.format(Locale.US, "http://%s:%d/%s/%s", mConfig.getHost(), mConfig.getPort(), mSaveName, PROXY_M3U8);
+            mCallback.onCacheReady(mInfo.getVideoUrl(), url);
+            mIsPlaying = true;
+        }
+    }
+}
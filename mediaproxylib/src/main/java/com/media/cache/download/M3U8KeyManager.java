@@ -0,0 +1,202 @@
+package com.media.cache.download;
+
+import com.media.cache.LocalProxyConfig;
+import com.media.cache.hls.M3U8Ts;
+import com.media.cache.utils.HttpUtils;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keys of the encrypted hls videos. Every distinct key uri is fetched once into its own file in the
+ * video directory, the raw bytes are served to the player by the proxy, so rotated keys are kept apart.
+ * The fetch is single-flight by {@link GrowingFile} like a ts, the others wait for the first one.
+ * The remote uri is saved next to the key file, so a cached playlist of an earlier session still gets its keys.
+ */
+public class M3U8KeyManager {
+
+    private static final int MAX_KEY_SIZE = 1024; // An AES-128 key is 16 bytes.
+    private static final String KEY_URI_SUFFIX = ".uri";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static M3U8KeyManager sInstance;
+
+    private final LocalProxyConfig mConfig;
+    private final UpstreamClient mUpstreamClient;
+    //Every registered key file of the running videos, the proxy may be asked for a key before the task fetches it.
+    private final HashMap<String, KeyInfo> mKeys = new HashMap<>();
+
+    private static class KeyInfo {
+        final String uri;
+        final HashMap<String, String> headers; // The headers of the video the key belongs to.
+
+        KeyInfo(String uri, HashMap<String, String> headers) {
+            this.uri = uri;
+            this.headers = headers;
+        }
+    }
+
+    public static synchronized M3U8KeyManager getInstance(LocalProxyConfig config) {
+        if (sInstance == null) {
+            sInstance = new M3U8KeyManager(config);
+        }
+        return sInstance;
+    }
+
+    private M3U8KeyManager(LocalProxyConfig config) {
+        mConfig = config;
+        mUpstreamClient = UpstreamClient.getInstance(config);
+    }
+
+    //The key file of the ts in the video directory, null if the ts has no key uri.
+    public File registerKey(File dir, M3U8Ts ts, HashMap<String, String> headers) {
+        if (ts.getKeyUri() == null) {
+            return null;
+        }
+        File keyFile = new File(dir, ts.getLocalKeyUri());
+        String path = keyFile.getAbsolutePath();
+        synchronized (mKeys) {
+            KeyInfo keyInfo = mKeys.get(path);
+            if (keyInfo != null && keyInfo.headers == headers) {
+                return keyFile;
+            }
+            mKeys.put(path, new KeyInfo(ts.getKeyUri(), headers));
+        }
+        //The file name is the md5 of the uri, an existing uri file is the same.
+        File uriFile = new File(dir, keyFile.getName() + KEY_URI_SUFFIX);
+        if (!uriFile.exists()) {
+            saveKeyUri(uriFile, ts.getKeyUri());
+        }
+        return keyFile;
+    }
+
+    //The keys of a stopped or deleted video, the saved uris are still used by the proxy.
+    public void unregisterKeys(File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        synchronized (mKeys) {
+            Iterator<Map.Entry<String, KeyInfo>> iterator = mKeys.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getKey().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch the key file with the headers of its video if it is not cached.
+     * @return false if the key is unknown or another fetch of it failed.
+     */
+    public boolean fetchKey(File keyFile) throws IOException {
+        if (keyFile.exists()) {
+            return true;
+        }
+        KeyInfo keyInfo;
+        synchronized (mKeys) {
+            keyInfo = mKeys.get(keyFile.getAbsolutePath());
+        }
+        String keyUri = keyInfo != null ? keyInfo.uri :
+                readKeyUri(new File(keyFile.getParentFile(), keyFile.getName() + KEY_URI_SUFFIX));
+        if (keyUri == null) {
+            return false;
+        }
+        HashMap<String, String> headers = keyInfo != null ? keyInfo.headers : null;
+        GrowingFile growingFile = GrowingFile.beginFetch(keyFile);
+        if (growingFile == null) {
+            GrowingFile fetchingFile = GrowingFile.get(keyFile);
+            if (fetchingFile != null) {
+                try {
+                    fetchingFile.awaitFinished(mConfig.getReadTimeOut());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return keyFile.exists();
+        }
+        HttpURLConnection connection = null;
+        FileOutputStream fos = null;
+        try {
+            connection = mUpstreamClient.open(keyUri, headers);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpUtils.RESPONSE_OK) {
+                throw new IOException("responseCode=" + responseCode);
+            }
+            InputStream inputStream = connection.getInputStream();
+            byte[] key = new byte[MAX_KEY_SIZE];
+            int length = 0;
+            int read;
+            while (length < key.length && (read = inputStream.read(key, length, key.length - length)) != -1) {
+                length += read;
+            }
+            if (length == 0 || (length == key.length && inputStream.read() != -1)) {
+                throw new IOException("Invalid key size " + length + ": " + keyUri);
+            }
+            fos = new FileOutputStream(growingFile.getFile());
+            fos.write(key, 0, length);
+            fos.close();
+            growingFile.setTotalLength(length);
+            growingFile.onWritten(0, length);
+            if (!growingFile.publish()) {
+                throw new IOException("Publish " + keyFile.getName() + " failed.");
+            }
+            CacheIndex.getInstance(mConfig).addSize(keyFile, length);
+            LogUtils.i("M3U8KeyManager fetched " + keyFile.getName() + ", size=" + length);
+            return true;
+        } finally {
+            LocalProxyUtils.close(fos);
+            if (growingFile.isCompleted()) {
+                mUpstreamClient.release(connection);
+            } else if (connection != null) {
+                mUpstreamClient.disconnect(connection);
+            }
+            //No-op if the file is published.
+            growingFile.abort();
+        }
+    }
+
+    private void saveKeyUri(File uriFile, String keyUri) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(uriFile);
+            fos.write(keyUri.getBytes(UTF_8));
+        } catch (IOException e) {
+            LogUtils.w("M3U8KeyManager save " + uriFile.getName() + " failed, exception=" + e);
+            uriFile.delete();
+        } finally {
+            LocalProxyUtils.close(fos);
+        }
+    }
+
+    private String readKeyUri(File uriFile) {
+        if (!uriFile.exists()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(uriFile);
+            byte[] buffer = new byte[(int) uriFile.length()];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = fis.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            return length > 0 ? new String(buffer, 0, length, UTF_8) : null;
+        } catch (IOException e) {
+            LogUtils.w("M3U8KeyManager read " + uriFile.getName() + " failed, exception=" + e);
+            return null;
+        } finally {
+            LocalProxyUtils.close(fis);
+        }
+    }
+}
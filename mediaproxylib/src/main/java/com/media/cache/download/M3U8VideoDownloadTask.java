@@ -3,13 +3,18 @@ package com.media.cache.download;
 import com.media.cache.LocalProxyConfig;
 import com.media.cache.VideoCacheInfo;
 import com.media.cache.hls.M3U8;
+import com.media.cache.hls.M3U8InitSegment;
 import com.media.cache.hls.M3U8Ts;
 import com.media.cache.hls.M3U8Utils;
+import com.media.cache.hls.M3U8Variant;
+import com.media.cache.listener.IM3U8ParseListener;
 import com.media.cache.listener.IVideoProxyCacheCallback;
+import com.media.cache.utils.BandwidthMeter;
 import com.media.cache.utils.HttpUtils;
 import com.media.cache.utils.LocalProxyThreadUtils;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -20,54 +25,173 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Locale;
 
 public class M3U8VideoDownloadTask extends VideoDownloadTask {
 
-    private static final String TS_PREFIX = "seg_";
+    static final String TS_PREFIX = "seg_";
+    private static final int READAHEAD_TS_COUNT = 3;
+    //The variant is switched only if the bandwidth stays beyond its range for so long.
+    private static final long VARIANT_SWITCH_INTERVAL = 10 * 1000L;
+    //The ts of the variants are taken as aligned if they start within this offset(ms).
+    private static final double MAX_VARIANT_OFFSET = 500;
+    //Adjacent byte ranges of the queued ts downloaded by one request at most.
+    private static final int MAX_COALESCED_TS_COUNT = 4;
+
+    //Running hls tasks by save name, the proxy reports the ts requested by the player to them.
+    private static final HashMap<String, M3U8VideoDownloadTask> sRunningTasks = new HashMap<>();
+
     private final M3U8 mM3U8;
-    private List<M3U8Ts> mTsList;
     private volatile int mCurTs;
-    private int mTotalTs;
-    private long mDuration;
+    private volatile int mPlayingTs;
+    private boolean mAboveHighWatermark; // guarded by mTsJobs
+    private volatile boolean mWindowLimited; // The readahead window is cut by the end of the parsed ts.
+    private volatile int mTotalTs; // Parsed ts, it grows until the M3U8 is parsed.
+    private volatile long mDuration; // ms
     private final Object mFileLock = new Object();
+    //The proxy playlist being written while the M3U8 is still parsed, guarded by mFileLock.
+    private GrowingFile mProxyM3U8File;
+    private FileOutputStream mProxyM3U8Stream;
+    private long mProxyM3U8Length;
+    private int mProxyM3U8TsCount;
+    private final HashMap<Integer, DownloadScheduler.Job> mTsJobs = new HashMap<>();
+    //The ts are downloaded from the source variant, the timeline of the proxy playlist is always mM3U8's.
+    private volatile M3U8 mSourceM3U8;
+    private volatile int mSourceVariant;
+    private final HashMap<Integer, M3U8> mVariantM3U8s = new HashMap<>(); // Loaded variants, null if not aligned.
+    private volatile boolean mVariantLoading;
+    private volatile long mVariantSwitchTime;
+    private final HashSet<String> mRequestedInitSegments = new HashSet<>();
+    private final HashMap<Integer, Long> mCachedTsSizes = new HashMap<>(); // Ts cached before the task, until they are parsed.
 
     public M3U8VideoDownloadTask(LocalProxyConfig config,
                                  VideoCacheInfo info, M3U8 m3u8,
                                  HashMap<String, String> headers) {
         super(config, info, headers);
         this.mM3U8 = m3u8;
-        this.mTsList = m3u8.getTsList();
-        this.mTotalTs = mTsList.size();
         this.mCurTs = 0;
-        this.mDuration = m3u8.getDuration();
-        if (mDuration == 0) {
-            mDuration = 1;
-        }
-        info.setTotalTs(mTotalTs);
+        this.mSourceM3U8 = m3u8;
+        this.mSourceVariant = m3u8.getVariantIndex();
+        this.mVariantM3U8s.put(mSourceVariant, m3u8);
+        this.mVariantSwitchTime = System.currentTimeMillis();
+        loadCachedTsSizes();
+        m3u8.addParseListener(mParseListener);
+        updateTsList();
         info.setCachedTs(mCurTs);
     }
 
+    //The ts cached by the earlier tasks are put into the size index of the M3U8 as they are parsed.
+    private void loadCachedTsSizes() {
+        File[] files = mSaveDir.listFiles();
+        if (files != null) {
+            synchronized (mCachedTsSizes) {
+                for (File file : files) {
+                    int index = parseTsIndex(file.getName(), 0);
+                    if (index >= 0) {
+                        mCachedTsSizes.put(index, file.length());
+                    }
+                }
+            }
+        }
+        applyCachedTsSizes();
+    }
+
+    private void applyCachedTsSizes() {
+        synchronized (mCachedTsSizes) {
+            if (mCachedTsSizes.isEmpty()) {
+                return;
+            }
+            int count = mM3U8.getTsCount();
+            Iterator<Map.Entry<Integer, Long>> iterator = mCachedTsSizes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Long> entry = iterator.next();
+                if (entry.getKey() < count) {
+                    mM3U8.setTsSize(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    //Called on the parsing thread while the M3U8 is still being parsed.
+    private final IM3U8ParseListener mParseListener = new IM3U8ParseListener() {
+        @Override
+        public void onTsParsed(M3U8 m3u8, M3U8Ts ts) {
+            applyCachedTsSizes();
+            onTsListChanged();
+        }
+
+        @Override
+        public void onM3U8Parsed(M3U8 m3u8) {
+            LogUtils.i("M3U8VideoDownloadTask M3U8 parsed, totalTs=" + m3u8.getTsCount());
+            onTsListChanged();
+        }
+
+        @Override
+        public void onM3U8ParseFailed(M3U8 m3u8, Throwable error) {
+            abortProxyM3U8File();
+            notifyFailed(new IOException("Parse M3U8 failed.", error));
+        }
+    };
+
+    private void updateTsList() {
+        mTotalTs = mM3U8.getTsCount();
+        mInfo.setTotalTs(mTotalTs);
+        mDuration = Math.max(1, (long) mM3U8.getDurationMs());
+    }
+
+    private void onTsListChanged() {
+        updateTsList();
+        appendProxyM3U8File();
+        if (mWindowLimited && !mShouldSuspendDownloadTask && !mInfo.getIsCompleted()) {
+            updateReadaheadWindow();
+        }
+    }
+
     @Override
     public void startDownload(IVideoProxyCacheCallback callback) {
+        endPreload();
+        setCacheActive(true);
         startTimerTask();
         mIsPlaying = false;
+        synchronized (sRunningTasks) {
+            sRunningTasks.put(mSaveName, this);
+        }
         // Download hls resource from 0 index.
         seekToDownload(0, callback);
     }
 
+    //The first ts of the preload duration, a ts is small so it is not given up for the playing videos.
+    @Override
+    public void startPreload(long preloadSize, int priority) {
+        if (mInfo.getIsCompleted() || preloadSize <= 0 || !beginPreload(priority)) {
+            return;
+        }
+        LogUtils.i("M3U8VideoDownloadTask startPreload duration=" + preloadSize + ", priority=" + mPreloadPriority);
+        synchronized (mTsJobs) {
+            int preloadEnd = getTsEnd(0, preloadSize);
+            for (int index = 0; index < preloadEnd; index++) {
+                if (!mTsJobs.containsKey(index) && !new File(mSaveDir, TS_PREFIX + index + ".ts").exists()) {
+                    mTsJobs.put(index, schedulePreloadJob(createTsRunnable(index)));
+                }
+            }
+        }
+        if (!hasPreloadJobs()) {
+            finishPreload();
+        }
+    }
+
     @Override
     public void resumeDownload() {
-        LogUtils.i("M3U8VideoDownloadTask resumeDownload, curTs="+mCurTs);
+        LogUtils.i("M3U8VideoDownloadTask resumeDownload, playingTs="+mPlayingTs);
         mShouldSuspendDownloadTask = false;
-        seekToDownload(mCurTs, mCallback);
+        seekToDownload(mPlayingTs, mCallback);
 
     }
 
@@ -78,27 +202,25 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void seekToDownload(long curPosition, long totalDuration) {
-        pauseDownload();
         //Download hls resource from the seeking position.
         LogUtils.i("seekToDownload curPosition="+curPosition +", totalDuration="+totalDuration+", "+mDuration);
         if (mDuration != totalDuration && totalDuration != 0) {
             mDuration = totalDuration;
         }
-        int curDownloadTs = mM3U8.getTsIndex(curPosition / 1000);
+        int curDownloadTs = mM3U8.getTsIndexAtTime(curPosition);
         mShouldSuspendDownloadTask = false;
         seekToDownload(curDownloadTs, mCallback);
     }
 
     @Override
     public void seekToDownload(float seekPercent, IVideoProxyCacheCallback callback) {
-        pauseDownload();
         if (seekPercent < 0) {
             seekPercent = 0f;
         }
         //Download hls resource from the seeking position.
         long curPosition = (long)(seekPercent * 1.0f / 100 * mDuration);
         LogUtils.i("seekToDownload curPosition="+curPosition);
-        int curDownloadTs = mM3U8.getTsIndex(curPosition);
+        int curDownloadTs = mM3U8.getTsIndexAtTime(curPosition);
         mShouldSuspendDownloadTask = false;
         seekToDownload(curDownloadTs, callback);
     }
@@ -113,49 +235,335 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
             return;
         }
         mCurTs = curDownloadTs;
+        mPlayingTs = Math.max(0, Math.min(curDownloadTs, mTotalTs - 1));
         LogUtils.i("seekToDownload curDownloadTs = " + curDownloadTs);
-        mDownloadExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
-        for (int index = curDownloadTs; index < mTotalTs; index++) {
-            if (mDownloadExecutor.isShutdown()) {
-                break;
+        if (!mIsPlaying) {
+            scheduleJob(mPrepareRunnable, DownloadScheduler.PRIORITY_PLAYING);
+        }
+        updateReadaheadWindow();
+
+        notifyCacheFinished();
+    }
+
+    /**
+     * The proxy received the request of a ts, slide the readahead window of its video.
+     * @param fileName {saveName}/seg_{index}.ts
+     */
+    public static void onTsRequested(String fileName) {
+        int index = parseTsIndex(fileName);
+        M3U8VideoDownloadTask task = index >= 0 ? getRunningTask(fileName) : null;
+        if (task != null) {
+            task.onPlayingTsChanged(index);
+        }
+    }
+
+    //A ts is published by the proxy for the player, its size is put into the size index.
+    public static void onTsPublished(File tsFile, long size) {
+        int index = parseTsIndex(tsFile.getName(), 0);
+        M3U8VideoDownloadTask task;
+        synchronized (sRunningTasks) {
+            task = index >= 0 ? sRunningTasks.get(tsFile.getParentFile().getName()) : null;
+        }
+        if (task != null && index < task.mTotalTs) {
+            task.mM3U8.setTsSize(index, size);
+        }
+    }
+
+    /**
+     * The url the proxy fetches the ts from, it is from the variant the task downloads now, which may
+     * be switched from the variant of the proxy playlist.
+     * @param url the url in the proxy playlist.
+     */
+    public static String getTsUrl(String fileName, String url) {
+        int index = parseTsIndex(fileName);
+        M3U8VideoDownloadTask task = index >= 0 ? getRunningTask(fileName) : null;
+        if (task == null || index >= task.mTotalTs) {
+            return url;
+        }
+        return task.getTsUrl(index);
+    }
+
+    //Index of [/]{saveName}/seg_{index}.ts, -1 if it is not a ts of a hls task.
+    private static int parseTsIndex(String fileName) {
+        int separator = fileName.lastIndexOf('/');
+        return separator > 0 ? parseTsIndex(fileName, separator + 1) : -1;
+    }
+
+    //Index of the seg_{index}.ts name starting at start, -1 if it is not a ts.
+    private static int parseTsIndex(String fileName, int start) {
+        if (!fileName.startsWith(TS_PREFIX, start) || !fileName.endsWith(".ts")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(start + TS_PREFIX.length(), fileName.length() - 3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static M3U8VideoDownloadTask getRunningTask(String fileName) {
+        int start = fileName.charAt(0) == '/' ? 1 : 0;
+        synchronized (sRunningTasks) {
+            return sRunningTasks.get(fileName.substring(start, fileName.lastIndexOf('/')));
+        }
+    }
+
+    private String getTsUrl(int index) {
+        return mSourceM3U8.getTs(index).getUrl();
+    }
+
+    /**
+     * Switch the source of the next ts to the variant fitting the sustained bandwidth. The variants
+     * of a master playlist are encoded from the same content, a variant whose ts are aligned with
+     * the ones of the proxy playlist can fill them, so the player keeps the same playlist.
+     * The player is not told of the switch, only the variants of the same codecs and resolution as
+     * the proxy playlist are used so its decoder is not reconfigured in the middle of it.
+     */
+    private void updateVariant() {
+        final List<M3U8Variant> variants = mM3U8.getVariants();
+        if (variants.size() <= 1 || mVariantLoading || !mM3U8.isParseCompleted() ||
+                System.currentTimeMillis() - mVariantSwitchTime < VARIANT_SWITCH_INTERVAL) {
+            return;
+        }
+        final int variant = M3U8Utils.selectVariant(variants, BandwidthMeter.getInstance().getBitrateEstimate(),
+                variants.get(mM3U8.getVariantIndex()));
+        if (variant == mSourceVariant) {
+            return;
+        }
+        synchronized (mVariantM3U8s) {
+            if (mVariantM3U8s.containsKey(variant)) {
+                M3U8 m3u8 = mVariantM3U8s.get(variant);
+                if (m3u8 != null) {
+                    switchVariant(variant, m3u8);
+                }
+                return;
             }
-            M3U8Ts ts = mTsList.get(index);
-            String tsName = TS_PREFIX + index + ".ts";
-            File tsFile = new File(mSaveDir, tsName);
-            mDownloadExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (isM3U8FileExisted()) {
-                            notifyVideoReady();
-                        } else {
-                            createM3U8File();
-                            notifyVideoReady();
-                        }
-                        downloadTsTask(ts, tsFile, tsName);
-                    } catch (Exception e) {
-                        LogUtils.w( "M3U8TsDownloadThread download failed, exception="+e);
-                        notifyFailed(e);
+        }
+        mVariantLoading = true;
+        LocalProxyThreadUtils.submitRunnableTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    M3U8 m3u8 = M3U8Utils.parseVariant(variants.get(variant));
+                    if (!isAligned(m3u8)) {
+                        LogUtils.w("M3U8VideoDownloadTask " + variants.get(variant) + " is not aligned, it is not used.");
+                        m3u8 = null;
+                    }
+                    synchronized (mVariantM3U8s) {
+                        mVariantM3U8s.put(variant, m3u8);
+                    }
+                    if (m3u8 != null) {
+                        switchVariant(variant, m3u8);
                     }
+                } catch (Exception e) {
+                    //Tried again after the switch interval.
+                    LogUtils.w("M3U8VideoDownloadTask load variant failed, exception=" + e);
+                    mVariantSwitchTime = System.currentTimeMillis();
+                } finally {
+                    mVariantLoading = false;
                 }
-            });
+            }
+        });
+    }
+
+    //Same ts starting at the same time, without keys, byte ranges or init segments which the proxy
+    //playlist would have to follow.
+    private boolean isAligned(M3U8 variant) {
+        if (variant.getTsCount() != mM3U8.getTsCount()) {
+            return false;
+        }
+        for (int index = 0; index < mM3U8.getTsCount(); index++) {
+            if (hasPlaylistTags(mM3U8.getTs(index)) || hasPlaylistTags(variant.getTs(index)) ||
+                    Math.abs(mM3U8.getTsStartTimeMs(index) - variant.getTsStartTimeMs(index)) > MAX_VARIANT_OFFSET) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        notifyCacheFinished();
+    private static boolean hasPlaylistTags(M3U8Ts ts) {
+        return ts.hasKey() || ts.hasByteRange() || ts.getInitSegment() != null;
+    }
+
+    private void switchVariant(int variant, M3U8 m3u8) {
+        LogUtils.i("M3U8VideoDownloadTask switch variant " + mSourceVariant + " -> " + variant +
+                ", bitrate=" + BandwidthMeter.getInstance().getBitrateEstimate());
+        mSourceM3U8 = m3u8;
+        mSourceVariant = variant;
+        mVariantSwitchTime = System.currentTimeMillis();
     }
 
-    private void downloadTsTask(M3U8Ts ts, File tsFile, String tsName) throws Exception {
+    private void onPlayingTsChanged(int index) {
+        if (index == mPlayingTs || index < 0 || index >= mTotalTs ||
+                mShouldSuspendDownloadTask || mInfo.getIsCompleted()) {
+            return;
+        }
+        mPlayingTs = index;
+        updateReadaheadWindow();
+    }
+
+    /**
+     * Schedule the uncached ts within the readahead duration from the playing ts, the queued ts
+     * out of the window are dropped.
+     * With flow control, nothing new is downloaded once the cached bytes ahead of the player reach
+     * the max buffer size, until the player consumes them below the min buffer size.
+     */
+    private void updateReadaheadWindow() {
+        int playingTs = mPlayingTs;
+        long bufferedSize = mConfig.getFlowControlEnable() ? getBufferedSize(playingTs) : 0;
+        synchronized (mTsJobs) {
+            if (mConfig.getFlowControlEnable()) {
+                if (bufferedSize >= mConfig.getMaxBufferSize()) {
+                    mAboveHighWatermark = true;
+                } else if (bufferedSize < mConfig.getMinBufferSize()) {
+                    mAboveHighWatermark = false;
+                }
+            } else {
+                mAboveHighWatermark = false;
+            }
+            int windowEnd = mAboveHighWatermark ? playingTs : getTsEnd(playingTs, mConfig.getReadaheadDuration());
+            mWindowLimited = !mAboveHighWatermark && windowEnd >= mTotalTs && !mM3U8.isParseCompleted();
+
+            Iterator<Map.Entry<Integer, DownloadScheduler.Job>> iterator = mTsJobs.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, DownloadScheduler.Job> entry = iterator.next();
+                int index = entry.getKey();
+                DownloadScheduler.Job job = entry.getValue();
+                if (job.isDone()) {
+                    iterator.remove();
+                } else if ((index < playingTs || index >= windowEnd) && job.cancelIfQueued()) {
+                    iterator.remove();
+                    onPreloadJobDone(job);
+                }
+            }
+            for (int index = playingTs; index < windowEnd; index++) {
+                int priority = getTsPriority(index, playingTs);
+                DownloadScheduler.Job job = mTsJobs.get(index);
+                if (job != null) {
+                    //The queued ts are re-prioritized by the seeking, not cancelled.
+                    mScheduler.reprioritize(job, priority);
+                } else if (!new File(mSaveDir, TS_PREFIX + index + ".ts").exists()) {
+                    mTsJobs.put(index, scheduleJob(createTsRunnable(index), priority));
+                }
+            }
+        }
+    }
+
+    //End(exclusive) of the ts covering the duration(ms) from the ts.
+    private int getTsEnd(int fromTs, long maxDuration) {
+        return Math.min(mM3U8.getTsEnd(fromTs, maxDuration), mTotalTs);
+    }
+
+    //Bytes of the continuous cached ts from the playing ts, by the size index of the M3U8.
+    private long getBufferedSize(int playingTs) {
+        return mM3U8.getCachedSizeFromIndex(playingTs, mM3U8.getCachedEnd(playingTs) - 1);
+    }
+
+    private int getTsPriority(int index, int curTs) {
+        if (index == curTs) {
+            return DownloadScheduler.PRIORITY_PLAYING;
+        }
+        if (index > curTs && index <= curTs + READAHEAD_TS_COUNT) {
+            return DownloadScheduler.PRIORITY_READAHEAD;
+        }
+        return DownloadScheduler.PRIORITY_BACKGROUND;
+    }
+
+    private Runnable createTsRunnable(int index) {
+        M3U8Ts ts = mM3U8.getTs(index);
+        requestKey(ts);
+        requestInitSegment(ts);
+        String tsName = TS_PREFIX + index + ".ts";
+        File tsFile = new File(mSaveDir, tsName);
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloadTsTask(index, ts, tsFile, tsName);
+                } catch (Exception e) {
+                    LogUtils.w( "M3U8TsDownloadThread download failed, exception="+e);
+                    notifyFailed(e);
+                }
+            }
+        };
+    }
+
+    //Download every distinct init segment once, along with the first ts which follows it.
+    private void requestInitSegment(M3U8Ts ts) {
+        final M3U8InitSegment initSegment = ts.getInitSegment();
+        if (initSegment == null) {
+            return;
+        }
+        synchronized (mRequestedInitSegments) {
+            if (!mRequestedInitSegments.add(initSegment.getName())) {
+                return;
+            }
+        }
+        final File initFile = new File(mSaveDir, initSegment.getName());
+        if (initFile.exists()) {
+            return;
+        }
+        scheduleJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!initSegment.hasByteRange()) {
+                        downloadFile(initSegment.getUrl(), initFile);
+                        return;
+                    }
+                    GrowingFile growingFile = GrowingFile.beginFetch(initFile);
+                    if (growingFile != null) {
+                        downloadRanges(initSegment.getUrl(), initSegment.getByteRangeOffset(),
+                                new GrowingFile[] { growingFile }, new long[] { initSegment.getByteRangeLength() });
+                    }
+                } catch (Exception e) {
+                    //The proxy fetches it again when the player asks for it.
+                    LogUtils.w("M3U8VideoDownloadTask download " + initFile.getName() + " failed, exception=" + e);
+                }
+            }
+        }, DownloadScheduler.PRIORITY_PLAYING);
+    }
+
+    private final Runnable mPrepareRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (!mM3U8.isParseCompleted()) {
+                    startProxyM3U8File();
+                } else if (!isM3U8FileExisted()) {
+                    createM3U8File();
+                }
+                notifyVideoReady();
+            } catch (Exception e) {
+                LogUtils.w( "M3U8VideoDownloadTask create m3u8 file failed, exception="+e);
+                notifyFailed(e);
+            }
+        }
+    };
+
+    private void downloadTsTask(int index, M3U8Ts ts, File tsFile, String tsName) throws Exception {
         if (!tsFile.exists()) {
             //ts is network resource, download ts file then rename it to local file.
-            downloadFile(ts.getUrl(), tsFile);
+            if (ts.hasByteRange()) {
+                downloadByteRanges(index, tsFile);
+            } else {
+                downloadFile(getTsUrl(index), tsFile);
+            }
+            if (isPreloading() && tsFile.exists()) {
+                mPreloadedSize.addAndGet(tsFile.length());
+            }
         }
 
         if (tsFile.exists()) {
             //rename network ts name to local file name.
             ts.setName(tsName);
-            ts.setTsSize(tsFile.length());
+            mM3U8.setTsSize(index, tsFile.length());
             mCurTs++;
             notifyCacheProgress();
+            if (mConfig.getFlowControlEnable() && !mShouldSuspendDownloadTask) {
+                //Stop queueing more ts once the high watermark is reached.
+                updateReadaheadWindow();
+            }
         }
     }
 
@@ -167,25 +575,36 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void pauseDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
-            mShouldSuspendDownloadTask = true;
-        }
+        //The window may be idle, the player's requests should not restart it either.
+        mShouldSuspendDownloadTask = true;
+        cancelTsJobs();
         updateProxyCacheInfo();
     }
 
     @Override
     public void stopDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
-            mShouldSuspendDownloadTask = true;
+        mShouldSuspendDownloadTask = true;
+        cancelTsJobs();
+        synchronized (sRunningTasks) {
+            if (sRunningTasks.get(mSaveName) == this) {
+                sRunningTasks.remove(mSaveName);
+            }
         }
         updateProxyCacheInfo();
         checkCacheFile(mSaveDir);
+        releaseKeys();
+        setCacheActive(false);
 
         cancelTimer();
     }
 
+    private void cancelTsJobs() {
+        synchronized (mTsJobs) {
+            mTsJobs.clear();
+        }
+        cancelJobs();
+    }
+
     private boolean isM3U8FileExisted() {
         synchronized (mFileLock) {
             return new File(mSaveDir, "proxy.m3u8").exists();
@@ -227,12 +646,11 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
     }
 
     private void updateProxyCacheInfo() {
-        boolean isCompleted = true;
-        for (M3U8Ts ts : mTsList) {
-            File tsFile = new File(mSaveDir, ts.getIndexName());
+        boolean isCompleted = mM3U8.isParseCompleted();
+        for (int index = 0; isCompleted && index < mTotalTs; index++) {
+            File tsFile = new File(mSaveDir, mM3U8.getTs(index).getIndexName());
             if (!tsFile.exists()) {
                 isCompleted = false;
-                break;
             }
         }
         mInfo.setIsCompleted(isCompleted);
@@ -269,10 +687,7 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
 
     private void notifyCacheProgress() {
         if (mCallback != null) {
-            mCurrentCachedSize = 0;
-            for (M3U8Ts ts : mTsList) {
-                mCurrentCachedSize += ts.getTsSize();
-            }
+            mCurrentCachedSize = mM3U8.getCachedSize();
             if (mCurrentCachedSize == 0) {
                 mCurrentCachedSize = LocalProxyUtils.countTotalSize(mSaveDir);
             }
@@ -296,80 +711,173 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
         }
     }
 
-    private static final int REDIRECTED_COUNT = 3;
-
     public void downloadFile(String url, File file) throws Exception {
+        GrowingFile growingFile = GrowingFile.beginFetch(file);
+        if (growingFile == null) {
+            //The proxy is fetching the ts for the player, wait for it instead of downloading it again.
+            GrowingFile fetchingFile = GrowingFile.get(file);
+            if (fetchingFile != null) {
+                fetchingFile.awaitFinished(mConfig.getReadTimeOut());
+            }
+            return;
+        }
         HttpURLConnection connection = null;
-        InputStream inputStream = null;
         try {
-            connection = openConnection(url);
+            connection = mUpstreamClient.open(url, mHeaders);
             int responseCode = connection.getResponseCode();
             if (responseCode == HttpUtils.RESPONSE_OK) {
-                inputStream = connection.getInputStream();
-                saveFile(inputStream, file);
+                growingFile.setTotalLength(UpstreamClient.getContentLength(connection));
+                long startTime = System.currentTimeMillis();
+                saveFile(connection.getInputStream(), growingFile, -1);
+                if (growingFile.isCompleted()) {
+                    BandwidthMeter.getInstance().onTransferred(growingFile.getTotalLength(),
+                            System.currentTimeMillis() - startTime);
+                    updateVariant();
+                }
             }
         }catch (Exception e) {
             throw e;
         }finally {
-            if (connection != null)
-                connection.disconnect();
-            LocalProxyUtils.close(inputStream);
+            //Keep the connection alive for the next ts if the body is read to the end.
+            if (growingFile.isCompleted()) {
+                mUpstreamClient.release(connection);
+            } else {
+                mUpstreamClient.disconnect(connection);
+            }
+            //No-op if the file is published.
+            growingFile.abort();
         }
 
     }
 
-    private HttpURLConnection openConnection(String videoUrl)
-            throws Exception {
-        HttpURLConnection connection;
-        boolean redirected;
-        int redirectedCount = 0;
-        do {
-            URL url = new URL(videoUrl);
-            connection = (HttpURLConnection)url.openConnection();
+    /**
+     * Download the byte range of the ts, the queued ts whose ranges continue it in the same resource
+     * are downloaded by the same request, its body is split into their files.
+     */
+    private void downloadByteRanges(int index, File tsFile) throws Exception {
+        GrowingFile growingFile = GrowingFile.beginFetch(tsFile);
+        if (growingFile == null) {
+            //The proxy or a coalesced request is fetching the ts.
+            GrowingFile fetchingFile = GrowingFile.get(tsFile);
+            if (fetchingFile != null) {
+                fetchingFile.awaitFinished(mConfig.getReadTimeOut());
+            }
+            return;
+        }
+        M3U8Ts ts = mM3U8.getTs(index);
+        List<GrowingFile> files = new ArrayList<>();
+        files.add(growingFile);
+        long end = ts.getByteRangeOffset() + ts.getByteRangeLength();
+        for (int next = index + 1; next < mTotalTs && files.size() < MAX_COALESCED_TS_COUNT; next++) {
+            M3U8Ts nextTs = mM3U8.getTs(next);
+            if (!nextTs.hasByteRange() || nextTs.getByteRangeOffset() != end ||
+                    !nextTs.getUrl().equals(ts.getUrl()) || !isTsQueued(next)) {
+                break;
+            }
+            GrowingFile nextFile = GrowingFile.beginFetch(new File(mSaveDir, TS_PREFIX + next + ".ts"));
+            if (nextFile == null) {
+                break;
+            }
+            files.add(nextFile);
+            end += nextTs.getByteRangeLength();
+        }
+        long[] lengths = new long[files.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = mM3U8.getTs(index + i).getByteRangeLength();
+        }
+        downloadRanges(ts.getUrl(), ts.getByteRangeOffset(), files.toArray(new GrowingFile[0]), lengths);
+        for (int i = 1; isPreloading() && i < lengths.length; i++) {
+            //The jobs of the coalesced ts find them cached.
+            if (files.get(i).isCompleted()) {
+                mPreloadedSize.addAndGet(lengths[i]);
+            }
+        }
+    }
 
-            if (mConfig.shouldIgnoreAllCertErrors() && connection instanceof HttpsURLConnection) {
-                trustAllCert((HttpsURLConnection)(connection));
+    //The job of the ts is waiting in the queue, it is not cancelled by the readahead window.
+    private boolean isTsQueued(int index) {
+        synchronized (mTsJobs) {
+            DownloadScheduler.Job job = mTsJobs.get(index);
+            return job != null && !job.isDone();
+        }
+    }
+
+    //Download the contiguous ranges from the offset by one request, every file is published once its range is read.
+    private void downloadRanges(String url, long offset, GrowingFile[] files, long[] lengths) throws IOException {
+        long length = 0;
+        for (long rangeLength : lengths) {
+            length += rangeLength;
+        }
+        HashMap<String, String> headers = new HashMap<>();
+        if (mHeaders != null) {
+            headers.putAll(mHeaders);
+        }
+        headers.put("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        HttpURLConnection connection = null;
+        boolean isConsumed = false;
+        try {
+            connection = mUpstreamClient.open(url, headers);
+            int responseCode = connection.getResponseCode();
+            //The server ignores the 'Range', the ranges from the beginning are the head of the resource.
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL &&
+                    !(responseCode == HttpUtils.RESPONSE_OK && offset == 0)) {
+                throw new IOException("Download range " + offset + "-" + (offset + length - 1) +
+                        " failed, responseCode=" + responseCode);
             }
-            connection.setConnectTimeout(mConfig.getConnTimeOut());
-            connection.setReadTimeout(mConfig.getReadTimeOut());
-            if (mHeaders != null) {
-                for (Map.Entry<String, String> item : mHeaders.entrySet()) {
-                    connection.setRequestProperty(item.getKey(), item.getValue());
+            InputStream inputStream = connection.getInputStream();
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < files.length; i++) {
+                files[i].setTotalLength(lengths[i]);
+                saveFile(inputStream, files[i], lengths[i]);
+                if (!files[i].isCompleted()) {
+                    return;
                 }
             }
-            int code = connection.getResponseCode();
-            redirected = code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP ||
-                    code == HttpURLConnection.HTTP_SEE_OTHER;
-            if (redirected) {
-                redirectedCount++;
-                connection.disconnect();
+            BandwidthMeter.getInstance().onTransferred(length, System.currentTimeMillis() - startTime);
+            isConsumed = responseCode == HttpURLConnection.HTTP_PARTIAL;
+        } finally {
+            //The rest of a whole resource is not read, the connection can not be reused.
+            if (isConsumed) {
+                mUpstreamClient.release(connection);
+            } else if (connection != null) {
+                mUpstreamClient.disconnect(connection);
             }
-            if (redirectedCount > REDIRECTED_COUNT) {
-                throw new Exception("Too many redirects: " +
-                        redirectedCount);
+            for (GrowingFile file : files) {
+                //No-op if the file is published.
+                file.abort();
             }
-        } while (redirected);
-        return connection;
+        }
     }
 
-    private void saveFile(InputStream inputStream, File file) {
+    //Save the length of the stream to the file, to the end of the stream if the length is negative.
+    private void saveFile(InputStream inputStream, GrowingFile growingFile, long length) {
         FileOutputStream fos = null;
+        boolean saved = false;
         try {
-            fos = new FileOutputStream(file);
+            fos = new FileOutputStream(growingFile.getFile());
             int len = 0;
+            long position = 0;
             byte[] buf = new byte[BUFFER_SIZE];
-            while ((len = inputStream.read(buf)) != -1) {
+            while ((length < 0 || position < length) && (len = inputStream.read(buf, 0,
+                    length < 0 ? buf.length : (int) Math.min(buf.length, length - position))) != -1) {
                 fos.write(buf, 0, len);
+                growingFile.onWritten(position, len);
+                position += len;
             }
+            saved = true;
         } catch (IOException e) {
-            LogUtils.w(file.getAbsolutePath() + " saveFile failed, exception="+e);
-            if (file.exists()) {
-                file.delete();
-            }
+            LogUtils.w(growingFile.getFile().getAbsolutePath() + " saveFile failed, exception="+e);
         } finally {
-            LocalProxyUtils.close(inputStream);
             LocalProxyUtils.close(fos);
         }
+        if (saved && growingFile.publish()) {
+            mCacheIndex.addSize(mSaveDir, growingFile.getTotalLength());
+            //The coalesced ts of a byte range request are published here, not by their own jobs.
+            int index = parseTsIndex(growingFile.getCacheFile().getName(), 0);
+            if (index >= 0 && index < mTotalTs) {
+                mM3U8.setTsSize(index, growingFile.getTotalLength());
+            }
+        }
     }
 
     private void createM3U8File() throws IOException {
@@ -380,36 +888,9 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
             }
 
             BufferedWriter bfw = new BufferedWriter(new FileWriter(tempM3U8File, false));
-            bfw.write(M3U8Utils.PLAYLIST_HEADER + "\n");
-            bfw.write(M3U8Utils.TAG_VERSION + ":" + mM3U8.getVersion() + "\n");
-            bfw.write(M3U8Utils.TAG_MEDIA_SEQUENCE + ":" + mM3U8.getSequence()+"\n");
-
-            bfw.write(M3U8Utils.TAG_TARGET_DURATION + ":" + mM3U8.getTargetDuration() + "\n");
-
-            for (M3U8Ts m3u8Ts : mTsList) {
-                if (m3u8Ts.hasKey()) {
-                    if (m3u8Ts.getMethod() != null) {
-                        String key = "METHOD=" + m3u8Ts.getMethod();
-                        if (m3u8Ts.getKeyUri() != null) {
-                            File keyFile = new File(mSaveDir, m3u8Ts.getLocalKeyUri());
-                            if (!m3u8Ts.isMessyKey() && keyFile.exists()) {
-                                key += ",URI=\"" + m3u8Ts.getLocalKeyUri() + "\"";
-                            } else {
-                                key += ",URI=\"" + m3u8Ts.getKeyUri() + "\"";
-                            }
-                        }
-                        if (m3u8Ts.getKeyIV() != null) {
-                            key += ",IV=" + m3u8Ts.getKeyIV();
-                        }
-                        bfw.write(M3U8Utils.TAG_KEY + ":" + key + "\n");
-                    }
-                }
-                if (m3u8Ts.hasDiscontinuity()) {
-                    bfw.write(M3U8Utils.TAG_DISCONTINUITY+"\n");
-                }
-                bfw.write(M3U8Utils.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration()+",\n");
-                bfw.write(m3u8Ts.getProxyUrl(mConfig.getHost(), mConfig.getPort(), mSaveName));
-                bfw.newLine();
+            appendHeaderTags(bfw);
+            for (int index = 0; index < mTotalTs; index++) {
+                appendTsTags(bfw, index);
             }
             bfw.write(M3U8Utils.TAG_ENDLIST);
             bfw.flush();
@@ -422,5 +903,120 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
             tempM3U8File.renameTo(localM3U8File);
         }
     }
-}
 
+    /**
+     * The M3U8 is still being parsed, the proxy playlist is written in place as a growing file, the
+     * proxy serves the written lines to the player and waits for the rest until the ENDLIST tag.
+     */
+    private void startProxyM3U8File() throws IOException {
+        synchronized (mFileLock) {
+            if (mProxyM3U8Stream != null) {
+                return;
+            }
+            File localM3U8File = new File(mSaveDir, "proxy.m3u8");
+            mProxyM3U8File = GrowingFile.register(localM3U8File);
+            mProxyM3U8Stream = new FileOutputStream(localM3U8File, false);
+            mProxyM3U8Length = 0;
+            mProxyM3U8TsCount = 0;
+            StringBuilder builder = new StringBuilder();
+            appendHeaderTags(builder);
+            writeProxyM3U8File(builder);
+        }
+        appendProxyM3U8File();
+    }
+
+    //Append the ts parsed since the last call, the file is completed with the M3U8.
+    private void appendProxyM3U8File() {
+        synchronized (mFileLock) {
+            if (mProxyM3U8Stream == null) {
+                return;
+            }
+            //The count is final once the M3U8 is parsed, so read it after the parsed flag.
+            boolean parsed = mM3U8.isParseCompleted();
+            int tsCount = mM3U8.getTsCount();
+            try {
+                StringBuilder builder = new StringBuilder();
+                for (; mProxyM3U8TsCount < tsCount; mProxyM3U8TsCount++) {
+                    appendTsTags(builder, mProxyM3U8TsCount);
+                }
+                if (parsed) {
+                    builder.append(M3U8Utils.TAG_ENDLIST);
+                }
+                writeProxyM3U8File(builder);
+            } catch (IOException e) {
+                LogUtils.w("M3U8VideoDownloadTask write proxy m3u8 failed, exception=" + e);
+                abortProxyM3U8File();
+                return;
+            }
+            if (parsed) {
+                LocalProxyUtils.close(mProxyM3U8Stream);
+                mProxyM3U8Stream = null;
+                mProxyM3U8File.setTotalLength(mProxyM3U8Length);
+                mProxyM3U8File.markCompleted();
+                mProxyM3U8File.release();
+                mProxyM3U8File = null;
+            }
+        }
+    }
+
+    private void writeProxyM3U8File(StringBuilder builder) throws IOException {
+        if (builder.length() == 0) {
+            return;
+        }
+        byte[] bytes = builder.toString().getBytes("UTF-8");
+        mProxyM3U8Stream.write(bytes);
+        mProxyM3U8File.onWritten(mProxyM3U8Length, bytes.length);
+        mProxyM3U8Length += bytes.length;
+    }
+
+    //The player gets an error for the incomplete playlist, it is written again by the next start.
+    private void abortProxyM3U8File() {
+        synchronized (mFileLock) {
+            if (mProxyM3U8Stream == null) {
+                return;
+            }
+            LocalProxyUtils.close(mProxyM3U8Stream);
+            mProxyM3U8Stream = null;
+            mProxyM3U8File.abort();
+            mProxyM3U8File = null;
+            new File(mSaveDir, "proxy.m3u8").delete();
+        }
+    }
+
+    private void appendHeaderTags(Appendable out) throws IOException {
+        out.append(M3U8Utils.PLAYLIST_HEADER + "\n");
+        out.append(M3U8Utils.TAG_VERSION + ":" + mM3U8.getVersion() + "\n");
+        out.append(M3U8Utils.TAG_MEDIA_SEQUENCE + ":" + mM3U8.getSequence() + "\n");
+        out.append(M3U8Utils.TAG_TARGET_DURATION + ":" + mM3U8.getTargetDuration() + "\n");
+    }
+
+    private void appendTsTags(Appendable out, int index) throws IOException {
+        M3U8Ts m3u8Ts = mM3U8.getTs(index);
+        if (m3u8Ts.hasKey()) {
+            if (m3u8Ts.getMethod() != null) {
+                String key = "METHOD=" + m3u8Ts.getMethod();
+                if (m3u8Ts.getKeyUri() != null) {
+                    //The key is served by the proxy, it is fetched when the player asks if it is not cached yet.
+                    mKeyManager.registerKey(mSaveDir, m3u8Ts, mHeaders);
+                    key += ",URI=\"" + m3u8Ts.getLocalKeyUri() + "\"";
+                }
+                if (m3u8Ts.getKeyIV() != null) {
+                    key += ",IV=" + m3u8Ts.getKeyIV();
+                }
+                out.append(M3U8Utils.TAG_KEY + ":" + key + "\n");
+            }
+        }
+        if (m3u8Ts.hasDiscontinuity()) {
+            out.append(M3U8Utils.TAG_DISCONTINUITY + "\n");
+        }
+        //The proxy serves the byte range of the init segment and of the ts as a whole file.
+        M3U8InitSegment initSegment = m3u8Ts.getInitSegment();
+        if (initSegment != null && (index == 0 || !initSegment.equals(mM3U8.getTs(index - 1).getInitSegment()))) {
+            out.append(M3U8Utils.TAG_MAP + ":URI=\"" +
+                    initSegment.getProxyUrl(mConfig.getHost(), mConfig.getPort(), mSaveName) + "\"\n");
+        }
+        out.append(M3U8Utils.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration() + ",\n");
+        out.append(m3u8Ts.getProxyUrl(mConfig.getHost(), mConfig.getPort(), mSaveName));
+        out.append("\n");
+    }
+}
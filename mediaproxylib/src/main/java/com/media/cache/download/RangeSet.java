@@ -0,0 +1,149 @@
+package com.media.cache.download;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Sorted set of disjoint byte ranges [start, end) of a video file.
+ * The ranges are kept by start in two primitive arrays, a lookup is a binary search and an
+ * added range is coalesced with the ranges it overlaps or touches.
+ * Not thread safe, the owner synchronizes the access.
+ */
+public class RangeSet {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mStarts = new long[INITIAL_CAPACITY];
+    private long[] mEnds = new long[INITIAL_CAPACITY]; // exclusive.
+    private int mSize;
+    private long mLength; // Bytes of all the ranges.
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getStart(int index) {
+        return mStarts[index];
+    }
+
+    public long getEnd(int index) {
+        return mEnds[index];
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mLength = 0;
+    }
+
+    public void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        //First range to coalesce: the one containing or touching start, else the one after it.
+        int first = floorIndex(start);
+        if (first < 0 || mEnds[first] < start) {
+            first++;
+        }
+        //Last range to coalesce: the last one starting at or before end.
+        int last = floorIndex(end);
+        if (last < first) {
+            insert(first, start, end);
+            return;
+        }
+        long newStart = Math.min(start, mStarts[first]);
+        long newEnd = Math.max(end, mEnds[last]);
+        for (int index = first; index <= last; index++) {
+            mLength -= mEnds[index] - mStarts[index];
+        }
+        mStarts[first] = newStart;
+        mEnds[first] = newEnd;
+        mLength += newEnd - newStart;
+        int removed = last - first;
+        if (removed > 0) {
+            System.arraycopy(mStarts, last + 1, mStarts, first + 1, mSize - last - 1);
+            System.arraycopy(mEnds, last + 1, mEnds, first + 1, mSize - last - 1);
+            mSize -= removed;
+        }
+    }
+
+    public boolean contains(long position) {
+        int index = floorIndex(position);
+        return index >= 0 && mEnds[index] > position;
+    }
+
+    //First byte at or after the position which is not in the set.
+    public long nextMissing(long position) {
+        int index = floorIndex(position);
+        return (index >= 0 && mEnds[index] > position) ? mEnds[index] : position;
+    }
+
+    //Start of the first range after the position, Long.MAX_VALUE if there is none.
+    public long nextStart(long position) {
+        int index = floorIndex(position) + 1;
+        return index < mSize ? mStarts[index] : Long.MAX_VALUE;
+    }
+
+    //Bytes of the set in [start, end).
+    public long getCoveredLength(long start, long end) {
+        long length = 0;
+        for (int index = Math.max(0, floorIndex(start)); index < mSize && mStarts[index] < end; index++) {
+            length += Math.max(0, Math.min(end, mEnds[index]) - Math.max(start, mStarts[index]));
+        }
+        return length;
+    }
+
+    //start -> end of all the ranges, in the order of start.
+    public LinkedHashMap<Long, Long> toMap() {
+        LinkedHashMap<Long, Long> map = new LinkedHashMap<>();
+        for (int index = 0; index < mSize; index++) {
+            map.put(mStarts[index], mEnds[index]);
+        }
+        return map;
+    }
+
+    //Index of the last range starting at or before the position, -1 if there is none.
+    private int floorIndex(long position) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private void insert(int index, long start, long end) {
+        if (mSize == mStarts.length) {
+            long[] starts = new long[mSize * 2];
+            long[] ends = new long[mSize * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mSize);
+            System.arraycopy(mEnds, 0, ends, 0, mSize);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        System.arraycopy(mStarts, index, mStarts, index + 1, mSize - index);
+        System.arraycopy(mEnds, index, mEnds, index + 1, mSize - index);
+        mStarts[index] = start;
+        mEnds[index] = end;
+        mSize++;
+        mLength += end - start;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RangeSet[");
+        for (int index = 0; index < mSize; index++) {
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append(mStarts[index]).append('-').append(mEnds[index]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -2,34 +2,33 @@ package com.media.cache.download;
 
 import com.media.cache.LocalProxyConfig;
 import com.media.cache.VideoCacheInfo;
+import com.media.cache.hls.M3U8Ts;
 import com.media.cache.listener.IVideoProxyCacheCallback;
 import com.media.cache.utils.LocalProxyThreadUtils;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
 
 import java.io.File;
-import java.security.cert.X509Certificate;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class VideoDownloadTask {
 
     private static final int DEFAULT_SLEEP_TIME_MILLIS = 5 * 100;
-    protected static final int THREAD_COUNT = 3;
     protected static final int BUFFER_SIZE = LocalProxyUtils.DEFAULT_BUFFER_SIZE;
 
-    protected ExecutorService mDownloadExecutor;
+    protected final DownloadScheduler mScheduler;
+    private final List<DownloadScheduler.Job> mJobs = new ArrayList<>();
+    private final HashSet<DownloadScheduler.Job> mPreloadJobs = new HashSet<>();
     protected IVideoProxyCacheCallback mCallback;
     protected volatile boolean mShouldSuspendDownloadTask = false;
     protected volatile boolean mIsPlaying = false;
@@ -37,6 +36,14 @@ public abstract class VideoDownloadTask {
     protected final VideoCacheInfo mInfo;
     protected final String mFinalUrl;
     protected final HashMap<String, String> mHeaders;
+    protected final UpstreamClient mUpstreamClient;
+    protected final CacheIndex mCacheIndex;
+    protected final M3U8KeyManager mKeyManager;
+    private final HashSet<String> mRequestedKeyUris = new HashSet<>();
+    private boolean mCacheActive;
+    private volatile boolean mPreloading;
+    protected volatile int mPreloadPriority = DownloadScheduler.PRIORITY_PRELOAD;
+    protected final AtomicLong mPreloadedSize = new AtomicLong();
     protected String mProxyAuthInfo = "";
     protected File mSaveDir;
     protected String mSaveName;
@@ -56,6 +63,10 @@ public abstract class VideoDownloadTask {
         mConfig = config;
         mInfo = info;
         mHeaders = headers;
+        mUpstreamClient = UpstreamClient.getInstance(config);
+        mScheduler = DownloadScheduler.getInstance(config);
+        mCacheIndex = CacheIndex.getInstance(config);
+        mKeyManager = M3U8KeyManager.getInstance(config);
         mFinalUrl = info.getFinalUrl();
         mSaveName = LocalProxyUtils.computeMD5(info.getVideoUrl());
         mSaveDir = new File(mConfig.getCacheRoot(), mSaveName);
@@ -88,10 +99,123 @@ public abstract class VideoDownloadTask {
         if (mInfo != null && mInfo.getIsCompleted()) {
             return true;
         }
-        if (mDownloadExecutor != null) {
-            return mDownloadExecutor.isShutdown();
+        synchronized (mJobs) {
+            removeDoneJobs();
+            return mJobs.isEmpty();
+        }
+    }
+
+    protected DownloadScheduler.Job scheduleJob(Runnable runnable, int priority) {
+        DownloadScheduler.Job job = mScheduler.schedule(runnable, priority);
+        synchronized (mJobs) {
+            removeDoneJobs();
+            mJobs.add(job);
+        }
+        return job;
+    }
+
+    //Cancel the queued and running jobs of this video only.
+    protected void cancelJobs() {
+        List<DownloadScheduler.Job> jobs;
+        synchronized (mJobs) {
+            jobs = new ArrayList<>(mJobs);
+            mJobs.clear();
+        }
+        for (DownloadScheduler.Job job : jobs) {
+            job.cancel();
+        }
+        clearPreloadJobs();
+        finishPreload();
+    }
+
+    //The preload ends with the last of these jobs, whether it runs or is cancelled before it starts.
+    protected DownloadScheduler.Job schedulePreloadJob(final Runnable runnable) {
+        final DownloadScheduler.Job[] job = new DownloadScheduler.Job[1];
+        synchronized (mPreloadJobs) {
+            job[0] = scheduleJob(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        onPreloadJobDone(job[0]);
+                    }
+                }
+            }, mPreloadPriority);
+            mPreloadJobs.add(job[0]);
+        }
+        return job[0];
+    }
+
+    //Called once the job is finished or cancelled, the other jobs are ignored.
+    protected void onPreloadJobDone(DownloadScheduler.Job job) {
+        synchronized (mPreloadJobs) {
+            if (!mPreloadJobs.remove(job) || !mPreloadJobs.isEmpty()) {
+                return;
+            }
+        }
+        if (isPreloading()) {
+            LogUtils.i("VideoDownloadTask preload finished, size=" + mPreloadedSize.get());
+            finishPreload();
+        }
+    }
+
+    protected boolean hasPreloadJobs() {
+        synchronized (mPreloadJobs) {
+            return !mPreloadJobs.isEmpty();
+        }
+    }
+
+    private void clearPreloadJobs() {
+        synchronized (mPreloadJobs) {
+            mPreloadJobs.clear();
+        }
+    }
+
+    //Fetch every distinct key of the hls video once, along with the first ts which need it.
+    protected void requestKey(M3U8Ts ts) {
+        if (!ts.hasKey() || ts.getKeyUri() == null) {
+            return;
+        }
+        synchronized (mRequestedKeyUris) {
+            if (!mRequestedKeyUris.add(ts.getKeyUri())) {
+                return;
+            }
+        }
+        final File keyFile = mKeyManager.registerKey(mSaveDir, ts, mHeaders);
+        if (keyFile.exists()) {
+            return;
+        }
+        scheduleJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mKeyManager.fetchKey(keyFile)) {
+                        LogUtils.w("VideoDownloadTask fetch " + keyFile.getName() + " failed.");
+                    }
+                } catch (IOException e) {
+                    //The proxy fetches it again when the player asks for it.
+                    LogUtils.w("VideoDownloadTask fetch " + keyFile.getName() + " failed, exception=" + e);
+                }
+            }
+        }, DownloadScheduler.PRIORITY_PLAYING);
+    }
+
+    //The keys are registered again by the next start, with the headers of that start.
+    protected void releaseKeys() {
+        synchronized (mRequestedKeyUris) {
+            mRequestedKeyUris.clear();
+        }
+        mKeyManager.unregisterKeys(mSaveDir);
+    }
+
+    private void removeDoneJobs() {
+        Iterator<DownloadScheduler.Job> iterator = mJobs.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
         }
-        return true;
     }
 
     protected void startTimerTask() {
@@ -120,6 +244,13 @@ public abstract class VideoDownloadTask {
 
     public abstract void startDownload(IVideoProxyCacheCallback callback);
 
+    /**
+     * Download the head of the video before it is played, below the priority of all the playing videos.
+     * @param preloadSize milliseconds of a hls video, bytes of the other videos.
+     * @param priority 0 is the most urgent preload, e.g. the next video of a feed.
+     */
+    public abstract void startPreload(long preloadSize, int priority);
+
     public abstract void resumeDownload();
 
     public abstract void seekToDownload(float seekPercent);
@@ -136,11 +267,10 @@ public abstract class VideoDownloadTask {
 
     public abstract void stopDownload();
 
-
-    //1.Update cache file's last-modified-time.
-    //2.Get LRU files.
-    //3.Delete the files by LRU.
+    //1.Update the video's last-modified-time, the cache index is ordered by it after restart.
+    //2.Delete the least recently used videos by the cache index.
     protected void checkCacheFile(File saveDir) {
+        mCacheIndex.touch(saveDir);
         try {
             LocalProxyThreadUtils.submitCallbackTask(new CheckFileCallable(saveDir));
         } catch (Exception e) {
@@ -148,88 +278,76 @@ public abstract class VideoDownloadTask {
         }
     }
 
-    private class CheckFileCallable implements Callable<Void> {
-
-        private File mDir;
+    public boolean isPreloading() {
+        return mPreloading;
+    }
 
-        public CheckFileCallable(File dir) {
-            mDir = dir;
-        }
+    //Bytes downloaded by the preload, they are wasted if the video is not played.
+    public long getPreloadedSize() {
+        return mPreloadedSize.get();
+    }
 
-        @Override
-        public Void call() throws Exception {
-            LocalProxyUtils.setLastModifiedNow(mDir);
-            trimCacheFile(mDir.getParentFile());
-            return null;
+    //The video is pinned while it is preloaded, false if it is preloaded or played already.
+    protected synchronized boolean beginPreload(int priority) {
+        if (mCacheActive) {
+            return false;
         }
+        clearPreloadJobs();
+        mPreloading = true;
+        mPreloadPriority = DownloadScheduler.PRIORITY_PRELOAD + Math.max(0, priority);
+        setCacheActive(true);
+        return true;
     }
 
-    private void trimCacheFile(File dir) {
-        List<File> files = LocalProxyUtils.getLruFileList(dir);
-        trimCacheFile(files, mConfig.getCacheSize());
+    //The head is downloaded, the video can be evicted again until it is played.
+    protected synchronized void finishPreload() {
+        if (mPreloading) {
+            mPreloading = false;
+            setCacheActive(false);
+        }
     }
 
-    private void trimCacheFile(List<File> files, long limitCacheSize) {
-        long totalSize = LocalProxyUtils.countTotalSize(files);
-        int totalCount = files.size();
-        for (File file : files) {
-            boolean shouldDeleteFile = shouldDeleteFile(totalSize, totalCount, limitCacheSize);
-            if (shouldDeleteFile) {
-                long fileLength = LocalProxyUtils.countTotalSize(file);
-                boolean deleted = LocalProxyUtils.deleteFile(file);
-                if (deleted) {
-                    totalSize -= fileLength;
-                    totalCount--;
-                    LogUtils.i("trimCacheFile okay.");
-                } else {
-                    LogUtils.w("trimCacheFile delete file " + file.getAbsolutePath() +" failed.");
-                }
+    //The preloaded video is played, its queued jobs are not behind the other preloads any more.
+    protected void endPreload() {
+        synchronized (this) {
+            if (!mPreloading) {
+                return;
             }
+            mPreloading = false;
+        }
+        clearPreloadJobs();
+        List<DownloadScheduler.Job> jobs;
+        synchronized (mJobs) {
+            removeDoneJobs();
+            jobs = new ArrayList<>(mJobs);
+        }
+        for (DownloadScheduler.Job job : jobs) {
+            mScheduler.reprioritize(job, DownloadScheduler.PRIORITY_PLAYING);
         }
     }
 
-    private boolean shouldDeleteFile(long totalSize, int totalCount, long limitCacheSize) {
-        if (totalCount <= 1) {
-            return false;
+    //The cache of an active video is not evicted.
+    protected synchronized void setCacheActive(boolean active) {
+        if (mCacheActive != active) {
+            mCacheActive = active;
+            mCacheIndex.setActive(mSaveDir, active);
         }
-        return totalSize > limitCacheSize;
     }
 
-    protected void trustAllCert(HttpsURLConnection httpsURLConnection) {
-        SSLContext sslContext = null;
-        try {
-            sslContext = SSLContext.getInstance("TLS");
-            if (sslContext != null) {
-                TrustManager tm = new X509TrustManager() {
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
+    private class CheckFileCallable implements Callable<Void> {
 
-                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
-                        LogUtils.i( "checkClientTrusted.");
-                    }
+        private File mDir;
 
-                    public void checkServerTrusted(X509Certificate[] chain, String authType) {
-                        LogUtils.i("checkServerTrusted.");
-                    }
-                };
-                sslContext.init(null, new TrustManager[] { tm }, null);
-            }
-        } catch (Exception e) {
-            LogUtils.w( "SSLContext init failed");
+        public CheckFileCallable(File dir) {
+            mDir = dir;
         }
-        // Cannot do ssl checkl.
-        if (sslContext != null) {
-            httpsURLConnection.setSSLSocketFactory(sslContext.getSocketFactory());
+
+        @Override
+        public Void call() throws Exception {
+            LocalProxyUtils.setLastModifiedNow(mDir);
+            mCacheIndex.trim();
+            return null;
         }
-        //Trust the cert.
-        HostnameVerifier hostnameVerifier = new HostnameVerifier() {
-            @Override
-            public boolean verify(String hostname, SSLSession session) {
-                return true;
-            }
-        };
-        httpsURLConnection.setHostnameVerifier(hostnameVerifier);
     }
 
 }
@@ -0,0 +1,42 @@
+package com.media.cache.eviction;
+
+import java.util.Set;
+
+/**
+ * Decides which cached video is deleted when the cache is full.
+ *
+ * The videos are identified by the name of their directory under the cache root. All the
+ * methods are called under the lock of the cache index, an implementation needs no locking.
+ */
+public interface EvictionPolicy {
+
+    //A video is cached, time is when it was last used.
+    void onAdded(String key, long size, long time);
+
+    //A cached video is played again.
+    void onAccessed(String key, long time);
+
+    //Bytes of the video are downloaded or deleted.
+    void onSizeChanged(String key, long size);
+
+    /**
+     * Removes the next video to delete because the cache is full.
+     * @param pinned videos which are playing or downloading, they must not be returned.
+     * @return null if no video can be evicted.
+     */
+    String evict(Set<String> pinned);
+
+    /**
+     * The next video {@link #evict(Set)} would remove, it is kept, e.g. only its tail is deleted and
+     * its size is changed then.
+     * @param pinned videos which must not be returned.
+     * @return null if no video can be evicted.
+     */
+    String peekVictim(Set<String> pinned);
+
+    //Removes a video which should be deleted even if the cache is not full, null if there is none.
+    String evictExpired(long now, Set<String> pinned);
+
+    //The cache root is scanned again, all the videos are added again.
+    void clear();
+}
@@ -0,0 +1,118 @@
+package com.media.cache.eviction;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size: every video has a value H = L + 1 / size, set when it is cached or played,
+ * the video of the lowest H is evicted first and L becomes its H. Large videos are evicted
+ * before small ones, and L ages the videos which are not played any more.
+ */
+public class GreedyDualSizeEvictionPolicy implements EvictionPolicy {
+
+    //1 / size would be too small for the double precision after L grows.
+    private static final double COST = 1024 * 1024;
+
+    private final HashMap<String, Node> mNodes = new HashMap<>();
+    private final TreeSet<Node> mOrder = new TreeSet<>(new Comparator<Node>() {
+        @Override
+        public int compare(Node node1, Node node2) {
+            int result = Double.compare(node1.value, node2.value);
+            return result != 0 ? result : Long.compare(node1.sequence, node2.sequence);
+        }
+    });
+    private double mInflation; // L.
+    private long mSequence;
+
+    private static class Node {
+        final String key;
+        long size;
+        double base; // L when the video was last used.
+        double value;
+        long sequence;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    @Override
+    public void onAdded(String key, long size, long time) {
+        Node node = mNodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            mNodes.put(key, node);
+        } else {
+            mOrder.remove(node);
+        }
+        node.size = size;
+        node.base = mInflation;
+        update(node);
+    }
+
+    @Override
+    public void onAccessed(String key, long time) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            mOrder.remove(node);
+            node.base = mInflation;
+            update(node);
+        }
+    }
+
+    @Override
+    public void onSizeChanged(String key, long size) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            mOrder.remove(node);
+            node.size = size;
+            update(node);
+        }
+    }
+
+    @Override
+    public String evict(Set<String> pinned) {
+        Iterator<Node> iterator = mOrder.iterator();
+        while (iterator.hasNext()) {
+            Node node = iterator.next();
+            if (!pinned.contains(node.key)) {
+                iterator.remove();
+                mNodes.remove(node.key);
+                mInflation = Math.max(mInflation, node.value);
+                return node.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String peekVictim(Set<String> pinned) {
+        for (Node node : mOrder) {
+            if (!pinned.contains(node.key)) {
+                return node.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String evictExpired(long now, Set<String> pinned) {
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mOrder.clear();
+        mInflation = 0;
+    }
+
+    private void update(Node node) {
+        node.value = node.base + COST / Math.max(1, node.size);
+        node.sequence = mSequence++;
+        mOrder.add(node);
+    }
+}
@@ -0,0 +1,94 @@
+package com.media.cache.eviction;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Evicts the least frequently played video first, the least recently used one of the
+ * videos played as often.
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    private final HashMap<String, Node> mNodes = new HashMap<>();
+    private final TreeSet<Node> mOrder = new TreeSet<>(new Comparator<Node>() {
+        @Override
+        public int compare(Node node1, Node node2) {
+            if (node1.count != node2.count) {
+                return node1.count < node2.count ? -1 : 1;
+            }
+            return Long.compare(node1.sequence, node2.sequence);
+        }
+    });
+    private long mSequence;
+
+    private static class Node {
+        final String key;
+        long count;
+        long sequence;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    @Override
+    public void onAdded(String key, long size, long time) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            mOrder.remove(node);
+        } else {
+            node = new Node(key);
+            mNodes.put(key, node);
+        }
+        node.count++;
+        node.sequence = mSequence++;
+        mOrder.add(node);
+    }
+
+    @Override
+    public void onAccessed(String key, long time) {
+        onAdded(key, 0, time);
+    }
+
+    @Override
+    public void onSizeChanged(String key, long size) {
+    }
+
+    @Override
+    public String evict(Set<String> pinned) {
+        Iterator<Node> iterator = mOrder.iterator();
+        while (iterator.hasNext()) {
+            Node node = iterator.next();
+            if (!pinned.contains(node.key)) {
+                iterator.remove();
+                mNodes.remove(node.key);
+                return node.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String peekVictim(Set<String> pinned) {
+        for (Node node : mOrder) {
+            if (!pinned.contains(node.key)) {
+                return node.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String evictExpired(long now, Set<String> pinned) {
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mOrder.clear();
+    }
+}
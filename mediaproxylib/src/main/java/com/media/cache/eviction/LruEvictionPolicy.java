@@ -0,0 +1,61 @@
+package com.media.cache.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Evicts the least recently used video first.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    //key -> last used time, least recently used first.
+    protected final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onAdded(String key, long size, long time) {
+        mEntries.put(key, time);
+    }
+
+    @Override
+    public void onAccessed(String key, long time) {
+        mEntries.put(key, time);
+    }
+
+    @Override
+    public void onSizeChanged(String key, long size) {
+    }
+
+    @Override
+    public String evict(Set<String> pinned) {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (!pinned.contains(key)) {
+                iterator.remove();
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String peekVictim(Set<String> pinned) {
+        for (String key : mEntries.keySet()) {
+            if (!pinned.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String evictExpired(long now, Set<String> pinned) {
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        mEntries.clear();
+    }
+}
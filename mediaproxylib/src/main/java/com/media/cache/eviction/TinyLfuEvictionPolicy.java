@@ -0,0 +1,186 @@
+package com.media.cache.eviction;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * W-TinyLFU: new videos enter a small LRU window, the older ones move on to the main cache,
+ * a segmented LRU of a probation and a protected part. When the cache is full a video which
+ * came from the window is only kept if it is played more often than the video the main cache
+ * would evict, the play counts are estimated by a count-min sketch which also remembers the
+ * evicted videos. So a video played once is evicted before the videos replayed often.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    //Least recently used first.
+    private final LinkedHashMap<String, Boolean> mWindow = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> mProbation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> mProtected = new LinkedHashMap<>(16, 0.75f, true);
+    //Videos moved from the window to the probation which are not admitted yet, oldest first.
+    private final LinkedHashSet<String> mCandidates = new LinkedHashSet<>();
+    private final FrequencySketch mSketch = new FrequencySketch();
+
+    @Override
+    public void onAdded(String key, long size, long time) {
+        if (mWindow.containsKey(key) || mProbation.containsKey(key) || mProtected.containsKey(key)) {
+            return;
+        }
+        mSketch.increment(key);
+        mWindow.put(key, Boolean.TRUE);
+        int total = mWindow.size() + mProbation.size() + mProtected.size();
+        int maxWindow = Math.max(1, total * WINDOW_PERCENT / 100);
+        Iterator<String> iterator = mWindow.keySet().iterator();
+        while (mWindow.size() > maxWindow && iterator.hasNext()) {
+            String candidate = iterator.next();
+            iterator.remove();
+            mProbation.put(candidate, Boolean.TRUE);
+            mCandidates.add(candidate);
+        }
+    }
+
+    @Override
+    public void onAccessed(String key, long time) {
+        mSketch.increment(key);
+        if (mWindow.containsKey(key)) {
+            mWindow.get(key);
+        } else if (mProbation.remove(key) != null) {
+            mCandidates.remove(key);
+            mProtected.put(key, Boolean.TRUE);
+            int maxProtected = (mProbation.size() + mProtected.size()) * PROTECTED_PERCENT / 100;
+            Iterator<String> iterator = mProtected.keySet().iterator();
+            while (mProtected.size() > Math.max(1, maxProtected) && iterator.hasNext()) {
+                String demoted = iterator.next();
+                iterator.remove();
+                mProbation.put(demoted, Boolean.TRUE);
+            }
+        } else if (mProtected.containsKey(key)) {
+            mProtected.get(key);
+        }
+    }
+
+    @Override
+    public void onSizeChanged(String key, long size) {
+    }
+
+    @Override
+    public String evict(Set<String> pinned) {
+        String victim = peekVictim(pinned);
+        if (victim == null) {
+            return null;
+        }
+        //The oldest candidate is evicted or admitted by the choice.
+        String candidate = first(mCandidates, pinned);
+        if (candidate != null) {
+            mCandidates.remove(candidate);
+        }
+        if (mProbation.remove(victim) == null && mProtected.remove(victim) == null) {
+            mWindow.remove(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public String peekVictim(Set<String> pinned) {
+        String victim = null;
+        for (String key : mProbation.keySet()) {
+            if (!mCandidates.contains(key) && !pinned.contains(key)) {
+                victim = key;
+                break;
+            }
+        }
+        if (victim == null) {
+            victim = first(mProtected.keySet(), pinned);
+        }
+        String candidate = first(mCandidates, pinned);
+        if (candidate != null && (victim == null || mSketch.frequency(candidate) <= mSketch.frequency(victim))) {
+            return candidate;
+        }
+        //The candidate is admitted, the victim of the main cache is evicted instead.
+        return victim != null ? victim : first(mWindow.keySet(), pinned);
+    }
+
+    @Override
+    public String evictExpired(long now, Set<String> pinned) {
+        return null;
+    }
+
+    //The play counts are kept, they are the history of the admission.
+    @Override
+    public void clear() {
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mCandidates.clear();
+    }
+
+    private static String first(Collection<String> keys, Set<String> pinned) {
+        for (String key : keys) {
+            if (!pinned.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count-min sketch of 4 rows of counters saturating at 15. All the counters are halved after
+     * SAMPLE_SIZE increments, so the old plays count less than the recent ones.
+     */
+    private static class FrequencySketch {
+
+        private static final int WIDTH = 4096; // Counters per row, a power of 2.
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = WIDTH;
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+        private final byte[] mCounters = new byte[DEPTH * WIDTH];
+        private int mAdditions;
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = indexOf(hash, row);
+                if (mCounters[index] < MAX_COUNT) {
+                    mCounters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= SAMPLE_SIZE) {
+                for (int index = 0; index < mCounters.length; index++) {
+                    mCounters[index] >>= 1;
+                }
+                mAdditions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, mCounters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private static int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 16;
+            return row * WIDTH + (h & (WIDTH - 1));
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
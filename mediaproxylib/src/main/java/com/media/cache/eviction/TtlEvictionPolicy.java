@@ -0,0 +1,38 @@
+package com.media.cache.eviction;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evicts the videos which are not used for the time to live, even if the cache is not full.
+ * When the cache is full the least recently used video is evicted first.
+ */
+public class TtlEvictionPolicy extends LruEvictionPolicy {
+
+    private final long mTimeToLive;
+
+    public TtlEvictionPolicy(long timeToLive) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("timeToLive must be positive: " + timeToLive);
+        }
+        mTimeToLive = timeToLive;
+    }
+
+    @Override
+    public String evictExpired(long now, Set<String> pinned) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> item = iterator.next();
+            if (now - item.getValue() <= mTimeToLive) {
+                //The later videos are used more recently.
+                return null;
+            }
+            if (!pinned.contains(item.getKey())) {
+                iterator.remove();
+                return item.getKey();
+            }
+        }
+        return null;
+    }
+}
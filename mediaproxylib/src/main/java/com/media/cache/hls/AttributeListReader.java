@@ -0,0 +1,113 @@
+package com.media.cache.hls;
+
+/**
+ * Single pass reader of an attribute list of RFC 8216 4.2: AttributeName=AttributeValue separated by
+ * commas, a value is a quoted string, which may contain commas, or an unquoted token up to the next comma.
+ * Names and values are compared in place, a String is only created for the value which is kept.
+ * Not thread safe, one reader is reused for the lines of a playlist.
+ */
+final class AttributeListReader {
+
+    private String mLine;
+    private int mPosition;
+    private int mNameStart;
+    private int mNameEnd;
+    private int mValueStart;
+    private int mValueEnd;
+    private boolean mQuoted;
+
+    //Read the attribute list of the line from the position.
+    void reset(String line, int position) {
+        mLine = line;
+        mPosition = position;
+    }
+
+    //Move to the next attribute, false at the end of the list or a malformed attribute.
+    boolean next() {
+        String line = mLine;
+        int length = line.length();
+        int position = mPosition;
+        while (position < length && (line.charAt(position) == ',' || line.charAt(position) == ' ')) {
+            position++;
+        }
+        mNameStart = position;
+        while (position < length && line.charAt(position) != '=' && line.charAt(position) != ',') {
+            position++;
+        }
+        if (position >= length || line.charAt(position) != '=' || position == mNameStart) {
+            mPosition = length;
+            return false;
+        }
+        mNameEnd = position;
+        position++;
+        if (position < length && line.charAt(position) == '"') {
+            mQuoted = true;
+            mValueStart = position + 1;
+            int end = line.indexOf('"', mValueStart);
+            if (end < 0) {
+                mPosition = length;
+                return false;
+            }
+            mValueEnd = end;
+            position = end + 1;
+        } else {
+            mQuoted = false;
+            mValueStart = position;
+            while (position < length && line.charAt(position) != ',') {
+                position++;
+            }
+            mValueEnd = position;
+            while (mValueEnd > mValueStart && line.charAt(mValueEnd - 1) == ' ') {
+                mValueEnd--;
+            }
+        }
+        mPosition = position;
+        return true;
+    }
+
+    boolean nameIs(String name) {
+        return mNameEnd - mNameStart == name.length() && mLine.startsWith(name, mNameStart);
+    }
+
+    boolean valueIs(String value) {
+        return mValueEnd - mValueStart == value.length() && mLine.startsWith(value, mValueStart);
+    }
+
+    boolean isQuoted() {
+        return mQuoted;
+    }
+
+    //decimal-integer value, -1 if it is not a number.
+    long longValue() {
+        if (mQuoted || mValueStart == mValueEnd) {
+            return -1;
+        }
+        long value = 0;
+        for (int index = mValueStart; index < mValueEnd; index++) {
+            char c = mLine.charAt(index);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    String value() {
+        return mLine.substring(mValueStart, mValueEnd);
+    }
+
+    //A hexadecimal-sequence: 0x or 0X followed by hex digits.
+    boolean isHexValue() {
+        if (mQuoted || mValueEnd - mValueStart < 3 || mLine.charAt(mValueStart) != '0' ||
+                (mLine.charAt(mValueStart + 1) != 'x' && mLine.charAt(mValueStart + 1) != 'X')) {
+            return false;
+        }
+        for (int index = mValueStart + 2; index < mValueEnd; index++) {
+            if (Character.digit(mLine.charAt(index), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
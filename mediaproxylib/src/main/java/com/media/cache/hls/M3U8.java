@@ -1,12 +1,26 @@
 package com.media.cache.hls;
 
+import com.media.cache.listener.IM3U8ParseListener;
 import com.media.cache.utils.LogUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * A M3U8 is filled by the parser line by line, the ts parsed so far can be read while the rest of
+ * the playlist is still being parsed, the listeners are told about every appended ts.
+ *
+ * The start times of the ts are kept as a cumulative array in milliseconds, and the cached sizes
+ * in a binary indexed tree, so the time to ts lookups and the cached bytes of a range are
+ * O(log n) instead of walking the whole list.
+ */
 public class M3U8 {
 
+    private static final int INITIAL_CAPACITY = 64;
+
     private String mUrl;
     private String mBaseUrl;
     private String mHostUrl;
@@ -16,6 +30,19 @@ public class M3U8 {
     private int mVersion = 3;
     private boolean mHasEndList;
     private int mCurTsIndex = 0;
+    private String mPlaylistType;
+    private boolean mParseCompleted;
+    private Throwable mParseError;
+    private final CopyOnWriteArrayList<IM3U8ParseListener> mParseListeners = new CopyOnWriteArrayList<>();
+    //mStartTimes[i] is the start(ms) of the ts i, mStartTimes[count] is the whole duration.
+    private double[] mStartTimes = new double[INITIAL_CAPACITY + 1];
+    //Binary indexed tree of the ts sizes, 1-based.
+    private long[] mSizeTree = new long[INITIAL_CAPACITY + 1];
+    //Binary indexed tree of the cached ts counts, 1-based.
+    private int[] mCountTree = new int[INITIAL_CAPACITY + 1];
+    //Variants of the master playlist this media playlist is selected from.
+    private List<M3U8Variant> mVariants = Collections.emptyList();
+    private int mVariantIndex = -1;
 
     public M3U8(String url, String baseUrl, String hostUrl) {
         this.mUrl = url;
@@ -26,7 +53,104 @@ public class M3U8 {
     }
 
     public void addTs(M3U8Ts ts) {
-        this.mTsList.add(ts);
+        synchronized (this) {
+            int index = mTsList.size();
+            if (index + 1 == mStartTimes.length) {
+                mStartTimes = Arrays.copyOf(mStartTimes, index * 2 + 1);
+                mSizeTree = Arrays.copyOf(mSizeTree, index * 2 + 1);
+                mCountTree = Arrays.copyOf(mCountTree, index * 2 + 1);
+            }
+            mStartTimes[index + 1] = mStartTimes[index] + ts.getDuration() * 1000d;
+            //The node covers (index + 1 - lowbit, index + 1], the ts before it may be cached already.
+            int node = index + 1;
+            mSizeTree[node] = ts.getTsSize() + getCachedSize(index) - getCachedSize(node - (node & -node));
+            mCountTree[node] = (ts.getTsSize() > 0 ? 1 : 0) + getCachedCount(index) - getCachedCount(node - (node & -node));
+            this.mTsList.add(ts);
+        }
+        for (IM3U8ParseListener listener : mParseListeners) {
+            listener.onTsParsed(this, ts);
+        }
+    }
+
+    /**
+     * @return false if the parsing is finished, nothing will be notified then.
+     */
+    public synchronized boolean addParseListener(IM3U8ParseListener listener) {
+        if (mParseCompleted || mParseError != null) {
+            return false;
+        }
+        mParseListeners.add(listener);
+        return true;
+    }
+
+    public void removeParseListener(IM3U8ParseListener listener) {
+        mParseListeners.remove(listener);
+    }
+
+    public void onParseCompleted() {
+        synchronized (this) {
+            mParseCompleted = true;
+        }
+        for (IM3U8ParseListener listener : mParseListeners) {
+            listener.onM3U8Parsed(this);
+        }
+        mParseListeners.clear();
+    }
+
+    public void onParseFailed(Throwable error) {
+        synchronized (this) {
+            mParseError = error;
+        }
+        for (IM3U8ParseListener listener : mParseListeners) {
+            listener.onM3U8ParseFailed(this, error);
+        }
+        mParseListeners.clear();
+    }
+
+    public synchronized boolean isParseCompleted() {
+        return mParseCompleted;
+    }
+
+    public synchronized int getTsCount() {
+        return mTsList.size();
+    }
+
+    public synchronized M3U8Ts getTs(int index) {
+        return mTsList.get(index);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    public String getHostUrl() {
+        return mHostUrl;
+    }
+
+    public void setVariants(List<M3U8Variant> variants, int variantIndex) {
+        this.mVariants = variants;
+        this.mVariantIndex = variantIndex;
+    }
+
+    //Empty if it is not parsed from a master playlist.
+    public List<M3U8Variant> getVariants() {
+        return mVariants;
+    }
+
+    public int getVariantIndex() {
+        return mVariantIndex;
+    }
+
+    public void setPlaylistType(String playlistType) {
+        this.mPlaylistType = playlistType;
+    }
+
+    public String getPlaylistType() {
+        return mPlaylistType;
     }
 
     public void setTargetDuration(float targetDuration) {
@@ -43,6 +167,7 @@ public class M3U8 {
         this.mHasEndList = hasEndList;
     }
 
+    //The whole list once the parsing is completed, use getTs(index) while it is still growing.
     public List<M3U8Ts> getTsList() {
         return mTsList;
     }
@@ -63,59 +188,138 @@ public class M3U8 {
         return mHasEndList;
     }
 
-    public long getDuration() {
-        long duration = 0L;
-        for (M3U8Ts ts : mTsList) {
-            duration += ts.getDuration();
-        }
-        return duration;
+    //Whole duration in seconds.
+    public synchronized long getDuration() {
+        return (long) (mStartTimes[mTsList.size()] / 1000);
     }
 
-    public long getDuration(int tsIndex) {
+    //End of the ts in seconds.
+    public synchronized long getDuration(int tsIndex) {
         if (tsIndex < 0 || mTsList.size() <= 0) {
             return 0;
-        } else if (tsIndex >= mTsList.size() - 1) {
-            return getDuration();
-        } else {
-            long duration = 0L;
-            for (int index = 0; index <= tsIndex; index++) {
-                duration += mTsList.get(index).getDuration();
-            }
-            return duration;
         }
+        return (long) (mStartTimes[Math.min(tsIndex, mTsList.size() - 1) + 1] / 1000);
+    }
+
+    public synchronized double getDurationMs() {
+        return mStartTimes[mTsList.size()];
+    }
+
+    public synchronized double getTsStartTimeMs(int tsIndex) {
+        return mStartTimes[Math.max(0, Math.min(tsIndex, mTsList.size()))];
     }
 
+    //The ts playing at the position(seconds).
     public int getTsIndex(long playDuration) {
-        long duration = 0L;
-        int index = 0;
-        for (M3U8Ts ts : mTsList) {
-            if (playDuration >= duration
-                    && playDuration < duration + ts.getDuration()) {
-                return index;
+        return getTsIndexAtTime(playDuration * 1000d);
+    }
+
+    /**
+     * The ts playing at the position(ms), the first one for a negative position and the last one
+     * beyond the end.
+     */
+    public synchronized int getTsIndexAtTime(double timeMs) {
+        int count = mTsList.size();
+        if (count == 0) {
+            return 0;
+        }
+        //Last ts starting at or before the position.
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mStartTimes[mid] <= timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
-            duration += ts.getDuration();
-            index++;
         }
-        return 0;
+        return Math.max(0, high);
     }
 
-    //Figure it out about the cached size between fromIndex and endIndex.
-    public long getCachedSizeFromIndex(int fromIndex, int endIndex) {
-        if (mTsList.size() <= 0 || fromIndex < 0 ||
-                fromIndex >= mTsList.size() - 1 || endIndex < 0 ||
-                endIndex > mTsList.size())
-            return 0;
-        if (fromIndex > endIndex) {
-            return 0;
+    //End(exclusive) of the ts covering the duration(ms) from the ts: the first ts starting at or after the duration.
+    public synchronized int getTsEnd(int fromTs, long durationMs) {
+        int count = mTsList.size();
+        if (fromTs >= count || durationMs <= 0) {
+            return Math.min(fromTs, count);
         }
+        double endTime = mStartTimes[fromTs] + durationMs;
+        int low = fromTs + 1;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStartTimes[mid] < endTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public synchronized void setTsSize(int tsIndex, long tsSize) {
+        M3U8Ts ts = mTsList.get(tsIndex);
+        long delta = tsSize - ts.getTsSize();
+        int countDelta = (tsSize > 0 ? 1 : 0) - (ts.getTsSize() > 0 ? 1 : 0);
+        ts.setTsSize(tsSize);
+        for (int node = tsIndex + 1; node <= mTsList.size(); node += node & -node) {
+            mSizeTree[node] += delta;
+            mCountTree[node] += countDelta;
+        }
+    }
+
+    //Cached ts of the first count ts.
+    private int getCachedCount(int count) {
+        int cachedCount = 0;
+        for (int node = count; node > 0; node -= node & -node) {
+            cachedCount += mCountTree[node];
+        }
+        return cachedCount;
+    }
+
+    //Index of the first uncached ts from the index, the ts count if all of them are cached.
+    public synchronized int getCachedEnd(int fromIndex) {
+        int count = mTsList.size();
+        if (fromIndex >= count) {
+            return count;
+        }
+        fromIndex = Math.max(0, fromIndex);
+        //The largest prefix with no more uncached ts than the prefix before the index.
+        int remaining = fromIndex - getCachedCount(fromIndex) + 1;
+        int position = 0;
+        for (int step = Integer.highestOneBit(count); step > 0; step >>= 1) {
+            int node = position + step;
+            if (node <= count && step - mCountTree[node] < remaining) {
+                position = node;
+                remaining -= step - mCountTree[node];
+            }
+        }
+        return position;
+    }
+
+    //Cached bytes of the first count ts.
+    private long getCachedSize(int count) {
         long cachedSize = 0L;
-        for (int index = fromIndex; index <= endIndex; index++) {
-            M3U8Ts ts = mTsList.get(index);
-            cachedSize += ts.getTsSize();
+        for (int node = count; node > 0; node -= node & -node) {
+            cachedSize += mSizeTree[node];
         }
         return cachedSize;
     }
 
+    public synchronized long getCachedSize() {
+        return getCachedSize(mTsList.size());
+    }
+
+    //Figure it out about the cached size between fromIndex and endIndex(inclusive).
+    public synchronized long getCachedSizeFromIndex(int fromIndex, int endIndex) {
+        fromIndex = Math.max(0, fromIndex);
+        endIndex = Math.min(endIndex, mTsList.size() - 1);
+        if (fromIndex > endIndex) {
+            return 0;
+        }
+        return getCachedSize(endIndex + 1) - getCachedSize(fromIndex);
+    }
+
     public void setCurTsIndex(int curTsIndex) {
         this.mCurTsIndex = curTsIndex;
     }
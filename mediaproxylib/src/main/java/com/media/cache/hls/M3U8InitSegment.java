@@ -0,0 +1,64 @@
+package com.media.cache.hls;
+
+import com.media.cache.utils.LocalProxyUtils;
+
+/**
+ * The media initialization section of '#EXT-X-MAP', e.g. the 'moov' of a fMP4 hls. It applies to the
+ * ts following the tag, so one init segment is shared by many ts and is cached once.
+ */
+public class M3U8InitSegment {
+
+    private final String mUrl;
+    private final long mByteRangeOffset; // -1 if it is the whole resource.
+    private final long mByteRangeLength;
+    private final String mName;
+
+    public M3U8InitSegment(String url, long byteRangeOffset, long byteRangeLength) {
+        this.mUrl = url;
+        this.mByteRangeOffset = byteRangeOffset;
+        this.mByteRangeLength = byteRangeLength;
+        //A playlist may switch the init segment at a discontinuity, every one has its own file.
+        this.mName = "init_" + LocalProxyUtils.computeMD5(url + "@" + byteRangeOffset) + ".mp4";
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public boolean hasByteRange() {
+        return mByteRangeOffset >= 0;
+    }
+
+    public long getByteRangeOffset() {
+        return mByteRangeOffset;
+    }
+
+    public long getByteRangeLength() {
+        return mByteRangeLength;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getProxyUrl(String host, int port, String fileName) {
+        return M3U8Ts.getProxyUrl(host, port, mUrl, fileName, mName, mByteRangeOffset, mByteRangeLength);
+    }
+
+    public boolean equals(Object object) {
+        if (!(object instanceof M3U8InitSegment)) {
+            return false;
+        }
+        M3U8InitSegment other = (M3U8InitSegment) object;
+        return mUrl.equals(other.mUrl) && mByteRangeOffset == other.mByteRangeOffset &&
+                mByteRangeLength == other.mByteRangeLength;
+    }
+
+    public int hashCode() {
+        return mName.hashCode();
+    }
+
+    public String toString() {
+        return "M3U8InitSegment[url=" + mUrl + ", byteRange=" + mByteRangeLength + "@" + mByteRangeOffset + "]";
+    }
+}
@@ -16,7 +16,10 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
     private String mMethod;
     private String mKeyUri;
     private String mKeyIV;
-    private boolean mIsMessyKey;
+    private String mLocalKeyUri;
+    private long mByteRangeOffset = -1; // -1 if the ts is the whole resource.
+    private long mByteRangeLength = -1;
+    private M3U8InitSegment mInitSegment;
 
     public M3U8Ts() {
     }
@@ -34,6 +37,7 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
     public void setKeyConfig(String method, String keyUri, String keyIV) {
         this.mMethod = method;
         this.mKeyUri = keyUri;
+        this.mLocalKeyUri = null;
         this.mKeyIV = keyIV;
     }
 
@@ -49,14 +53,45 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
         return mKeyUri;
     }
 
+    //Every key uri has its own file, the key may rotate within a playlist.
     public String getLocalKeyUri() {
-        return "local.key";
+        if (mLocalKeyUri == null && mKeyUri != null) {
+            mLocalKeyUri = "key_" + LocalProxyUtils.computeMD5(mKeyUri) + ".key";
+        }
+        return mLocalKeyUri;
     }
 
     public String getKeyIV() {
         return mKeyIV;
     }
 
+    //The ts is the range of the resource of '#EXT-X-BYTERANGE'.
+    public void setByteRange(long offset, long length) {
+        this.mByteRangeOffset = offset;
+        this.mByteRangeLength = length;
+    }
+
+    public boolean hasByteRange() {
+        return mByteRangeOffset >= 0;
+    }
+
+    public long getByteRangeOffset() {
+        return mByteRangeOffset;
+    }
+
+    public long getByteRangeLength() {
+        return mByteRangeLength;
+    }
+
+    public void setInitSegment(M3U8InitSegment initSegment) {
+        this.mInitSegment = initSegment;
+    }
+
+    //The '#EXT-X-MAP' the ts follows, null if there is none.
+    public M3U8InitSegment getInitSegment() {
+        return mInitSegment;
+    }
+
     public float getDuration() {
         return mDuration;
     }
@@ -78,12 +113,27 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
         this.mName = name;
     }
 
+    //A live ts is named by its media sequence number, it is unique across the reloads.
+    public void setIndex(int index) {
+        this.mIndex = index;
+    }
+
     public String getIndexName() {
         return "seg_" + mIndex+".ts";
     }
 
     public String getProxyUrl(String host, int port, String fileName) {
-        return String.format(Locale.US, "http://%s:%d/%s%s/%s/%s", host, port, LocalProxyUtils.encodeUri(mUrl), LocalProxyUtils.SPLIT_STR, fileName, getIndexName());
+        return getProxyUrl(host, port, mUrl, fileName, getIndexName(), mByteRangeOffset, mByteRangeLength);
+    }
+
+    //The byte range is appended as '{first}-{last}', the proxy fetches only it.
+    static String getProxyUrl(String host, int port, String url, String fileName, String name,
+                              long byteRangeOffset, long byteRangeLength) {
+        String proxyUrl = String.format(Locale.US, "http://%s:%d/%s%s/%s/%s", host, port, LocalProxyUtils.encodeUri(url), LocalProxyUtils.SPLIT_STR, fileName, name);
+        if (byteRangeOffset >= 0) {
+            proxyUrl += LocalProxyUtils.SPLIT_STR + byteRangeOffset + "-" + (byteRangeOffset + byteRangeLength - 1);
+        }
+        return proxyUrl;
     }
 
     public void setTsSize(long tsSize) {
@@ -98,14 +148,6 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
         return mHasDiscontinuity;
     }
 
-    public void setIsMessyKey(boolean isMessyKey) {
-        this.mIsMessyKey = isMessyKey;
-    }
-
-    public boolean isMessyKey() {
-        return mIsMessyKey;
-    }
-
     public String toString() {
         return "duration="+mDuration+", index="+mIndex+", name="+mName;
     }
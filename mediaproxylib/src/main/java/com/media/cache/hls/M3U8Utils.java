@@ -1,20 +1,21 @@
 package com.media.cache.hls;
 
-import android.text.TextUtils;
-
+import com.media.cache.listener.IM3U8ParseListener;
+import com.media.cache.utils.BandwidthMeter;
 import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 public class M3U8Utils {
 
@@ -29,39 +30,38 @@ public class M3U8Utils {
     public static final String TAG_DISCONTINUITY = "#EXT-X-DISCONTINUITY"; // Optional
     public static final String TAG_ENDLIST = "#EXT-X-ENDLIST";   //It is not live if hls has '#EXT-X-ENDLIST' tag; Or it is.
     public static final String TAG_KEY = "#EXT-X-KEY";   //Optional
+    public static final String TAG_BYTERANGE = "#EXT-X-BYTERANGE";   //Optional, the ts is a range of the resource.
+    public static final String TAG_MAP = "#EXT-X-MAP";   //Optional, the init segment of the following ts.
 
     //extra hls tag:
 
     // #EXT-X-PLAYLIST-TYPE:VOD       is not live
     // #EXT-X-PLAYLIST-TYPE:EVENT   is live, we also can try '#EXT-X-ENDLIST'
     public static final String TAG_PLAYLIST_TYPE = "#EXT-X-PLAYLIST-TYPE";
-    private static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF";  //Multiple m3u8 stream, we usually fetch the first.
+    public static final String PLAYLIST_TYPE_VOD = "VOD";
+    private static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF";  //Multiple m3u8 stream, selected by the measured bandwidth.
     private static final String TAG_ALLOW_CACHE = "EXT-X-ALLOW-CACHE";  // YES : not live; NO: live
 
-    private static final Pattern REGEX_TARGET_DURATION =
-            Pattern.compile(TAG_TARGET_DURATION + ":(\\d+)\\b");
-    private static final Pattern REGEX_MEDIA_DURATION =
-            Pattern.compile(TAG_MEDIA_DURATION + ":([\\d\\.]+)\\b");
-    private static final Pattern REGEX_VERSION =
-            Pattern.compile(TAG_VERSION + ":(\\d+)\\b");
-    private static final Pattern REGEX_MEDIA_SEQUENCE =
-            Pattern.compile(TAG_MEDIA_SEQUENCE + ":(\\d+)\\b");
-
     private static final String METHOD_NONE = "NONE";
     private static final String METHOD_AES_128 = "AES-128";
     private static final String METHOD_SAMPLE_AES = "SAMPLE-AES";
     // Replaced by METHOD_SAMPLE_AES_CTR. Keep for backward compatibility.
     private static final String METHOD_SAMPLE_AES_CENC = "SAMPLE-AES-CENC";
     private static final String METHOD_SAMPLE_AES_CTR = "SAMPLE-AES-CTR";
-    private static final Pattern REGEX_METHOD =
-            Pattern.compile("METHOD=(" + METHOD_NONE + "|" + METHOD_AES_128 + "|" +
-                    METHOD_SAMPLE_AES + "|" + METHOD_SAMPLE_AES_CENC + "|" +
-                    METHOD_SAMPLE_AES_CTR + ")"
-                    + "\\s*(,|$)");
-    private static final Pattern REGEX_KEYFORMAT =
-            Pattern.compile("KEYFORMAT=\"(.+?)\"");
-    private static final Pattern REGEX_URI = Pattern.compile("URI=\"(.+?)\"");
-    private static final Pattern REGEX_IV = Pattern.compile("IV=([^,.*]+)");
+    private static final String[] METHODS = { METHOD_NONE, METHOD_AES_128, METHOD_SAMPLE_AES,
+            METHOD_SAMPLE_AES_CENC, METHOD_SAMPLE_AES_CTR };
+    private static final String ATTR_METHOD = "METHOD";
+    private static final String ATTR_URI = "URI";
+    private static final String ATTR_IV = "IV";
+    private static final String ATTR_KEYFORMAT = "KEYFORMAT";
+    private static final String ATTR_BANDWIDTH = "BANDWIDTH";
+    private static final String ATTR_AVERAGE_BANDWIDTH = "AVERAGE-BANDWIDTH";
+    private static final String ATTR_RESOLUTION = "RESOLUTION";
+    private static final String ATTR_CODECS = "CODECS";
+    private static final String ATTR_BYTERANGE = "BYTERANGE";
+
+    //Part of the measured bandwidth a variant may take, the rest is the margin for the fluctuation.
+    private static final float BANDWIDTH_FRACTION = 0.75f;
     private static final String KEYFORMAT_IDENTITY = "identity";
 
     /**
@@ -71,112 +71,293 @@ public class M3U8Utils {
      * @throws IOException
      */
     public static M3U8 parseM3U8Info(String videoUrl, boolean isLocalFile, File m3u8File) throws IOException {
+        return parseM3U8Info(videoUrl, isLocalFile, m3u8File, null);
+    }
+
+    /**
+     * parse M3U8 file line by line, every ts is appended to the returned M3U8 and sent to the listener
+     * as soon as its line is read, the tags before the first ts are set by then.
+     * @param listener notified on the parsing thread, may be null.
+     */
+    public static M3U8 parseM3U8Info(String videoUrl, boolean isLocalFile, File m3u8File,
+                                     IM3U8ParseListener listener) throws IOException {
+        return parseM3U8Info(videoUrl, isLocalFile, m3u8File, listener, null, -1);
+    }
+
+    //The variants are set before the first ts is told, the variant index is the one of the videoUrl.
+    private static M3U8 parseM3U8Info(String videoUrl, boolean isLocalFile, File m3u8File,
+                                      IM3U8ParseListener listener, List<M3U8Variant> masterVariants,
+                                      int variantIndex) throws IOException {
         URL url = new URL(videoUrl);
-        InputStreamReader inputStreamReader = null;
         BufferedReader bufferedReader = null;
         if (isLocalFile) {
-            inputStreamReader = new InputStreamReader(new FileInputStream(m3u8File));
-            bufferedReader = new BufferedReader(inputStreamReader);
+            bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(m3u8File)));
         } else {
             bufferedReader = new BufferedReader(new InputStreamReader(url.openStream()));
         }
+        M3U8 m3u8 = createM3U8(videoUrl, url);
+        if (masterVariants != null) {
+            m3u8.setVariants(masterVariants, variantIndex);
+        }
+        if (listener != null) {
+            m3u8.addParseListener(listener);
+        }
+        try {
+            List<M3U8Variant> variants = parseLines(bufferedReader, m3u8, isLocalFile);
+            if (!variants.isEmpty()) {
+                //It is a master playlist, the listener is told about the ts of the selected variant.
+                LocalProxyUtils.close(bufferedReader);
+                if (listener != null) {
+                    m3u8.removeParseListener(listener);
+                }
+                int selected = selectVariant(variants, BandwidthMeter.getInstance().getBitrateEstimate());
+                LogUtils.i("parseM3U8Info select " + variants.get(selected) + " of " + variants.size() + " variants");
+                return parseM3U8Info(variants.get(selected).getUrl(), isLocalFile, m3u8File, listener,
+                        variants, selected);
+            }
+        } catch (IOException | RuntimeException e) {
+            m3u8.onParseFailed(e);
+            throw e;
+        } finally {
+            LocalProxyUtils.close(bufferedReader);
+        }
+        m3u8.onParseCompleted();
+        return m3u8;
+    }
+
+    /**
+     * Parse a media playlist read from the stream of a connection opened by the caller, who closes it.
+     * A master playlist is not followed, its variants are ignored.
+     */
+    public static M3U8 parseM3U8Info(String videoUrl, InputStream inputStream) throws IOException {
+        M3U8 m3u8 = createM3U8(videoUrl, new URL(videoUrl));
+        try {
+            parseLines(new BufferedReader(new InputStreamReader(inputStream)), m3u8, false);
+        } catch (IOException | RuntimeException e) {
+            m3u8.onParseFailed(e);
+            throw e;
+        }
+        m3u8.onParseCompleted();
+        return m3u8;
+    }
+
+    //The relative uris of the playlist are resolved against its url.
+    private static M3U8 createM3U8(String videoUrl, URL url) {
         String baseUriPath = videoUrl.substring(0, videoUrl.lastIndexOf("/") + 1);
         String hostUrl = videoUrl.substring(0, videoUrl.indexOf(url.getPath()) + 1);
-        M3U8 m3u8 = new M3U8(videoUrl, baseUriPath, hostUrl);
+        return new M3U8(videoUrl, baseUriPath, hostUrl);
+    }
+
+    /**
+     * Parse the media playlist of a variant, without the listener and the variant selection.
+     */
+    public static M3U8 parseVariant(M3U8Variant variant) throws IOException {
+        return parseM3U8Info(variant.getUrl(), false, null, null);
+    }
+
+    /**
+     * The variant with the highest bandwidth within the fraction of the measured bitrate, the lowest
+     * one if none fits. The first variant, the default one of the playlist, if nothing is measured yet.
+     * @param bitrate bits per second, negative if it is unknown.
+     */
+    public static int selectVariant(List<M3U8Variant> variants, long bitrate) {
+        return selectVariant(variants, bitrate, null);
+    }
+
+    //Only the variants compatible with the base one are selected if it is given, the base one if nothing is measured yet.
+    public static int selectVariant(List<M3U8Variant> variants, long bitrate, M3U8Variant base) {
+        if (bitrate < 0 || variants.size() <= 1) {
+            return base != null ? Math.max(0, variants.indexOf(base)) : 0;
+        }
+        long usableBitrate = (long) (bitrate * BANDWIDTH_FRACTION);
+        int selected = -1;
+        int lowest = -1;
+        for (int index = 0; index < variants.size(); index++) {
+            M3U8Variant variant = variants.get(index);
+            if (base != null && !base.isCompatible(variant)) {
+                continue;
+            }
+            long bandwidth = variant.getRequiredBandwidth();
+            if (lowest < 0 || bandwidth < variants.get(lowest).getRequiredBandwidth()) {
+                lowest = index;
+            }
+            if (bandwidth <= usableBitrate &&
+                    (selected < 0 || bandwidth > variants.get(selected).getRequiredBandwidth())) {
+                selected = index;
+            }
+        }
+        return selected >= 0 ? selected : Math.max(0, lowest);
+    }
+
+    //Returns the variants if it is a master playlist, the ts are added to the M3U8 otherwise.
+    private static List<M3U8Variant> parseLines(BufferedReader bufferedReader, M3U8 m3u8, boolean isLocalFile) throws IOException {
+        String baseUriPath = m3u8.getBaseUrl();
+        String hostUrl = m3u8.getHostUrl();
+        AttributeListReader attributes = new AttributeListReader();
         float tsDuration = 0;
-        int targetDuration = 0;
         int tsIndex = 0;
-        int version = 0;
-        int sequence = 0;
         boolean hasDiscontinuity = false;
-        boolean hasEndList = false;
         boolean hasKey = false;
         String method = null;
         String encryptionIV = null;
         String encryptionKeyUri = null;
+        long byteRangeLength = -1;
+        long byteRangeOffset = -1;
+        long nextByteRangeOffset = 0; // A range without the offset starts at the end of the previous one.
+        M3U8InitSegment initSegment = null;
+        List<M3U8Variant> variants = new ArrayList<>();
+        boolean isStreamInf = false;
+        long bandwidth = 0;
+        long averageBandwidth = 0;
+        int width = 0;
+        int height = 0;
+        String codecs = null;
         String line = null;
         while ((line = bufferedReader.readLine()) != null) {
-            if (line.startsWith(TAG_PREFIX)) {
-                if (line.startsWith(TAG_MEDIA_DURATION)) {
-                    String ret = parseStringAttr(line, REGEX_MEDIA_DURATION);
-                    if (!TextUtils.isEmpty(ret)) {
-                        tsDuration = Float.parseFloat(ret);
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.charAt(0) == '#') {
+                if (!line.startsWith(TAG_PREFIX)) {
+                    //Comment line.
+                    continue;
+                }
+                //Tags are matched as a whole, '#EXT-X-DISCONTINUITY-SEQUENCE' is not '#EXT-X-DISCONTINUITY'.
+                int tagEnd = line.indexOf(':');
+                if (tagEnd < 0) {
+                    tagEnd = line.length();
+                }
+                int valueStart = tagEnd + 1;
+                if (isTag(line, tagEnd, TAG_MEDIA_DURATION)) {
+                    double duration = parseDecimal(line, valueStart);
+                    if (duration >= 0) {
+                        tsDuration = (float) duration;
+                    }
+                } else if (isTag(line, tagEnd, TAG_TARGET_DURATION)) {
+                    long targetDuration = parseDecimalInteger(line, valueStart);
+                    if (targetDuration >= 0) {
+                        m3u8.setTargetDuration(targetDuration);
                     }
-                } else if (line.startsWith(TAG_TARGET_DURATION)) {
-                    String ret = parseStringAttr(line, REGEX_TARGET_DURATION);
-                    if (!TextUtils.isEmpty(ret)) {
-                        targetDuration = Integer.parseInt(ret);
+                } else if (isTag(line, tagEnd, TAG_VERSION)) {
+                    long version = parseDecimalInteger(line, valueStart);
+                    if (version >= 0) {
+                        m3u8.setVersion((int) version);
                     }
-                } else if (line.startsWith(TAG_VERSION)) {
-                    String ret = parseStringAttr(line, REGEX_VERSION);
-                    if (!TextUtils.isEmpty(ret)) {
-                        version = Integer.parseInt(ret);
+                } else if (isTag(line, tagEnd, TAG_MEDIA_SEQUENCE)) {
+                    long sequence = parseDecimalInteger(line, valueStart);
+                    if (sequence >= 0) {
+                        m3u8.setSequence((int) sequence);
+                    }
+                } else if (isTag(line, tagEnd, TAG_PLAYLIST_TYPE)) {
+                    if (valueStart < line.length()) {
+                        m3u8.setPlaylistType(line.substring(valueStart).trim());
+                    }
+                } else if (isTag(line, tagEnd, TAG_BYTERANGE)) {
+                    byteRangeLength = parseDecimalInteger(line, valueStart);
+                    byteRangeOffset = parseByteRangeOffset(line, valueStart);
+                } else if (isTag(line, tagEnd, TAG_MAP)) {
+                    String mapUri = null;
+                    long mapLength = -1;
+                    long mapOffset = -1;
+                    attributes.reset(line, valueStart);
+                    while (attributes.next()) {
+                        if (attributes.nameIs(ATTR_URI)) {
+                            mapUri = attributes.isQuoted() ? attributes.value() : null;
+                        } else if (attributes.nameIs(ATTR_BYTERANGE) && attributes.isQuoted()) {
+                            String byteRange = attributes.value();
+                            mapLength = parseDecimalInteger(byteRange, 0);
+                            //The offset of an init segment is 0 if it is not given.
+                            mapOffset = Math.max(0, parseByteRangeOffset(byteRange, 0));
+                        }
                     }
-                } else if (line.startsWith(TAG_MEDIA_SEQUENCE)) {
-                    String ret = parseStringAttr(line, REGEX_MEDIA_SEQUENCE);
-                    if (!TextUtils.isEmpty(ret)) {
-                        sequence = Integer.parseInt(ret);
+                    if (mapUri != null) {
+                        initSegment = new M3U8InitSegment(resolveUrl(mapUri, baseUriPath, hostUrl),
+                                mapLength > 0 ? mapOffset : -1, mapLength > 0 ? mapLength : -1);
                     }
-                } else if (line.startsWith(TAG_DISCONTINUITY)) {
+                } else if (isTag(line, tagEnd, TAG_DISCONTINUITY)) {
                     hasDiscontinuity = true;
-                } else if (line.startsWith(TAG_ENDLIST)) {
-                    hasEndList = true;
-                } else if (line.startsWith(TAG_KEY)) {
-                    hasKey = true;
-                    method = parseOptionalStringAttr(line, REGEX_METHOD);
-                    String keyFormat = parseOptionalStringAttr(line, REGEX_KEYFORMAT);
-                    if (!METHOD_NONE.equals(method)) {
-                        encryptionIV = parseOptionalStringAttr(line, REGEX_IV);
-                        if (KEYFORMAT_IDENTITY.equals(keyFormat) || keyFormat == null) {
-                            if (METHOD_AES_128.equals(method)) {
-                                // The segment is fully encrypted using an identity key.
-                                String tempKeyUri = parseStringAttr(line, REGEX_URI);
-                                if (tempKeyUri != null) {
-                                    if (tempKeyUri.startsWith("/")) {
-                                        encryptionKeyUri = hostUrl + tempKeyUri.substring(1);
-                                    } else if (tempKeyUri.startsWith("http") || tempKeyUri.startsWith("https")) {
-                                        encryptionKeyUri = tempKeyUri;
-                                    } else {
-                                        encryptionKeyUri = baseUriPath + tempKeyUri;
-                                    }
-                                }
-                            } else {
-                                // Do nothing. Samples are encrypted using an identity key, but
-                                // this is not supported. Hopefully, a traditional DRM alternative
-                                // is also provided.
+                } else if (isTag(line, tagEnd, TAG_ENDLIST)) {
+                    m3u8.setHasEndList(true);
+                } else if (isTag(line, tagEnd, TAG_STREAM_INF)) {
+                    isStreamInf = true;
+                    bandwidth = 0;
+                    averageBandwidth = 0;
+                    width = 0;
+                    height = 0;
+                    codecs = null;
+                    attributes.reset(line, valueStart);
+                    while (attributes.next()) {
+                        if (attributes.nameIs(ATTR_BANDWIDTH)) {
+                            bandwidth = Math.max(0, attributes.longValue());
+                        } else if (attributes.nameIs(ATTR_AVERAGE_BANDWIDTH)) {
+                            averageBandwidth = Math.max(0, attributes.longValue());
+                        } else if (attributes.nameIs(ATTR_RESOLUTION)) {
+                            String resolution = attributes.value();
+                            int separator = resolution.indexOf('x');
+                            if (separator > 0) {
+                                width = (int) parseDecimalInteger(resolution, 0);
+                                height = (int) parseDecimalInteger(resolution, separator + 1);
                             }
-                        } else {
-                            //Do nothing.
+                        } else if (attributes.nameIs(ATTR_CODECS)) {
+                            codecs = attributes.value();
                         }
                     }
+                } else if (isTag(line, tagEnd, TAG_KEY)) {
+                    hasKey = true;
+                    method = null;
+                    encryptionIV = null;
+                    encryptionKeyUri = null;
+                    String keyUri = null;
+                    boolean isIdentityKey = true;
+                    attributes.reset(line, valueStart);
+                    while (attributes.next()) {
+                        if (attributes.nameIs(ATTR_METHOD)) {
+                            method = parseMethod(attributes);
+                        } else if (attributes.nameIs(ATTR_URI)) {
+                            keyUri = attributes.isQuoted() ? attributes.value() : null;
+                        } else if (attributes.nameIs(ATTR_IV)) {
+                            encryptionIV = attributes.isHexValue() ? attributes.value() : null;
+                        } else if (attributes.nameIs(ATTR_KEYFORMAT)) {
+                            isIdentityKey = attributes.valueIs(KEYFORMAT_IDENTITY);
+                        }
+                    }
+                    if (METHOD_NONE.equals(method)) {
+                        encryptionIV = null;
+                    } else if (isIdentityKey && METHOD_AES_128.equals(method) && keyUri != null) {
+                        // The segment is fully encrypted using an identity key.
+                        encryptionKeyUri = resolveUrl(keyUri, baseUriPath, hostUrl);
+                    } else {
+                        // Do nothing. Samples are encrypted using an identity key, but
+                        // this is not supported. Hopefully, a traditional DRM alternative
+                        // is also provided.
+                    }
                 }
                 continue;
             }
-            //It has '#EXT-X-STREAM-INF' tag;
-            if (line.endsWith(".m3u8")) {
-                if (line.startsWith("/")) {
-                    return parseM3U8Info(hostUrl + line.substring(1), isLocalFile, m3u8File);
-                }
-                if (line.startsWith("http") || line.startsWith("https")) {
-                    return parseM3U8Info(line, isLocalFile, m3u8File);
-                }
-                return parseM3U8Info(baseUriPath + line, isLocalFile, m3u8File);
+            //The uri of a variant stream follows '#EXT-X-STREAM-INF', a '.m3u8' uri without it is taken as one too.
+            if (isStreamInf || line.endsWith(".m3u8")) {
+                variants.add(new M3U8Variant(resolveUrl(line, baseUriPath, hostUrl),
+                        bandwidth, averageBandwidth, width, height, codecs));
+                isStreamInf = false;
+                bandwidth = 0;
+                averageBandwidth = 0;
+                width = 0;
+                height = 0;
+                codecs = null;
+                continue;
             }
             M3U8Ts ts = new M3U8Ts();
-            if (isLocalFile) {
-                ts.initTsAttributes(line, tsDuration, tsIndex, hasDiscontinuity, hasKey);
-            } else if (line.startsWith("https") || line.startsWith("http")) {
-                ts.initTsAttributes(line, tsDuration, tsIndex, hasDiscontinuity, hasKey);
-            } else {
-                if (line.startsWith("/")) {
-                    ts.initTsAttributes(hostUrl + line.substring(1), tsDuration, tsIndex, hasDiscontinuity, hasKey);
-                } else {
-                    ts.initTsAttributes(baseUriPath + line, tsDuration, tsIndex, hasDiscontinuity, hasKey);
-                }
-            }
+            ts.initTsAttributes(isLocalFile ? line : resolveUrl(line, baseUriPath, hostUrl),
+                    tsDuration, tsIndex, hasDiscontinuity, hasKey);
             if (hasKey) {
                 ts.setKeyConfig(method, encryptionKeyUri, encryptionIV);
             }
+            if (byteRangeLength > 0) {
+                long offset = byteRangeOffset >= 0 ? byteRangeOffset : nextByteRangeOffset;
+                ts.setByteRange(offset, byteRangeLength);
+                nextByteRangeOffset = offset + byteRangeLength;
+            }
+            ts.setInitSegment(initSegment);
             m3u8.addTs(ts);
             tsIndex++;
             tsDuration = 0;
@@ -185,35 +366,80 @@ public class M3U8Utils {
             method = null;
             encryptionKeyUri = null;
             encryptionIV = null;
+            byteRangeLength = -1;
+            byteRangeOffset = -1;
         }
-        if (inputStreamReader != null) {
-            inputStreamReader.close();
+        return variants;
+    }
+
+    private static boolean isTag(String line, int tagEnd, String tag) {
+        return tagEnd == tag.length() && line.startsWith(tag);
+    }
+
+    //The METHOD value is one of the enumerated strings, null for an unknown method.
+    private static String parseMethod(AttributeListReader attributes) {
+        for (String method : METHODS) {
+            if (attributes.valueIs(method)) {
+                return method;
+            }
         }
-        if (bufferedReader != null) {
-            bufferedReader.close();
+        return null;
+    }
+
+    //decimal-integer at the position, -1 if there is no digit.
+    private static long parseDecimalInteger(String line, int position) {
+        long value = -1;
+        for (int index = position; index < line.length(); index++) {
+            char c = line.charAt(index);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = (value < 0 ? 0 : value * 10) + (c - '0');
         }
-        m3u8.setTargetDuration(targetDuration);
-        m3u8.setVersion(version);
-        m3u8.setSequence(sequence);
-        m3u8.setHasEndList(hasEndList);
-        return m3u8;
+        return value;
     }
 
-    private static String parseStringAttr(String line, Pattern pattern) {
-        if (pattern == null)
-            return null;
-        Matcher matcher = pattern.matcher(line);
-        if (matcher.find() && matcher.groupCount() == 1) {
-            return matcher.group(1);
+    //Offset 'o' of the byte range 'n[@o]' at the position, -1 if it is not given.
+    private static long parseByteRangeOffset(String line, int position) {
+        int separator = line.indexOf('@', position);
+        return separator < 0 ? -1 : parseDecimalInteger(line, separator + 1);
+    }
+
+    //decimal-floating-point at the position, like '9.009' of '#EXTINF:9.009,', -1 if there is no digit.
+    private static double parseDecimal(String line, int position) {
+        long mantissa = 0;
+        long divisor = 1;
+        boolean hasDigit = false;
+        boolean inFraction = false;
+        for (int index = position; index < line.length(); index++) {
+            char c = line.charAt(index);
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+                //Digits beyond the precision of a long are dropped.
+                if (mantissa < Long.MAX_VALUE / 10 && divisor < Long.MAX_VALUE / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (inFraction) {
+                        divisor *= 10;
+                    }
+                }
+            } else if (c == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
         }
-        return null;
+        return hasDigit ? (double) mantissa / divisor : -1;
     }
 
-    private static String parseOptionalStringAttr(String line, Pattern pattern) {
-        if (pattern == null)
-            return null;
-        Matcher matcher = pattern.matcher(line);
-        return matcher.find() ? matcher.group(1) : null;
+    //Absolute url of a uri in the playlist.
+    private static String resolveUrl(String uri, String baseUriPath, String hostUrl) {
+        if (uri.startsWith("http")) {
+            return uri;
+        }
+        if (uri.startsWith("/")) {
+            return hostUrl + uri.substring(1);
+        }
+        return baseUriPath + uri;
     }
 
     public static void createRemoteM3U8(File dir, M3U8 m3u8) throws IOException {
@@ -226,30 +452,17 @@ public class M3U8Utils {
         bfw.write(TAG_VERSION + ":" + m3u8.getVersion() + "\n");
         bfw.write(TAG_MEDIA_SEQUENCE + ":"+m3u8.getSequence()+"\n");
         bfw.write(TAG_TARGET_DURATION + ":" + m3u8.getTargetDuration() + "\n");
+        M3U8InitSegment initSegment = null;
         for (M3U8Ts m3u8Ts : m3u8.getTsList()) {
             if (m3u8Ts.hasKey()) {
                 if (m3u8Ts.getMethod() != null) {
                     String key = "METHOD=" + m3u8Ts.getMethod();
+                    //The keys are fetched by the download task, see M3U8KeyManager.
                     if (m3u8Ts.getKeyUri() != null) {
-                        String keyUri = m3u8Ts.getKeyUri();
-                        key += ",URI=\"" + keyUri + "\"";
-                        URL keyURL = new URL(keyUri);
-                        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(keyURL.openStream()));
-                        StringBuilder textBuilder = new StringBuilder();
-                        String line = null;
-                        while ((line = bufferedReader.readLine()) != null) {
-                            textBuilder.append(line);
-                        }
-                        boolean isMessyStr = LocalProxyUtils.isMessyCode(textBuilder.toString());
-                        m3u8Ts.setIsMessyKey(isMessyStr);
-                        File keyFile = new File(dir, m3u8Ts.getLocalKeyUri());
-                        FileOutputStream outputStream = new FileOutputStream(keyFile);
-                        outputStream.write(textBuilder.toString().getBytes());
-                        bufferedReader.close();
-                        outputStream.close();
-                        if (m3u8Ts.getKeyIV() != null) {
-                            key += ",IV=" + m3u8Ts.getKeyIV();
-                        }
+                        key += ",URI=\"" + m3u8Ts.getKeyUri() + "\"";
+                    }
+                    if (m3u8Ts.getKeyIV() != null) {
+                        key += ",IV=" + m3u8Ts.getKeyIV();
                     }
                     bfw.write(TAG_KEY + ":" + key + "\n");
                 }
@@ -257,7 +470,18 @@ public class M3U8Utils {
             if (m3u8Ts.hasDiscontinuity()) {
                 bfw.write(TAG_DISCONTINUITY+"\n");
             }
+            if (m3u8Ts.getInitSegment() != null && !m3u8Ts.getInitSegment().equals(initSegment)) {
+                initSegment = m3u8Ts.getInitSegment();
+                String map = "URI=\"" + initSegment.getUrl() + "\"";
+                if (initSegment.hasByteRange()) {
+                    map += ",BYTERANGE=\"" + initSegment.getByteRangeLength() + "@" + initSegment.getByteRangeOffset() + "\"";
+                }
+                bfw.write(TAG_MAP + ":" + map + "\n");
+            }
             bfw.write(TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration()+",\n");
+            if (m3u8Ts.hasByteRange()) {
+                bfw.write(TAG_BYTERANGE + ":" + m3u8Ts.getByteRangeLength() + "@" + m3u8Ts.getByteRangeOffset() + "\n");
+            }
             bfw.write(m3u8Ts.getUrl());
             bfw.newLine();
         }
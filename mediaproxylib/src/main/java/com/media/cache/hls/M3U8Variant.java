@@ -0,0 +1,62 @@
+package com.media.cache.hls;
+
+/**
+ * A variant stream of a master playlist, from '#EXT-X-STREAM-INF' and the uri line after it.
+ */
+public class M3U8Variant {
+
+    private final String mUrl;
+    private final long mBandwidth;        // bits per second, 0 if it is not given.
+    private final long mAverageBandwidth; // bits per second, 0 if it is not given.
+    private final int mWidth;
+    private final int mHeight;
+    private final String mCodecs;         // null if it is not given.
+
+    public M3U8Variant(String url, long bandwidth, long averageBandwidth, int width, int height, String codecs) {
+        this.mUrl = url;
+        this.mBandwidth = bandwidth;
+        this.mAverageBandwidth = averageBandwidth;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mCodecs = codecs;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getBandwidth() {
+        return mBandwidth;
+    }
+
+    public long getAverageBandwidth() {
+        return mAverageBandwidth;
+    }
+
+    //The bitrate the variant needs to play without stalling, the peak one if it is given.
+    public long getRequiredBandwidth() {
+        return mBandwidth > 0 ? mBandwidth : mAverageBandwidth;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getCodecs() {
+        return mCodecs;
+    }
+
+    //The ts of the variant can replace the ones of this variant without the player being told of it.
+    public boolean isCompatible(M3U8Variant other) {
+        return mWidth == other.mWidth && mHeight == other.mHeight &&
+                (mCodecs == null ? other.mCodecs == null : mCodecs.equals(other.mCodecs));
+    }
+
+    public String toString() {
+        return "M3U8Variant[bandwidth=" + mBandwidth + ", resolution=" + mWidth + "x" + mHeight + ", codecs=" + mCodecs + ", url=" + mUrl + "]";
+    }
+}
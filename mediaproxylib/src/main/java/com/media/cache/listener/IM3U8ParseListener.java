@@ -0,0 +1,14 @@
+package com.media.cache.listener;
+
+import com.media.cache.hls.M3U8;
+import com.media.cache.hls.M3U8Ts;
+
+public interface IM3U8ParseListener {
+
+    //The ts is appended to the M3U8, the tags before it are parsed.
+    void onTsParsed(M3U8 m3u8, M3U8Ts ts);
+
+    void onM3U8Parsed(M3U8 m3u8);
+
+    void onM3U8ParseFailed(M3U8 m3u8, Throwable error);
+}
@@ -13,7 +13,8 @@ public interface IVideoInfoCallback {
 
     void onM3U8InfoSuccess(VideoCacheInfo info, M3U8 m3u8);
 
-    void onLiveM3U8Callback(VideoCacheInfo info);
+    //The media playlist has no '#EXT-X-ENDLIST', it is proxied by a live task.
+    void onLiveM3U8Callback(VideoCacheInfo info, M3U8 m3u8);
 
     void onM3U8InfoFailed(Throwable error);
 }
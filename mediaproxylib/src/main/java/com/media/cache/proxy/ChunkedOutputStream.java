@@ -6,6 +6,12 @@ import java.io.OutputStream;
 
 public class ChunkedOutputStream extends FilterOutputStream {
 
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private final byte[] mChunkHeader = new byte[10];
+
     public ChunkedOutputStream(OutputStream outputStream) {
         super(outputStream);
     }
@@ -25,13 +31,19 @@ public class ChunkedOutputStream extends FilterOutputStream {
     public void write(byte[] b, int off, int len) throws IOException {
         if (len == 0)
             return;
-        out.write(String.format("%x\r\n", len).getBytes());
+        int position = mChunkHeader.length - CRLF.length;
+        System.arraycopy(CRLF, 0, mChunkHeader, position, CRLF.length);
+        int length = len;
+        do {
+            mChunkHeader[--position] = HEX_DIGITS[length & 0xf];
+            length >>>= 4;
+        } while (length != 0);
+        out.write(mChunkHeader, position, mChunkHeader.length - position);
         out.write(b, off, len);
-        out.write("\r\n".getBytes());
+        out.write(CRLF);
     }
 
     public void finish() throws IOException {
-        out.write("0\r\n\r\n".getBytes());
+        out.write(LAST_CHUNK);
     }
 }
-
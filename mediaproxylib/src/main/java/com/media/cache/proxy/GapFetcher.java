@@ -0,0 +1,87 @@
+package com.media.cache.proxy;
+
+import com.media.cache.download.GrowingFile;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.UpstreamClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+
+/**
+ * Ranged request of an uncached gap of a {@link GrowingFile}.
+ * The fetched bytes are written into the cache file and published to the growing file,
+ * so the response reads them from the cache like the bytes of the download task.
+ */
+class GapFetcher {
+
+    private final GrowingFile mGrowingFile;
+    private final UpstreamClient mUpstreamClient;
+    private final HttpURLConnection mConnection;
+    private final InputStream mInputStream;
+    private final RandomAccessFile mRandomAccessFile;
+    private final byte[] mBuffer = new byte[LocalProxyUtils.DEFAULT_BUFFER_SIZE];
+    private final long mEnd; // exclusive, -1 if it is the end of the file of unknown length.
+    private long mPosition;
+    private boolean mEndOfStream;
+
+    GapFetcher(GrowingFile growingFile, UpstreamClient upstreamClient, HttpURLConnection connection,
+               long start, long end) throws IOException {
+        mGrowingFile = growingFile;
+        mUpstreamClient = upstreamClient;
+        mConnection = connection;
+        mPosition = start;
+        mEnd = end;
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL &&
+                !(responseCode == HttpURLConnection.HTTP_OK && start == 0)) {
+            upstreamClient.disconnect(connection);
+            throw new IOException("Fetch gap " + start + "-" + end + " failed, responseCode=" + responseCode);
+        }
+        try {
+            mInputStream = connection.getInputStream();
+            mRandomAccessFile = new RandomAccessFile(growingFile.getFile(), "rw");
+            mRandomAccessFile.seek(start);
+        } catch (IOException e) {
+            upstreamClient.disconnect(connection);
+            throw e;
+        }
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    boolean isFinished() {
+        return mEnd >= 0 ? mPosition >= mEnd : mEndOfStream;
+    }
+
+    //Fetch the next buffer into the cache file, returns the length written at the position.
+    //-1 if the file of unknown length ends at the position.
+    long fetch() throws IOException {
+        int length = mEnd >= 0 ? (int) Math.min(mBuffer.length, mEnd - mPosition) : mBuffer.length;
+        int read = mInputStream.read(mBuffer, 0, length);
+        if (read < 0 && mEnd < 0) {
+            mEndOfStream = true;
+            return -1;
+        }
+        if (read <= 0) {
+            throw new IOException("Fetch gap ended at " + mPosition + ", expected " + mEnd);
+        }
+        mRandomAccessFile.write(mBuffer, 0, read);
+        long start = mPosition;
+        mPosition += read;
+        mGrowingFile.onFetched(start, read);
+        return read;
+    }
+
+    void close() {
+        LocalProxyUtils.close(mRandomAccessFile);
+        if (isFinished()) {
+            mUpstreamClient.release(mConnection);
+        } else {
+            mUpstreamClient.disconnect(mConnection);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.media.cache.proxy;
+
+/**
+ * Single byte range of the 'Range' request header, RFC 7233.
+ * "bytes=0-499", "bytes=500-" and the suffix range "bytes=-500" are supported,
+ * multiple ranges are ignored and the whole entity is sent.
+ */
+class HttpRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    static final HttpRange NOT_SATISFIABLE = new HttpRange(-1L, -1L);
+
+    final long start; // first byte, inclusive.
+    final long end;   // last byte, inclusive.
+
+    HttpRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return null if the header is absent or ignored, {@link #NOT_SATISFIABLE} if no byte of
+     * the range is inside the entity.
+     */
+    static HttpRange parse(String header, long totalLength) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        if (spec.indexOf(',') >= 0) {
+            return null;
+        }
+        int dashIndex = spec.indexOf('-');
+        if (dashIndex < 0) {
+            return null;
+        }
+        String firstPos = spec.substring(0, dashIndex).trim();
+        String lastPos = spec.substring(dashIndex + 1).trim();
+        long start;
+        long end;
+        try {
+            if (firstPos.isEmpty()) {
+                if (lastPos.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(lastPos);
+                if (suffixLength <= 0 || totalLength <= 0) {
+                    return NOT_SATISFIABLE;
+                }
+                start = Math.max(0, totalLength - suffixLength);
+                end = totalLength - 1;
+            } else {
+                start = Long.parseLong(firstPos);
+                end = lastPos.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPos);
+                if (end < start) {
+                    return null;
+                }
+                if (start >= totalLength) {
+                    return NOT_SATISFIABLE;
+                }
+                end = Math.min(end, totalLength - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new HttpRange(start, end);
+    }
+
+    public String toString() {
+        return "HttpRange[start=" + start + ", end=" + end + "]";
+    }
+}
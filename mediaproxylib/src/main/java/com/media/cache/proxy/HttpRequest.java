@@ -3,51 +3,60 @@ package com.media.cache.proxy;
 import com.media.cache.utils.LocalProxyUtils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.nio.charset.Charset;
 
 import javax.net.ssl.SSLException;
 
+/**
+ * A request of a connection, it is reused by the requests of a keep-alive connection.
+ * The request line and the headers are tokenized in place in the header bytes, only the uri and the
+ * values of the headers the proxy uses are turned into Strings.
+ */
 public class HttpRequest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HEADER_RANGE = "range";
+    private static final String HEADER_IF_RANGE = "if-range";
+    private static final String HEADER_HOST = "host";
+    private static final String HEADER_CONNECTION = "connection";
+    private static final String CONNECTION_CLOSE = "close";
+
+    //Sent before the connection is closed if the header does not fit the buffer.
+    static final byte[] HEADER_TOO_LARGE_RESPONSE = (HTTP_1_1 + " " +
+            ResponseState.REQUEST_HEADER_FIELDS_TOO_LARGE.getDescription() +
+            "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(UTF_8);
+
     private final BufferedInputStream mInputStream;
-    private final String mRemoteIP;
-    private final String mRemoteHostname;
-    private final HashMap<String, String> mHeaders;
-    private HashMap<String, String> mParams;
+    private final byte[] mBuffer; // Header bytes of the blocking engine, the NIO engine has its own.
     private Method mMethod;
     private String mUri;
     private String mProtocolVersion;
+    private String mRange;
+    private String mIfRange;
+    private String mHost;
     private boolean mKeepAlive;
-    private String mQueryParameter;
-
-    public HttpRequest(InputStream inputStream, InetAddress inetAddress) {
-        this.mInputStream = new BufferedInputStream(inputStream);
+    private boolean mHeaderTooLarge;
+    private byte[] mUriBuffer;
 
-        //isLoopbackAddress() : local address; 127.0.0.0 ~ 127.255.255.255
-        //isAnyLocalAddress() : normal address ?
-        this.mRemoteIP = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress();
-        this.mRemoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName();
-        this.mHeaders = new HashMap<String, String>();
+    public HttpRequest(InputStream inputStream) {
+        this.mInputStream = inputStream != null ? new BufferedInputStream(inputStream) : null;
+        this.mBuffer = inputStream != null ? new byte[LocalProxyUtils.DEFAULT_BUFFER_SIZE] : null;
     }
 
     public void parseRequest() throws Exception {
-        byte[] buf = new byte[LocalProxyUtils.DEFAULT_BUFFER_SIZE];
+        byte[] buf = mBuffer;
         int splitByteIndex = 0;
         int readLength = 0;
 
         int read = -1;
-        this.mInputStream.mark(LocalProxyUtils.DEFAULT_BUFFER_SIZE);
+        this.mInputStream.mark(buf.length);
         try {
-            read = this.mInputStream.read(buf, 0, LocalProxyUtils.DEFAULT_BUFFER_SIZE);
+            read = this.mInputStream.read(buf, 0, buf.length);
         } catch (SSLException e) {
             throw e;
         } catch (IOException e) {
@@ -61,10 +70,14 @@ public class HttpRequest {
         while (read > 0) {
             readLength += read;
             splitByteIndex = findResponseHeaderEnd(buf, readLength);
-            if (splitByteIndex > 0) {
+            if (splitByteIndex > 0 || readLength == buf.length) {
                 break;
             }
-            read = this.mInputStream.read(buf, readLength, LocalProxyUtils.DEFAULT_BUFFER_SIZE - readLength);
+            read = this.mInputStream.read(buf, readLength, buf.length - readLength);
+        }
+        if (splitByteIndex <= 0) {
+            mHeaderTooLarge = readLength == buf.length;
+            throw new IOException(mHeaderTooLarge ? "Request header is too large." : "Request header is incomplete.");
         }
 
         if (splitByteIndex < readLength) {
@@ -72,36 +85,80 @@ public class HttpRequest {
             this.mInputStream.skip(splitByteIndex);
         }
 
-        this.mParams = new HashMap<String, String>();
-        this.mHeaders.clear();
-
-        // Create a BufferedReader for parsing the header.
-        BufferedReader headerReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, readLength)));
-
-        // Decode the header into params and header java properties
-        Map<String, String> extraInfo = new HashMap<String, String>();
-        decodeHeader(headerReader, extraInfo, this.mParams, this.mHeaders);
+        decodeRequest(buf, splitByteIndex);
+    }
 
-        if (null != this.mRemoteIP) {
-            this.mHeaders.put("remote-addr", this.mRemoteIP);
-            this.mHeaders.put("http-client-ip", this.mRemoteIP);
+    //Decode a request whose header bytes have already been read, used by the NIO engine as well.
+    void decodeRequest(byte[] buf, int readLength) throws Exception {
+        mMethod = null;
+        mUri = null;
+        mRange = null;
+        mIfRange = null;
+        mHost = null;
+        mHeaderTooLarge = false;
+
+        //Request line: GET /example/file.html HTTP/1.1
+        int lineEnd = findLineEnd(buf, 0, readLength);
+        int end = trimEnd(buf, 0, lineEnd);
+        int methodStart = skipSpaces(buf, 0, end);
+        int methodEnd = findSpace(buf, methodStart, end);
+        if (methodStart == methodEnd) {
+            throw new Exception("Bad request, syntax error, correct format: GET /example/file.html");
         }
-
-        this.mMethod = Method.lookup(extraInfo.get("method"));
-        if (this.mMethod == null) {
-            throw new Exception("BAD REQUEST: Syntax error. HTTP verb " + extraInfo.get("method") + " unhandled.");
+        mMethod = Method.lookup(buf, methodStart, methodEnd);
+        if (mMethod == null) {
+            throw new Exception("BAD REQUEST: Syntax error. HTTP verb " +
+                    new String(buf, methodStart, methodEnd - methodStart, UTF_8) + " unhandled.");
+        }
+        int uriStart = skipSpaces(buf, methodEnd, end);
+        int uriEnd = findSpace(buf, uriStart, end);
+        if (uriStart == uriEnd) {
+            throw new Exception("Bad request, syntax error, correct format: GET /example/file.html");
+        }
+        mUri = decodeUri(buf, uriStart, uriEnd);
+        int versionStart = skipSpaces(buf, uriEnd, end);
+        int versionEnd = findSpace(buf, versionStart, end);
+        if (versionStart == versionEnd || equalsAscii(buf, versionStart, versionEnd, HTTP_1_1, false)) {
+            //default protocol version
+            mProtocolVersion = HTTP_1_1;
+        } else if (equalsAscii(buf, versionStart, versionEnd, HTTP_1_0, false)) {
+            mProtocolVersion = HTTP_1_0;
+        } else {
+            mProtocolVersion = new String(buf, versionStart, versionEnd - versionStart, UTF_8);
         }
 
-        this.mUri = extraInfo.get("uri");
-
-        String connection = this.mHeaders.get("connection");
-        mKeepAlive = "HTTP/1.1".equals(mProtocolVersion) &&
-                (connection == null || !connection.matches("(?i).*close.*"));
+        //Headers until the empty line, the names are case insensitive.
+        boolean connectionClose = false;
+        int position = lineEnd + 1;
+        while (position < readLength) {
+            lineEnd = findLineEnd(buf, position, readLength);
+            end = trimEnd(buf, position, lineEnd);
+            if (skipSpaces(buf, position, end) == end) {
+                break;
+            }
+            int colon = indexOf(buf, (byte) ':', position, end);
+            if (colon >= 0) {
+                int nameStart = skipSpaces(buf, position, colon);
+                int nameEnd = trimEnd(buf, nameStart, colon);
+                int valueStart = skipSpaces(buf, colon + 1, end);
+                if (equalsAscii(buf, nameStart, nameEnd, HEADER_RANGE, true)) {
+                    mRange = new String(buf, valueStart, end - valueStart, UTF_8);
+                } else if (equalsAscii(buf, nameStart, nameEnd, HEADER_CONNECTION, true)) {
+                    connectionClose = containsAscii(buf, valueStart, end, CONNECTION_CLOSE);
+                } else if (equalsAscii(buf, nameStart, nameEnd, HEADER_IF_RANGE, true)) {
+                    mIfRange = new String(buf, valueStart, end - valueStart, UTF_8);
+                } else if (equalsAscii(buf, nameStart, nameEnd, HEADER_HOST, true)) {
+                    mHost = new String(buf, valueStart, end - valueStart, UTF_8);
+                }
+            }
+            position = lineEnd + 1;
+        }
+        mKeepAlive = HTTP_1_1.equals(mProtocolVersion) && !connectionClose;
     }
 
     //GET / HTTP/1.1\r\nHost: www.sina.com.cn\r\nConnection: close\r\n\r\n
     //'\r\n\r\n'
-    private int findResponseHeaderEnd(final byte[] buf, int readLength) {
+    static int findResponseHeaderEnd(final byte[] buf, int readLength) {
         int splitByteIndex = 0;
         while (splitByteIndex + 1 < readLength) {
 
@@ -123,85 +180,101 @@ public class HttpRequest {
         return 0;
     }
 
-    private void decodeHeader(BufferedReader headerReader,
-                              Map<String, String> extraInfo,
-                              Map<String, String> params,
-                              Map<String, String> headers) throws Exception {
-        try {
-            // Read the request line
-            String readLine = headerReader.readLine();
-            if (readLine == null) {
-                return;
-            }
-
-            StringTokenizer st = new StringTokenizer(readLine);
-            if (!st.hasMoreTokens()) {
-                throw new Exception("Bad request, syntax error, correct format: GET /example/file.html");
+    //The path without the query, unescaped like URLDecoder into the reused buffer.
+    private String decodeUri(byte[] buf, int start, int end) {
+        int query = indexOf(buf, (byte) '?', start, end);
+        if (query >= 0) {
+            end = query;
+        }
+        if (mUriBuffer == null || mUriBuffer.length < end - start) {
+            mUriBuffer = new byte[Math.max(end - start, LocalProxyUtils.DEFAULT_BUFFER_SIZE)];
+        }
+        byte[] decoded = mUriBuffer;
+        int length = 0;
+        for (int index = start; index < end; index++) {
+            byte b = buf[index];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                int high = index + 2 < end ? Character.digit(buf[index + 1], 16) : -1;
+                int low = high >= 0 ? Character.digit(buf[index + 2], 16) : -1;
+                if (low < 0) {
+                    //A malformed escape, it is handled as before.
+                    return LocalProxyUtils.decodeUri(new String(buf, start, end - start, UTF_8));
+                }
+                b = (byte) (high << 4 | low);
+                index += 2;
             }
+            decoded[length++] = b;
+        }
+        return new String(decoded, 0, length, UTF_8);
+    }
 
-            extraInfo.put("method", st.nextToken());
+    //Index of the '\n' ending the line from the position, the end if there is none.
+    private static int findLineEnd(byte[] buf, int position, int end) {
+        int index = indexOf(buf, (byte) '\n', position, end);
+        return index >= 0 ? index : end;
+    }
 
-            if (!st.hasMoreTokens()) {
-                throw new Exception("Bad request, syntax error, correct format: GET /example/file.html");
+    private static int indexOf(byte[] buf, byte b, int start, int end) {
+        for (int index = start; index < end; index++) {
+            if (buf[index] == b) {
+                return index;
             }
+        }
+        return -1;
+    }
 
-            String uri = st.nextToken();
-
-            // Decode parameters from the URI
-            int questionMaskIndex = uri.indexOf('?');
-            if (questionMaskIndex >= 0 && questionMaskIndex < uri.length()) {
-                decodeParams(uri.substring(questionMaskIndex + 1), params);
-                uri = LocalProxyUtils.decodeUri(uri.substring(0, questionMaskIndex));
-            } else {
-                uri = LocalProxyUtils.decodeUri(uri);
-            }
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
 
-            // If there's another token, its protocol version,
-            // followed by HTTP headers.
-            // NOTE: this now forces header names lower case since they are
-            // case insensitive and vary by client.
-            if (st.hasMoreTokens()) {
-                mProtocolVersion = st.nextToken();
-            } else {
-                //default protocol version
-                mProtocolVersion = "HTTP/1.1";
-            }
+    private static int skipSpaces(byte[] buf, int position, int end) {
+        while (position < end && isSpace(buf[position])) {
+            position++;
+        }
+        return position;
+    }
 
-            //parse headers:
-            String line = headerReader.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int index = line.indexOf(':');
-                if (index >= 0 && index < line.length()) {
-                    headers.put(line.substring(0, index).trim().
-                            toLowerCase(Locale.US), line.substring(index + 1).trim());
-                }
-                line = headerReader.readLine();
-            }
+    private static int findSpace(byte[] buf, int position, int end) {
+        while (position < end && !isSpace(buf[position])) {
+            position++;
+        }
+        return position;
+    }
 
-            extraInfo.put("uri", uri);
-        } catch (IOException e) {
-            throw new Exception( "Parsing Header Exception: " + e.getMessage(), e);
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && isSpace(buf[end - 1])) {
+            end--;
         }
+        return end;
     }
 
-    private void decodeParams(String params, Map<String, String> paramsMap) {
-        if (params == null) {
-            this.mQueryParameter = "";
-            return;
+    //The bytes are the ascii string, the lower case string matches any case if ignoreCase.
+    static boolean equalsAscii(byte[] buf, int start, int end, String string, boolean ignoreCase) {
+        if (end - start != string.length()) {
+            return false;
         }
+        for (int index = 0; index < string.length(); index++) {
+            int b = buf[start + index];
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != string.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        this.mQueryParameter = params;
-        StringTokenizer st = new StringTokenizer(params, "&");
-        while (st.hasMoreTokens()) {
-            String item = st.nextToken();
-            int index = item.indexOf('=');
-            if (index >= 0 && index < item.length()) {
-                paramsMap.put(LocalProxyUtils.decodeUri(item.substring(0, index)).trim(),
-                        LocalProxyUtils.decodeUri(item.substring(index + 1)));
-            } else {
-                paramsMap.put(LocalProxyUtils.decodeUri(item).trim(), "");
+    //The bytes contain the lower case ascii string in any case.
+    private static boolean containsAscii(byte[] buf, int start, int end, String string) {
+        for (int index = start; index + string.length() <= end; index++) {
+            if (equalsAscii(buf, index, index + string.length(), string, true)) {
+                return true;
             }
         }
+        return false;
     }
 
     public String getMimeType() {
@@ -216,10 +289,27 @@ public class HttpRequest {
         return String.valueOf(mUri);
     }
 
+    public String getRange() {
+        return mRange;
+    }
+
+    public String getIfRange() {
+        return mIfRange;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
     public boolean keepAlive() {
         return mKeepAlive;
     }
 
+    //The last request is rejected as its header does not fit the buffer.
+    public boolean isHeaderTooLarge() {
+        return mHeaderTooLarge;
+    }
+
     public Method requestMethod() {
         return mMethod;
     }
@@ -3,58 +3,78 @@ package com.media.cache.proxy;
 import android.text.TextUtils;
 
 import com.media.cache.LocalProxyConfig;
+import com.media.cache.download.CacheIndex;
+import com.media.cache.download.GrowingFile;
+import com.media.cache.download.LiveM3U8DownloadTask;
+import com.media.cache.download.M3U8KeyManager;
+import com.media.cache.download.M3U8VideoDownloadTask;
 import com.media.cache.utils.HttpUtils;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.cert.X509Certificate;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
-import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
-import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
-import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
-
 public class HttpResponse {
 
     private static String CONTENT_TYPE = "Content-Type";
     private static String DATE = "Date";
     private static String CONNECTION = "Connection";
     private static String TRANSFER_ENCODING = "Transfer-Encoding";
+    private static String CONTENT_LENGTH = "Content-Length";
+    private static String CONTENT_RANGE = "Content-Range";
+    private static String ACCEPT_RANGES = "Accept-Ranges";
+    private static String LAST_MODIFIED = "Last-Modified";
     private static String GMT_PATTERN = "E, d MMM yyyy HH:mm:ss 'GMT'";
+    private static String RANGE = "Range";
+    private static final long GAP_WAIT_INTERVAL = 500L;
 
     private final HttpRequest mRequest;
     private final LocalProxyConfig mConfig;
+    private final UpstreamClient mUpstreamClient;
     private final File mCacheRoot;
     private final String mMimeType;
     private final String mProtocolVersion;
     private IState mResponseState;
     private InputStream mInputStream;
+    private byte[] mMemoryBody;        // Not null if the body is generated in memory, e.g. a live playlist.
+    private FileChannel mFileChannel;
+    private long mContentLength = -1L; // -1 means unknown, the body is sent chunked.
+    private long mTotalLength = -1L;   // Whole cache file's length.
+    private HttpRange mRange;          // Requested range of the cache file.
+    private String mLastModified;      // Validator of a completed cache file, a growing file has none.
+    private GrowingFile mGrowingFile;  // Not null if a download task is still writing the cache file.
+    private GapFetcher mGapFetcher;    // Fetching the uncached gap at the body position.
+    private GrowingFile mFetchingFile; // Not null if this response fetches the file, the body is teed into it.
+    private HttpURLConnection mUpstreamConnection;
+    private InputStream mUpstreamStream;
+    private boolean mUpstreamTruncated; // Only the head of the upstream body is read.
     private String mProxyAuthInfo = "";
 
     public HttpResponse(HttpRequest request, LocalProxyConfig config) throws Exception {
         this.mRequest = request;
         this.mConfig = config;
+        this.mUpstreamClient = UpstreamClient.getInstance(config);
         this.mCacheRoot = config.getCacheRoot();
         this.mMimeType = mRequest.getMimeType();
         this.mProtocolVersion = mRequest.getProtocolVersion();
@@ -65,31 +85,41 @@ public class HttpResponse {
                 String[] arr = resultUrl.split(LocalProxyUtils.SPLIT_STR);
                 String url = arr[0];
                 String fileName = arr[1];
+                String byteRange = arr.length > 2 ? arr[2] : null; // '{first}-{last}' of a byte range ts.
+
+                //The player moves on, the hls task downloads ahead of this ts.
+                M3U8VideoDownloadTask.onTsRequested(fileName);
 
                 File file = new File(mCacheRoot, fileName);
-                if (file.exists()) {
+                CacheIndex.getInstance(config).touch(file);
+                //Only the first request of an uncached file fetches it, the others read the fetching file.
+                GrowingFile growingFile = GrowingFile.beginFetch(file);
+                if (growingFile != null) {
                     try {
-                        mInputStream = new FileInputStream(file);
-                        this.mResponseState = ResponseState.OK;
+                        downloadFile(M3U8VideoDownloadTask.getTsUrl(fileName, url), byteRange, growingFile);
                     } catch (Exception e) {
-                        throw new Exception("No files found to the request:" + file.getAbsolutePath(), e);
+                        close();
+                        growingFile.abort();
+                        throw new Exception("HttpResponse download file failed:"+e);
                     }
                 } else {
                     try {
-                        mInputStream = downloadFile(url, file);
-                        this.mResponseState = ResponseState.OK;
+                        openCacheFile(file);
                     } catch (Exception e) {
-                        throw new Exception("HttpResponse download file failed:"+e);
+                        throw new Exception("No files found to the request:" + file.getAbsolutePath(), e);
                     }
                 }
             }
 
         }else {
             File file = new File(mCacheRoot, mRequest.getUri());
-            if (file.exists()) {
+            CacheIndex.getInstance(config).touch(file);
+            byte[] playlist = LiveM3U8DownloadTask.getPlaylist(mRequest.getUri());
+            if (playlist != null) {
+                openMemoryBody(playlist);
+            } else if (file.exists() || M3U8KeyManager.getInstance(config).fetchKey(file)) {
                 try {
-                    mInputStream = new FileInputStream(file);
-                    this.mResponseState = ResponseState.OK;
+                    openCacheFile(file);
                 } catch (Exception e) {
                     throw new Exception("No files found to the request:" + file.getAbsolutePath(), e);
                 }
@@ -100,146 +130,362 @@ public class HttpResponse {
         }
     }
 
-    private static final int REDIRECTED_COUNT = 3;
-
-    public InputStream downloadFile(String url, File file) throws Exception {
-        HttpURLConnection connection = null;
-        InputStream inputStream = null;
-        try {
-            connection = openConnection(url);
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpUtils.RESPONSE_OK) {
-                inputStream = connection.getInputStream();
-                saveFile(inputStream, file);
-                return inputStream;
+    //Cached file has a known size, so it can be sent with Content-Length by FileChannel.transferTo.
+    //A satisfiable 'Range' is served from its offset in the file as 206 Partial Content.
+    //An 'If-Range' which is not the Last-Modified of the completed file gets the whole file instead.
+    private void openCacheFile(File file) throws IOException {
+        GrowingFile growingFile = GrowingFile.get(file);
+        FileInputStream fileInputStream;
+        if (growingFile != null && !growingFile.getFile().equals(file)) {
+            try {
+                fileInputStream = new FileInputStream(growingFile.getFile());
+            } catch (FileNotFoundException e) {
+                //The temp file is published or aborted just now.
+                growingFile = null;
+                fileInputStream = new FileInputStream(file);
             }
-        }catch (Exception e) {
-            throw e;
-        }finally {
-            if (connection != null)
-                connection.disconnect();
+        } else {
+            fileInputStream = new FileInputStream(file);
+        }
+        mInputStream = fileInputStream;
+        mFileChannel = fileInputStream.getChannel();
+        mTotalLength = mFileChannel.size();
+        if (growingFile != null && !growingFile.isCompleted()) {
+            mGrowingFile = growingFile;
+            mTotalLength = growingFile.getTotalLength() > 0 ? growingFile.getTotalLength() : -1L;
+        }
+        if (mGrowingFile == null) {
+            mLastModified = formatGmtDate(file.lastModified());
+        }
+        String ifRange = mRequest.getIfRange();
+        boolean rangeValid = ifRange == null || ifRange.equals(mLastModified);
+        mRange = (mTotalLength >= 0 && rangeValid) ? HttpRange.parse(mRequest.getRange(), mTotalLength) : null;
+        if (mRange == null) {
+            mContentLength = mTotalLength;
+            mResponseState = ResponseState.OK;
+        } else if (mRange == HttpRange.NOT_SATISFIABLE) {
+            mContentLength = 0;
+            mResponseState = ResponseState.RANGE_NOT_SATISFIABLE;
+        } else {
+            mContentLength = mRange.getLength();
+            mFileChannel.position(mRange.start);
+            mResponseState = ResponseState.PARTIAL_CONTENT;
         }
-        return null;
     }
 
-    private HttpURLConnection openConnection(String videoUrl)
-            throws Exception {
-        HttpURLConnection connection;
-        boolean redirected;
-        int redirectedCount = 0;
-        do {
-            URL url = new URL(videoUrl);
-            connection = (HttpURLConnection)url.openConnection();
-            if (mConfig.shouldIgnoreAllCertErrors() && connection instanceof HttpsURLConnection) {
-                trustAllCert((HttpsURLConnection)(connection));
-            }
-            connection.setConnectTimeout(mConfig.getConnTimeOut());
-            connection.setReadTimeout(mConfig.getReadTimeOut());
-            int code = connection.getResponseCode();
-            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP ||
-                    code == HTTP_SEE_OTHER;
-            if (redirected) {
-                redirectedCount++;
-                connection.disconnect();
-            }
-            if (redirectedCount > REDIRECTED_COUNT) {
-                throw new Exception("Too many redirects: " +
-                        redirectedCount);
-            }
-        } while (redirected);
-        return connection;
+    private void openMemoryBody(byte[] body) {
+        mMemoryBody = body;
+        mInputStream = new ByteArrayInputStream(body);
+        mContentLength = body.length;
+        mResponseState = ResponseState.OK;
+    }
+
+    private long getBodyOffset() {
+        return (mRange != null && mRange != HttpRange.NOT_SATISFIABLE) ? mRange.start : 0L;
     }
 
-    private void saveFile(InputStream inputStream, File file) {
+    //Open the upstream of the file, the body is teed to the socket and the temp file of the growing file.
+    //The file of a byte range is fetched by a 'Range' request of it.
+    private void downloadFile(String url, String byteRange, GrowingFile growingFile) throws Exception {
+        HashMap<String, String> headers = null;
+        if (byteRange != null) {
+            headers = new HashMap<>();
+            headers.put("Range", "bytes=" + byteRange);
+        }
+        mUpstreamConnection = mUpstreamClient.open(url, headers);
+        int responseCode = mUpstreamConnection.getResponseCode();
+        if (byteRange != null && responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            mContentLength = UpstreamClient.getContentLength(mUpstreamConnection);
+        } else if (responseCode == HttpUtils.RESPONSE_OK && byteRange == null) {
+            mContentLength = UpstreamClient.getContentLength(mUpstreamConnection);
+        } else if (responseCode == HttpUtils.RESPONSE_OK && byteRange.startsWith("0-")) {
+            //The server ignores the 'Range', the range from the beginning is the head of the body.
+            mContentLength = Long.parseLong(byteRange.substring(2)) + 1;
+            mUpstreamTruncated = true;
+        } else {
+            throw new IOException("responseCode=" + responseCode);
+        }
+        mUpstreamStream = mUpstreamConnection.getInputStream();
+        mFetchingFile = growingFile;
+        mTotalLength = mContentLength;
+        growingFile.setTotalLength(mContentLength);
+        mResponseState = ResponseState.OK;
+    }
+
+    //Write every upstream chunk to the cache and to the client, the cache file is published only if
+    //the upstream completes. The fetch goes on if the client leaves, other requests may read it.
+    private void teeBody(OutputStream outputStream) throws IOException {
         FileOutputStream fos = null;
+        IOException clientException = null;
         try {
-            fos = new FileOutputStream(file);
+            fos = new FileOutputStream(mFetchingFile.getFile());
             int len = 0;
+            long position = 0;
             byte[] buf = new byte[LocalProxyUtils.DEFAULT_BUFFER_SIZE];
-            while ((len = inputStream.read(buf)) != -1) {
+            while ((!mUpstreamTruncated || position < mContentLength) && (len = mUpstreamStream.read(buf, 0,
+                    mUpstreamTruncated ? (int) Math.min(buf.length, mContentLength - position) : buf.length)) != -1) {
                 fos.write(buf, 0, len);
+                mFetchingFile.onWritten(position, len);
+                position += len;
+                if (outputStream != null && clientException == null) {
+                    try {
+                        outputStream.write(buf, 0, len);
+                    } catch (IOException e) {
+                        clientException = e;
+                    }
+                }
             }
-        } catch (Exception e) {
-            LogUtils.w(file.getAbsolutePath() + " saveFile failed, exception="+e);
-            if (file.exists()) {
-                file.delete();
+            fos.close();
+            if (!mFetchingFile.publish()) {
+                throw new IOException("Publish " + mFetchingFile.getFile().getName() + " failed.");
             }
+            CacheIndex.getInstance(mConfig).addSize(mFetchingFile.getFile(), position);
+            M3U8VideoDownloadTask.onTsPublished(mFetchingFile.getCacheFile(), position);
+        } catch (IOException e) {
+            LogUtils.w(mFetchingFile.getFile().getAbsolutePath() + " saveFile failed, exception="+e);
+            mFetchingFile.abort();
+            throw e;
         } finally {
-            LocalProxyUtils.close(inputStream);
             LocalProxyUtils.close(fos);
         }
+        if (clientException != null) {
+            throw clientException;
+        }
     }
 
+    public void send(OutputStream outputStream) throws Exception {
+        send(outputStream, null);
+    }
 
-    private void trustAllCert(HttpsURLConnection httpsURLConnection) {
-        SSLContext sslContext = null;
+    //The channel is the socket's channel, the cached file is transferred into it without copying.
+    public void send(OutputStream outputStream, WritableByteChannel channel) throws Exception {
         try {
-            sslContext = SSLContext.getInstance("TLS");
-            if (sslContext != null) {
-                TrustManager tm = new X509TrustManager() {
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
+            outputStream.write(buildResponseHeaders());
+            if (mFetchingFile != null) {
+                outputStream.flush();
+                if (!hasBody()) {
+                    teeBody(null);
+                } else if (mContentLength < 0) {
+                    ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
+                    teeBody(chunkedOutputStream);
+                    chunkedOutputStream.finish();
+                } else {
+                    teeBody(outputStream);
+                }
+            } else if (hasBody()) {
+                if (mContentLength < 0) {
+                    sendBodyWithCorrectTransferAndEncoding(outputStream);
+                } else if (channel != null && mMemoryBody == null) {
+                    outputStream.flush();
+                    transferBody(channel);
+                } else {
+                    sendBody(outputStream, mContentLength);
+                }
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new Exception("send response failed: ", e);
+        } finally {
+            close();
+        }
+    }
 
-                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
-                        LogUtils.i( "checkClientTrusted.");
-                    }
+    //Status line and headers, shared by the blocking and the NIO server.
+    byte[] buildResponseHeaders() throws Exception {
+        if (mResponseState == null) {
+            throw new Exception("sendResponse(): Status can't be null.");
+        }
+        StringWriter headerWriter = new StringWriter();
+        PrintWriter pw = new PrintWriter(headerWriter, false);
+        if (TextUtils.isEmpty(mProtocolVersion)) {
+            pw.append("HTTP/1.1 ");
+        } else {
+            pw.append(mProtocolVersion + " ");
+        }
+        pw.append(mResponseState.getDescription()).append(" \r\n");
+        if (!TextUtils.isEmpty(mMimeType)) {
+            appendHeader(pw, CONTENT_TYPE, mMimeType);
+        }
+        appendHeader(pw, DATE, formatGmtDate(System.currentTimeMillis()));
+        appendHeader(pw, CONNECTION, ( mRequest.keepAlive() ? "keep-alive" : "close"));
+        if (mTotalLength >= 0) {
+            appendHeader(pw, ACCEPT_RANGES, "bytes");
+        }
+        if (mLastModified != null) {
+            appendHeader(pw, LAST_MODIFIED, mLastModified);
+        }
+        if (mResponseState == ResponseState.PARTIAL_CONTENT) {
+            appendHeader(pw, CONTENT_RANGE, "bytes " + mRange.start + "-" + mRange.end + "/" + mTotalLength);
+        } else if (mResponseState == ResponseState.RANGE_NOT_SATISFIABLE) {
+            appendHeader(pw, CONTENT_RANGE, "bytes */" + mTotalLength);
+        }
+        if (mContentLength >= 0) {
+            appendHeader(pw, CONTENT_LENGTH, String.valueOf(mContentLength));
+        } else if (mRequest.requestMethod() != Method.HEAD ) {
+            appendHeader(pw, TRANSFER_ENCODING, "chunked");
+        }
+        pw.append("\r\n");
+        pw.flush();
+        return headerWriter.toString().getBytes(new ContentType(mMimeType).getEncoding());
+    }
 
-                    public void checkServerTrusted(X509Certificate[] chain, String authType) {
-                        LogUtils.i("checkServerTrusted.");
-                    }
-                };
-                sslContext.init(null, new TrustManager[] { tm }, null);
+    boolean hasBody() {
+        return mRequest.requestMethod() != Method.HEAD;
+    }
+
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    //The position is relative to the body, returns the transferred bytes, 0 if the socket cannot accept more now, -1 if the file is exhausted.
+    long transferBody(WritableByteChannel channel, long position, long count) throws IOException {
+        if (mMemoryBody != null) {
+            if (position >= mMemoryBody.length) {
+                return -1;
             }
-        } catch (Exception e) {
-            LogUtils.w( "SSLContext init failed");
-        }
-        // Cannot do ssl checkl.
-        if (sslContext != null) {
-            httpsURLConnection.setSSLSocketFactory(sslContext.getSocketFactory());
-        }
-        //Trust the cert.
-        HostnameVerifier hostnameVerifier = new HostnameVerifier() {
-            @Override
-            public boolean verify(String hostname, SSLSession session) {
-                return true;
+            return channel.write(ByteBuffer.wrap(mMemoryBody, (int) position,
+                    (int) Math.min(count, mMemoryBody.length - position)));
+        }
+        long filePosition = getBodyOffset() + position;
+        if (filePosition >= mFileChannel.size()) {
+            return -1;
+        }
+        return mFileChannel.transferTo(filePosition, count, channel);
+    }
+
+    private void transferBody(WritableByteChannel channel) throws IOException {
+        long position = 0;
+        while (position < mContentLength) {
+            long available = awaitBody(position);
+            long transferred = transferBody(channel, position,
+                    Math.min(available, mContentLength - position));
+            if (transferred < 0) {
+                throw new IOException("Cache file is shorter than Content-Length.");
             }
-        };
-        httpsURLConnection.setHostnameVerifier(hostnameVerifier);
+            position += transferred;
+        }
     }
 
-    public void send(OutputStream outputStream) throws Exception {
-        SimpleDateFormat gmtFormat= new SimpleDateFormat(GMT_PATTERN, Locale.US);
-        gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        try {
-            if (mResponseState == null) {
-                throw new Exception("sendResponse(): Status can't be null.");
+    //Length which can be read from the body position, waiting for the download task if necessary.
+    //-1 if the body of unknown length ends.
+    private long awaitBody(long position) throws IOException {
+        long filePosition = getBodyOffset() + position;
+        long available = mGrowingFile != null ?
+                awaitGrowingFile(filePosition) :
+                mFileChannel.size() - filePosition;
+        if (available < 0 && mContentLength < 0) {
+            return -1;
+        }
+        if (available <= 0) {
+            throw new IOException("Cache file is shorter than Content-Length.");
+        }
+        return available;
+    }
+
+    //Wait for the download task only if it will reach the position soon, otherwise fetch the gap by ourselves.
+    private long awaitGrowingFile(long filePosition) throws IOException {
+        long deadline = System.currentTimeMillis() + mConfig.getReadTimeOut();
+        while (true) {
+            long available = mGrowingFile.getAvailableLength(filePosition);
+            if (available > 0) {
+                return available;
             }
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new
-                    OutputStreamWriter(outputStream, new ContentType(mMimeType).getEncoding())), false);
-            if (TextUtils.isEmpty(mProtocolVersion)) {
-                pw.append("HTTP/1.1 ");
-            } else {
-                pw.append(mProtocolVersion + " ");
+            if (mGapFetcher != null && !mGapFetcher.isFinished() &&
+                    mGapFetcher.getPosition() == filePosition) {
+                return mGapFetcher.fetch();
             }
-            pw.append(mResponseState.getDescription()).append(" \r\n");
-            if (!TextUtils.isEmpty(mMimeType)) {
-                appendHeader(pw, CONTENT_TYPE, mMimeType);
+            closeGapFetcher();
+            if (mGrowingFile.shouldFetch(filePosition)) {
+                mGapFetcher = openGapFetcher(filePosition);
+                continue;
             }
-            appendHeader(pw, DATE, gmtFormat.format(new Date()));
-            appendHeader(pw, CONNECTION, ( mRequest.keepAlive() ? "keep-alive" : "close"));
-            if (mRequest.requestMethod() != Method.HEAD ) {
-                appendHeader(pw, TRANSFER_ENCODING, "chunked");
+            long waitTime = deadline - System.currentTimeMillis();
+            if (waitTime <= 0) {
+                throw new SocketTimeoutException("Wait cache file position " + filePosition + " timeout.");
             }
-            pw.append("\r\n");
-            pw.flush();
-            sendBodyWithCorrectTransferAndEncoding(outputStream);
-            outputStream.flush();
-        } catch (IOException e) {
-            throw new Exception("send response failed: ", e);
-        } finally {
-            LocalProxyUtils.close(this.mInputStream);
+            available = mGrowingFile.awaitAvailable(filePosition, Math.min(waitTime, GAP_WAIT_INTERVAL));
+            if (available != 0) {
+                return available;
+            }
+        }
+    }
+
+    private GapFetcher openGapFetcher(long start) throws IOException {
+        //-1 if the end of the gap is unknown, the file of unknown length is fetched to its end.
+        long end = mGrowingFile.getGapEnd(start);
+        if (end <= start) {
+            end = -1;
+        }
+        if (mContentLength >= 0) {
+            long bodyEnd = getBodyOffset() + mContentLength;
+            end = end < 0 ? bodyEnd : Math.min(end, bodyEnd);
+        }
+        LogUtils.i("HttpResponse fetch gap " + start + "-" + end + " of " + mGrowingFile.getFile().getName());
+        Map<String, String> headers = new HashMap<>();
+        if (mGrowingFile.getHeaders() != null) {
+            headers.putAll(mGrowingFile.getHeaders());
         }
+        headers.put(RANGE, "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end - 1) : ""));
+        HttpURLConnection connection = mUpstreamClient.open(mGrowingFile.getRemoteUrl(), headers);
+        return new GapFetcher(mGrowingFile, mUpstreamClient, connection, start, end);
+    }
+
+    private void closeGapFetcher() {
+        if (mGapFetcher != null) {
+            mGapFetcher.close();
+            mGapFetcher = null;
+        }
+    }
+
+    int readBody(byte[] buf, int offset, int length) throws IOException {
+        if (this.mInputStream == null) {
+            return -1;
+        }
+        return this.mInputStream.read(buf, offset, length);
+    }
+
+    void close() {
+        LocalProxyUtils.close(this.mInputStream);
+        closeGapFetcher();
+        if (mUpstreamConnection != null) {
+            if (mFetchingFile != null && mFetchingFile.isCompleted() && !mUpstreamTruncated) {
+                mUpstreamClient.release(mUpstreamConnection);
+            } else {
+                mUpstreamClient.disconnect(mUpstreamConnection);
+            }
+            mUpstreamConnection = null;
+        }
+        if (mFetchingFile != null) {
+            //No-op if the file is published.
+            mFetchingFile.abort();
+        }
+    }
+
+    //The NIO engine sends the responses which may block, network fetching or waiting for
+    //the download task, on a worker thread. The others are written by the event loop.
+    static boolean shouldSendOnWorker(HttpRequest request, File cacheRoot) {
+        String resultUrl = request.getUri();
+        if (resultUrl.startsWith("/http://") || resultUrl.startsWith("/https://")) {
+            resultUrl = resultUrl.substring(1);
+            if (resultUrl.contains(LocalProxyUtils.SPLIT_STR)) {
+                String[] arr = resultUrl.split(LocalProxyUtils.SPLIT_STR);
+                return !new File(cacheRoot, arr[1]).exists();
+            }
+            return false;
+        }
+        //A key which is not fetched yet is fetched by the proxy.
+        File file = new File(cacheRoot, resultUrl);
+        if (!file.exists()) {
+            return true;
+        }
+        GrowingFile growingFile = GrowingFile.get(file);
+        return growingFile != null && !growingFile.isCompleted();
+    }
+
+    private static String formatGmtDate(long time) {
+        SimpleDateFormat gmtFormat = new SimpleDateFormat(GMT_PATTERN, Locale.US);
+        gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return gmtFormat.format(new Date(time));
     }
 
     protected void appendHeader(PrintWriter pw, String key, String value) {
@@ -257,8 +503,16 @@ public class HttpResponse {
         long buffer_size = LocalProxyUtils.DEFAULT_BUFFER_SIZE;
         byte[] buff = new byte[(int) buffer_size];
         boolean sendEverything = pending == -1;
+        long position = 0;
         while (pending > 0 || sendEverything) {
             long bytesToRead = sendEverything ? buffer_size : Math.min(pending, buffer_size);
+            if (mGrowingFile != null) {
+                long available = awaitBody(position);
+                if (available < 0) {
+                    break;
+                }
+                bytesToRead = Math.min(bytesToRead, available);
+            }
             if (this.mInputStream == null) {
                 break;
             }
@@ -267,6 +521,7 @@ public class HttpResponse {
                 break;
             }
             outputStream.write(buff, 0, read);
+            position += read;
             if (!sendEverything) {
                 pending -= read;
             }
@@ -1,11 +1,14 @@
 package com.media.cache.proxy;
 
 import com.media.cache.LocalProxyConfig;
+import com.media.cache.download.CacheIndex;
 import com.media.cache.utils.LogUtils;
+import com.media.cache.utils.UpstreamClient;
 
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -16,12 +19,22 @@ public class LocalProxyServer {
     private static final String PROXY_HOST = "127.0.0.1";
 
     private ServerSocket mServerSocket;
+    private NioProxyServer mNioServer;
     private int mPort;
 
     public LocalProxyServer(LocalProxyConfig config) {
         mConfig = config;
+        //Size the upstream connection pool before the first request.
+        UpstreamClient.getInstance(config);
+        //Scan the cache root once at startup.
+        CacheIndex.getInstance(config);
+        if (config.isNioServerEnable()) {
+            startNioServer();
+            return;
+        }
         try {
-            this.mServerSocket = new ServerSocket();
+            //Sockets accepted by the channel's adaptor have channels for FileChannel.transferTo.
+            this.mServerSocket = ServerSocketChannel.open().socket();
             this.mPort = config.getPort();
             mConfig.setConfig(PROXY_HOST, mPort);
             mServerSocket.setReuseAddress(true);
@@ -45,6 +58,16 @@ public class LocalProxyServer {
 
     }
 
+    private void startNioServer() {
+        try {
+            mNioServer = new NioProxyServer(mConfig);
+            mNioServer.start(PROXY_HOST);
+        } catch (Exception e) {
+            mNioServer.shutdown();
+            LogUtils.w("Cannot create nio server, exception=" + e);
+        }
+    }
+
     private class WaitSocketRequestsTask implements Runnable {
 
         private boolean mSocketBinded = false;
@@ -69,8 +92,8 @@ public class LocalProxyServer {
             do{
                 try {
                     Socket socket = mServerSocket.accept();
-                    if (mConfig.getConnTimeOut() > 0)
-                        socket.setSoTimeout(mConfig.getConnTimeOut());
+                    if (mConfig.getServerIdleTimeOut() > 0)
+                        socket.setSoTimeout(mConfig.getServerIdleTimeOut());
                     mSocketPool.submit(new SocketProcessorTask(socket, mConfig));
                 } catch (Exception e) {
                     LogUtils.w("WaitRequestsRun ServerSocket accept failed, exception="+e);
@@ -81,6 +104,9 @@ public class LocalProxyServer {
     }
 
     private void shutdown() {
+        if (mNioServer != null) {
+            mNioServer.shutdown();
+        }
         if (mServerSocket != null) {
             try {
                 mServerSocket.close();
@@ -18,6 +18,8 @@ public enum  Method {
     LOCK,
     UNLOCK;
 
+    private static final Method[] METHODS = values();
+
     public static Method lookup(String method) {
         if (method == null)
             return null;
@@ -27,4 +29,14 @@ public enum  Method {
             return null;
         }
     }
+
+    //The method named by the bytes of the request line, without creating the String.
+    static Method lookup(byte[] buf, int start, int end) {
+        for (Method method : METHODS) {
+            if (HttpRequest.equalsAscii(buf, start, end, method.name(), false)) {
+                return method;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,368 @@
+package com.media.cache.proxy;
+
+import com.media.cache.LocalProxyConfig;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One keep-alive connection of the {@link NioProxyServer}.
+ * All the state changes happen on the event loop thread, except the response body written
+ * by a worker thread through {@link ChannelOutputStream}. The file system is only touched by
+ * the workers, the event loop writes the headers and transfers the prepared cache file.
+ */
+class NioConnection {
+
+    private static final int STATE_READ_REQUEST = 0;
+    private static final int STATE_WRITE_RESPONSE = 1;
+    private static final int STATE_WORKER_RESPONSE = 2;
+    private static final int STATE_CLOSED = 3;
+
+    private static final int CHUNK_HEADER_RESERVE = 10;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private final NioProxyServer mServer;
+    private final NioProxyServer.EventLoop mLoop;
+    private final SocketChannel mChannel;
+    private final LocalProxyConfig mConfig;
+    private final HttpRequest mRequest;
+    private final byte[] mRequestBuf = new byte[LocalProxyUtils.DEFAULT_BUFFER_SIZE];
+    private final ByteBuffer mChunkBuffer =
+            ByteBuffer.allocate(CHUNK_HEADER_RESERVE + LocalProxyUtils.DEFAULT_BUFFER_SIZE + 2);
+    private final Object mWritableLock = new Object();
+    private SelectionKey mKey;
+    private int mRequestLength;
+    private HttpResponse mResponse;
+    private ByteBuffer mPendingBuffer;
+    private boolean mBodyFinished;
+    private long mBodyPosition;
+    private boolean mWritable;
+    private volatile int mState = STATE_READ_REQUEST;
+    private volatile long mLastActiveTime;
+
+    NioConnection(NioProxyServer server, NioProxyServer.EventLoop loop,
+                  SocketChannel channel, LocalProxyConfig config) {
+        mServer = server;
+        mLoop = loop;
+        mChannel = channel;
+        mConfig = config;
+        mRequest = new HttpRequest(null);
+        mLastActiveTime = System.currentTimeMillis();
+    }
+
+    void register(Selector selector) throws ClosedChannelException {
+        mKey = mChannel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    boolean isIdle(long now, int timeout) {
+        return mState != STATE_WORKER_RESPONSE && now - mLastActiveTime > timeout;
+    }
+
+    void onReadable() {
+        if (mState != STATE_READ_REQUEST) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(mRequestBuf, mRequestLength,
+                    mRequestBuf.length - mRequestLength);
+            int read = mChannel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            mLastActiveTime = System.currentTimeMillis();
+            mRequestLength += read;
+            processRequest();
+        } catch (Exception e) {
+            LogUtils.w("NioConnection read request failed, exception=" + e);
+            close();
+        }
+    }
+
+    void onWritable() {
+        if (mState == STATE_WORKER_RESPONSE) {
+            mKey.interestOps(0);
+            synchronized (mWritableLock) {
+                mWritable = true;
+                mWritableLock.notifyAll();
+            }
+            return;
+        }
+        try {
+            writeResponse();
+        } catch (Exception e) {
+            LogUtils.w("NioConnection write response failed, exception=" + e);
+            close();
+        }
+    }
+
+    private void processRequest() throws Exception {
+        int headerEnd = HttpRequest.findResponseHeaderEnd(mRequestBuf, mRequestLength);
+        if (headerEnd <= 0) {
+            if (mRequestLength == mRequestBuf.length) {
+                //Best effort, the connection is closed anyway.
+                mChannel.write(ByteBuffer.wrap(HttpRequest.HEADER_TOO_LARGE_RESPONSE));
+                throw new IOException("Request header is too large.");
+            }
+            return;
+        }
+        mRequest.decodeRequest(mRequestBuf, headerEnd);
+
+        //Keep the pipelined bytes for the next request.
+        mRequestLength -= headerEnd;
+        System.arraycopy(mRequestBuf, headerEnd, mRequestBuf, 0, mRequestLength);
+
+        mState = STATE_WORKER_RESPONSE;
+        mKey.interestOps(0);
+        mServer.submitWorkerTask(new Runnable() {
+            @Override
+            public void run() {
+                prepareResponseOnWorker();
+            }
+        });
+    }
+
+    //A cached file is opened by the worker and handed back to the event loop to be written.
+    private void prepareResponseOnWorker() {
+        HttpResponse response = null;
+        try {
+            if (HttpResponse.shouldSendOnWorker(mRequest, mConfig.getCacheRoot())) {
+                sendResponseOnWorker();
+                return;
+            }
+            response = new HttpResponse(mRequest, mConfig);
+            final HttpResponse preparedResponse = response;
+            final byte[] headers = response.buildResponseHeaders();
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    startResponse(preparedResponse, headers);
+                }
+            });
+        } catch (Exception e) {
+            LogUtils.w("NioConnection prepare response failed, exception=" + e);
+            if (response != null) {
+                response.close();
+            }
+            closeOnLoop();
+        }
+    }
+
+    private void startResponse(HttpResponse response, byte[] headers) {
+        if (mState == STATE_CLOSED) {
+            response.close();
+            return;
+        }
+        mResponse = response;
+        mState = STATE_WRITE_RESPONSE;
+        mBodyFinished = !response.hasBody();
+        mBodyPosition = 0;
+        mPendingBuffer = ByteBuffer.wrap(headers);
+        try {
+            writeResponse();
+        } catch (Exception e) {
+            LogUtils.w("NioConnection write response failed, exception=" + e);
+            close();
+        }
+    }
+
+    private void writeResponse() throws Exception {
+        while (true) {
+            if (mPendingBuffer.hasRemaining()) {
+                mChannel.write(mPendingBuffer);
+                if (mPendingBuffer.hasRemaining()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                mLastActiveTime = System.currentTimeMillis();
+            }
+            if (mBodyFinished) {
+                finishResponse();
+                return;
+            }
+            if (mResponse.getContentLength() >= 0) {
+                if (!transferBody()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } else {
+                fillNextChunk();
+            }
+        }
+    }
+
+    //Zero-copy transfer of the cached file, returns false when the socket buffer is full.
+    private boolean transferBody() throws IOException {
+        long remaining = mResponse.getContentLength() - mBodyPosition;
+        if (remaining <= 0) {
+            mBodyFinished = true;
+            return true;
+        }
+        long transferred = mResponse.transferBody(mChannel, mBodyPosition, remaining);
+        if (transferred < 0) {
+            throw new IOException("Cache file is shorter than Content-Length.");
+        }
+        if (transferred == 0) {
+            return false;
+        }
+        mBodyPosition += transferred;
+        mLastActiveTime = System.currentTimeMillis();
+        return true;
+    }
+
+    //The chunk size line is written backwards in front of the data, so the body is read only once.
+    private void fillNextChunk() throws IOException {
+        byte[] chunk = mChunkBuffer.array();
+        mChunkBuffer.clear();
+        int read = mResponse.readBody(chunk, CHUNK_HEADER_RESERVE, LocalProxyUtils.DEFAULT_BUFFER_SIZE);
+        if (read <= 0) {
+            mBodyFinished = true;
+            mChunkBuffer.put(LAST_CHUNK);
+            mChunkBuffer.flip();
+        } else {
+            int position = CHUNK_HEADER_RESERVE;
+            chunk[--position] = '\n';
+            chunk[--position] = '\r';
+            int length = read;
+            do {
+                chunk[--position] = HEX_DIGITS[length & 0xf];
+                length >>>= 4;
+            } while (length != 0);
+            int end = CHUNK_HEADER_RESERVE + read;
+            chunk[end++] = '\r';
+            chunk[end++] = '\n';
+            mChunkBuffer.limit(end);
+            mChunkBuffer.position(position);
+        }
+        mPendingBuffer = mChunkBuffer;
+    }
+
+    private void finishResponse() throws Exception {
+        if (mResponse != null) {
+            mResponse.close();
+            mResponse = null;
+        }
+        if (!mRequest.keepAlive()) {
+            close();
+            return;
+        }
+        mState = STATE_READ_REQUEST;
+        mKey.interestOps(SelectionKey.OP_READ);
+        if (mRequestLength > 0) {
+            processRequest();
+        }
+    }
+
+    private void sendResponseOnWorker() {
+        try {
+            HttpResponse response = new HttpResponse(mRequest, mConfig);
+            response.send(new ChannelOutputStream(), null);
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mLastActiveTime = System.currentTimeMillis();
+                        finishResponse();
+                    } catch (Exception e) {
+                        LogUtils.w("NioConnection finish response failed, exception=" + e);
+                        close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LogUtils.w("NioConnection worker response failed, exception=" + e);
+            closeOnLoop();
+        }
+    }
+
+    private void closeOnLoop() {
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    private void awaitWritable() throws IOException {
+        synchronized (mWritableLock) {
+            mWritable = false;
+        }
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mKey.isValid()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        });
+        int timeout = mConfig.getServerIdleTimeOut();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mWritableLock) {
+            while (!mWritable && mState != STATE_CLOSED) {
+                long waitTime = timeout > 0 ? deadline - System.currentTimeMillis() : 0;
+                if (timeout > 0 && waitTime <= 0) {
+                    throw new SocketTimeoutException("Wait socket writable timeout.");
+                }
+                try {
+                    mWritableLock.wait(waitTime);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Wait socket writable interrupted.");
+                }
+            }
+        }
+        if (mState == STATE_CLOSED) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    void close() {
+        if (mState == STATE_CLOSED) {
+            return;
+        }
+        mState = STATE_CLOSED;
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        if (mResponse != null) {
+            mResponse.close();
+            mResponse = null;
+        }
+        LocalProxyUtils.close(mChannel);
+        synchronized (mWritableLock) {
+            mWritableLock.notifyAll();
+        }
+    }
+
+    //Blocking view of the non-blocking channel for the worker thread.
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (mState == STATE_CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                if (mChannel.write(buffer) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.media.cache.proxy;
+
+import com.media.cache.LocalProxyConfig;
+import com.media.cache.utils.LocalProxyUtils;
+import com.media.cache.utils.LogUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selector based proxy server.
+ * One acceptor thread hands the accepted sockets to a few event loops, every loop parses the
+ * requests and streams the cached files of its connections without a thread per socket.
+ * Only the responses which must fetch data from network are prepared on worker threads.
+ */
+public class NioProxyServer {
+
+    private static final long SELECT_TIMEOUT = 1000L;
+
+    private final LocalProxyConfig mConfig;
+    private final ExecutorService mWorkerPool = Executors.newCachedThreadPool();
+    private ServerSocketChannel mServerChannel;
+    private EventLoop[] mEventLoops;
+    private int mNextLoop = 0;
+    private volatile boolean mClosed = false;
+
+    public NioProxyServer(LocalProxyConfig config) {
+        mConfig = config;
+    }
+
+    public void start(String host) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mConfig.setConfig(host, mConfig.getPort());
+        LogUtils.i("NioProxyServer start : " + mConfig.getHost() + ":" + mConfig.getPort());
+        mServerChannel.socket().bind(new InetSocketAddress(mConfig.getHost(), mConfig.getPort()));
+
+        int loopCount = mConfig.getNioEventLoopCount();
+        mEventLoops = new EventLoop[loopCount];
+        for (int index = 0; index < loopCount; index++) {
+            mEventLoops[index] = new EventLoop();
+            Thread thread = new Thread(mEventLoops[index]);
+            thread.setName("VideoProxyEventLoop-" + index);
+            thread.start();
+        }
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptSockets();
+            }
+        });
+        acceptThread.setName("VideoProxyCacheThread");
+        acceptThread.start();
+    }
+
+    private void acceptSockets() {
+        while (!mClosed && mServerChannel.isOpen()) {
+            try {
+                SocketChannel channel = mServerChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = mEventLoops[mNextLoop];
+                mNextLoop = (mNextLoop + 1) % mEventLoops.length;
+                loop.register(channel);
+            } catch (Exception e) {
+                LogUtils.w("NioProxyServer accept failed, exception=" + e);
+            }
+        }
+    }
+
+    void submitWorkerTask(Runnable task) {
+        mWorkerPool.submit(task);
+    }
+
+    public void shutdown() {
+        mClosed = true;
+        LocalProxyUtils.close(mServerChannel);
+        if (mEventLoops != null) {
+            for (EventLoop loop : mEventLoops) {
+                if (loop != null) {
+                    loop.mSelector.wakeup();
+                }
+            }
+        }
+        mWorkerPool.shutdown();
+    }
+
+    class EventLoop implements Runnable {
+
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            mSelector = Selector.open();
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        NioConnection connection = new NioConnection(NioProxyServer.this,
+                                EventLoop.this, channel, mConfig);
+                        connection.register(mSelector);
+                    } catch (Exception e) {
+                        LogUtils.w("NioProxyServer register socket failed, exception=" + e);
+                        LocalProxyUtils.close(channel);
+                    }
+                }
+            });
+        }
+
+        //Run the task on the loop thread, it is the only thread touching the selection keys.
+        void execute(Runnable task) {
+            mTasks.offer(task);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheckTime = System.currentTimeMillis();
+            while (!mClosed) {
+                try {
+                    mSelector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = mTasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheckTime >= SELECT_TIMEOUT) {
+                        lastIdleCheckTime = now;
+                        closeIdleConnections(now);
+                    }
+                } catch (Exception e) {
+                    LogUtils.w("NioProxyServer event loop failed, exception=" + e);
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            LocalProxyUtils.close(mSelector);
+        }
+
+        private void closeIdleConnections(long now) {
+            int timeout = mConfig.getServerIdleTimeOut();
+            if (timeout <= 0) {
+                return;
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.isIdle(now, timeout)) {
+                    LogUtils.i("NioProxyServer close idle connection.");
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.media.cache.LocalProxyConfig;
 import com.media.cache.utils.LocalProxyUtils;
 import com.media.cache.utils.LogUtils;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
@@ -22,18 +23,26 @@ public class SocketProcessorTask implements Runnable {
     public void run() {
         OutputStream outputStream = null;
         InputStream inputStream = null;
+        HttpRequest request = null;
         try {
             outputStream = mSocket.getOutputStream();
             inputStream = mSocket.getInputStream();
 
-            HttpRequest request = new HttpRequest(inputStream, mSocket.getInetAddress());
+            request = new HttpRequest(inputStream);
             while (!mSocket.isClosed()) {
                 request.parseRequest();
                 HttpResponse response = new HttpResponse(request, mConfig);
-                response.send(outputStream);
+                response.send(outputStream, mSocket.getChannel());
             }
         } catch (Exception e) {
             LogUtils.w("socket request failed, exception=" + e);
+            if (request != null && request.isHeaderTooLarge()) {
+                try {
+                    outputStream.write(HttpRequest.HEADER_TOO_LARGE_RESPONSE);
+                    outputStream.flush();
+                } catch (IOException ignored) {
+                }
+            }
         } finally {
             LocalProxyUtils.close(outputStream);
             LocalProxyUtils.close(inputStream);
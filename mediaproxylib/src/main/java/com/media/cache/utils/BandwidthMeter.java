@@ -0,0 +1,74 @@
+package com.media.cache.utils;
+
+/**
+ * Download throughput of all the videos, measured by the download tasks.
+ * The estimate is the lower one of a fast and a slow exponentially weighted moving average, the
+ * samples are weighted by their duration, so it drops with a slow transfer at once and rises only
+ * if the higher speed is sustained.
+ */
+public class BandwidthMeter {
+
+    private static final double FAST_HALF_LIFE = 2.0;  // seconds
+    private static final double SLOW_HALF_LIFE = 10.0; // seconds
+    //A small transfer is dominated by the latency, not the bandwidth.
+    private static final long MIN_SAMPLE_SIZE = 16 * 1024L;
+    private static final long MIN_TOTAL_SIZE = 128 * 1024L;
+
+    private static volatile BandwidthMeter sInstance;
+
+    private final Average mFastAverage = new Average(FAST_HALF_LIFE);
+    private final Average mSlowAverage = new Average(SLOW_HALF_LIFE);
+    private long mTotalSize;
+
+    public static BandwidthMeter getInstance() {
+        if (sInstance == null) {
+            synchronized (BandwidthMeter.class) {
+                if (sInstance == null) {
+                    sInstance = new BandwidthMeter();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public synchronized void onTransferred(long size, long costTime) {
+        if (size < MIN_SAMPLE_SIZE || costTime <= 0) {
+            return;
+        }
+        double seconds = costTime / 1000d;
+        double bitrate = size * 8 / seconds;
+        mFastAverage.sample(seconds, bitrate);
+        mSlowAverage.sample(seconds, bitrate);
+        mTotalSize += size;
+    }
+
+    //Bits per second, -1 if too little is measured yet.
+    public synchronized long getBitrateEstimate() {
+        if (mTotalSize < MIN_TOTAL_SIZE) {
+            return -1;
+        }
+        return (long) Math.min(mFastAverage.getEstimate(), mSlowAverage.getEstimate());
+    }
+
+    private static class Average {
+
+        private final double mAlpha; // Weight of the old estimate after a second.
+        private double mEstimate;
+        private double mTotalWeight;
+
+        Average(double halfLife) {
+            mAlpha = Math.exp(Math.log(0.5) / halfLife);
+        }
+
+        void sample(double weight, double value) {
+            double alpha = Math.pow(mAlpha, weight);
+            mEstimate = value * (1 - alpha) + alpha * mEstimate;
+            mTotalWeight += weight;
+        }
+
+        //The average starts from zero, it is corrected by the weight of the samples so far.
+        double getEstimate() {
+            return mEstimate / (1 - Math.pow(mAlpha, mTotalWeight));
+        }
+    }
+}
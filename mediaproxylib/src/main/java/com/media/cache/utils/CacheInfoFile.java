@@ -0,0 +1,281 @@
+package com.media.cache.utils;
+
+import com.media.cache.VideoCacheInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary record of a {@link VideoCacheInfo}:
+ *
+ * magic(4) version(1) flags(1) headerLength(varint)
+ * header: videoType, totalLength, cachedLength, cachedTs, totalTs (varints), videoUrl, finalUrl, saveDir (strings)
+ * ranges: count(varint), then the gap from the previous range end and the length of each range (varints)
+ * crc32(4) of all the bytes before it.
+ *
+ * The header can be read without decoding the ranges. A record is written to a temp file
+ * which is renamed over the old one, so a reader never sees a half written record.
+ */
+public class CacheInfoFile {
+
+    private static final int MAGIC = 0x56434946; // "VCIF"
+    private static final int VERSION = 1;
+    private static final int FLAG_COMPLETED = 0x1;
+    private static final int MAX_FILE_LENGTH = 16 * 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CHARSET = "UTF-8";
+
+    //Writers of different videos do not wait for each other, only a write to the same file is serialized.
+    private static final Object[] sWriteLocks = new Object[16];
+
+    static {
+        for (int index = 0; index < sWriteLocks.length; index++) {
+            sWriteLocks[index] = new Object();
+        }
+    }
+
+    public static void write(VideoCacheInfo info, File file) throws IOException {
+        byte[] record = encode(info);
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        synchronized (sWriteLocks[(file.getAbsolutePath().hashCode() & 0x7fffffff) % sWriteLocks.length]) {
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(tempFile);
+                fos.write(record);
+                fos.getFD().sync();
+            } finally {
+                LocalProxyUtils.close(fos);
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Rename " + tempFile.getAbsolutePath() + " failed.");
+            }
+        }
+    }
+
+    /**
+     * @param withRanges false to load only the header fields, the segment list is left empty.
+     * @return null if the file does not exist or is corrupted.
+     */
+    public static VideoCacheInfo read(File file, boolean withRanges) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = readFully(file);
+        if (data.length >= 2 && (data[0] & 0xff) == 0xac && (data[1] & 0xff) == 0xed) {
+            //Written by the java serialization of the old versions, it is converted by the next write.
+            return readSerialized(file);
+        }
+        if (data.length < 10 || readInt(data, 0) != MAGIC) {
+            throw new IOException("Not a cache info file.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != readInt(data, data.length - 4)) {
+            throw new IOException("Cache info checksum mismatch.");
+        }
+        Reader reader = new Reader(data, 4, data.length - 4);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache info version " + version);
+        }
+        int flags = reader.readByte();
+        int headerLength = (int) reader.readVarLong();
+        int rangesOffset = reader.mPosition + headerLength;
+
+        VideoCacheInfo info = new VideoCacheInfo(null);
+        info.setIsCompleted((flags & FLAG_COMPLETED) != 0);
+        info.setVideoType((int) reader.readVarLong());
+        info.setTotalLength(reader.readVarLong());
+        info.setCachedLength(reader.readVarLong());
+        info.setCachedTs((int) reader.readVarLong());
+        info.setTotalTs((int) reader.readVarLong());
+        info.setVideoUrl(reader.readString());
+        info.setFinalUrl(reader.readString());
+        info.setSaveDir(reader.readString());
+        if (!withRanges) {
+            return info;
+        }
+
+        //Skip the header fields appended by the later versions.
+        reader.mPosition = rangesOffset;
+        int count = (int) reader.readVarLong();
+        LinkedHashMap<Long, Long> segmentList = new LinkedHashMap<>();
+        long end = 0;
+        for (int index = 0; index < count; index++) {
+            long start = end + reader.readVarLong();
+            end = start + reader.readVarLong();
+            segmentList.put(start, end);
+        }
+        info.setSegmentList(segmentList);
+        return info;
+    }
+
+    private static byte[] encode(VideoCacheInfo info) throws IOException {
+        Writer header = new Writer();
+        header.writeVarLong(info.getVideoType());
+        header.writeVarLong(info.getTotalLength());
+        header.writeVarLong(info.getCachedLength());
+        header.writeVarLong(info.getCachedTs());
+        header.writeVarLong(info.getTotalTs());
+        header.writeString(info.getVideoUrl());
+        header.writeString(info.getFinalUrl());
+        header.writeString(info.getSaveDir());
+
+        Writer writer = new Writer();
+        writer.writeInt(MAGIC);
+        writer.write(VERSION);
+        writer.write(info.getIsCompleted() ? FLAG_COMPLETED : 0);
+        writer.writeVarLong(header.size());
+        header.writeTo(writer);
+
+        LinkedHashMap<Long, Long> segmentList = info.getSegmentList();
+        int count = segmentList != null ? segmentList.size() : 0;
+        writer.writeVarLong(count);
+        if (count > 0) {
+            long end = 0;
+            for (Map.Entry<Long, Long> item : segmentList.entrySet()) {
+                writer.writeVarLong(item.getKey() - end);
+                writer.writeVarLong(item.getValue() - item.getKey());
+                end = item.getValue();
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(writer.buffer(), 0, writer.size());
+        writer.writeInt((int) crc.getValue());
+        return writer.toByteArray();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > MAX_FILE_LENGTH) {
+            throw new IOException("Cache info file is too large: " + length);
+        }
+        byte[] data = new byte[(int) length];
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            int offset = 0;
+            while (offset < data.length) {
+                int read = fis.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Cache info file is truncated.");
+                }
+                offset += read;
+            }
+        } finally {
+            LocalProxyUtils.close(fis);
+        }
+        return data;
+    }
+
+    private static VideoCacheInfo readSerialized(File file) throws IOException {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new FileInputStream(file));
+            return (VideoCacheInfo) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Read serialized cache info failed.", e);
+        } finally {
+            LocalProxyUtils.close(ois);
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    //Varints are zigzag encoded, so an unknown length of -1 is one byte too.
+    private static class Writer extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7fL) != 0) {
+                write((int) ((zigzag & 0x7f) | 0x80));
+                zigzag >>>= 7;
+            }
+            write((int) zigzag);
+        }
+
+        //Length + 1 and the UTF-8 bytes, 0 for null.
+        void writeString(String value) throws UnsupportedEncodingException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(CHARSET);
+            writeVarLong(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeTo(Writer writer) {
+            writer.write(buf, 0, count);
+        }
+    }
+
+    private static class Reader {
+
+        private final byte[] mData;
+        private final int mLimit;
+        private int mPosition;
+
+        Reader(byte[] data, int position, int limit) {
+            mData = data;
+            mPosition = position;
+            mLimit = limit;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mLimit) {
+                throw new IOException("Cache info record is truncated.");
+            }
+            return mData[mPosition++] & 0xff;
+        }
+
+        long readVarLong() throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("Malformed varint in cache info.");
+        }
+
+        String readString() throws IOException {
+            int length = (int) readVarLong() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > mLimit - mPosition) {
+                throw new IOException("Cache info record is truncated.");
+            }
+            String value = new String(mData, mPosition, length, CHARSET);
+            mPosition += length;
+            return value;
+        }
+    }
+}
@@ -8,13 +8,9 @@ import com.media.cache.VideoCacheInfo;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
@@ -99,53 +95,34 @@ public class LocalProxyUtils {
         }
     }
 
-    private static Object sFileLock = new Object();
-
     public static VideoCacheInfo readProxyCacheInfo(File dir) {
+        return readProxyCacheInfo(dir, true);
+    }
+
+    //Just the header fields, the segment list of the video is not loaded.
+    public static VideoCacheInfo readProxyCacheInfoHeader(File dir) {
+        return readProxyCacheInfo(dir, false);
+    }
+
+    private static VideoCacheInfo readProxyCacheInfo(File dir, boolean withRanges) {
         File file = new File(dir, INFO_FILE);
         if (!file.exists()) {
             LogUtils.i("readProxyCacheInfo failed, file not exist.");
             return null;
         }
-        ObjectInputStream fis = null;
         try {
-            synchronized (sFileLock) {
-                fis = new ObjectInputStream(new FileInputStream(file));
-                VideoCacheInfo info = (VideoCacheInfo) fis.readObject();
-                return info;
-            }
+            return CacheInfoFile.read(file, withRanges);
         } catch (Exception e) {
             LogUtils.w("readProxyCacheInfo failed, exception="+e.getMessage());
-        } finally {
-            try {
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (Exception e) {
-                LogUtils.w("readProxyCacheInfo failed, close fis failed.");
-            }
         }
         return null;
     }
 
     public static void writeProxyCacheInfo(VideoCacheInfo info, File dir) {
-        File file = new File(dir, INFO_FILE);
-        ObjectOutputStream fos = null;
         try {
-            synchronized (sFileLock) {
-                fos = new ObjectOutputStream(new FileOutputStream(file));
-                fos.writeObject(info);
-            }
+            CacheInfoFile.write(info, new File(dir, INFO_FILE));
         } catch (Exception e) {
             LogUtils.w("writeProxyCacheInfo failed, exception="+e.getMessage());
-        } finally {
-            try {
-                if (fos != null) {
-                    fos.close();
-                }
-            } catch (Exception e) {
-                LogUtils.w("writeProxyCacheInfo failed, close fos failed.");
-            }
         }
     }
 
@@ -0,0 +1,323 @@
+package com.media.cache.utils;
+
+import com.media.cache.LocalProxyConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Upstream HTTP client shared by the download tasks and the proxy responses.
+ *
+ * The sockets are pooled by the platform HttpURLConnection keep-alive cache, a connection goes
+ * back to the pool when its body is read to the end and {@link #release(HttpURLConnection)} is
+ * called instead of disconnect(). This client bounds the connections per host, sizes the pool
+ * and shares one SSLSocketFactory, so the https connections can be reused.
+ */
+public class UpstreamClient {
+
+    public static final String METHOD_GET = "GET";
+    public static final String METHOD_HEAD = "HEAD";
+
+    private static final int HTTP_TEMP_REDIRECT = 307;
+    private static final int HTTP_PERM_REDIRECT = 308;
+
+    private static UpstreamClient sInstance;
+
+    private final LocalProxyConfig mConfig;
+    private final HashMap<String, Semaphore> mHostPermits = new HashMap<>();
+    private final Map<HttpURLConnection, Semaphore> mActiveConnections = new IdentityHashMap<>();
+    private SSLSocketFactory mTrustAllSocketFactory;
+    private HostnameVerifier mTrustAllHostnameVerifier;
+
+    public static class Metadata {
+        public final String finalUrl;
+        public final String contentType;
+        public final long contentLength; // -1 if unknown.
+        public final boolean acceptRanges;
+
+        Metadata(String finalUrl, String contentType, long contentLength, boolean acceptRanges) {
+            this.finalUrl = finalUrl;
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+            this.acceptRanges = acceptRanges;
+        }
+
+        public String toString() {
+            return "Metadata[finalUrl=" + finalUrl + ", contentType=" + contentType +
+                    ", contentLength=" + contentLength + ", acceptRanges=" + acceptRanges + "]";
+        }
+    }
+
+    public static synchronized UpstreamClient getInstance(LocalProxyConfig config) {
+        if (sInstance == null || sInstance.mConfig != config) {
+            sInstance = new UpstreamClient(config);
+        }
+        return sInstance;
+    }
+
+    private UpstreamClient(LocalProxyConfig config) {
+        mConfig = config;
+        //Read by the platform connection pool when it is created, so the client should be
+        //created before the first upstream request.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(config.getMaxConnectionsPerHost()));
+        System.setProperty("http.keepAliveDuration", String.valueOf(config.getKeepAliveDuration()));
+    }
+
+    public HttpURLConnection open(String videoUrl, Map<String, String> headers) throws IOException {
+        return open(videoUrl, headers, METHOD_GET);
+    }
+
+    /**
+     * Open the connection and follow the redirects, the response code is already received.
+     * The caller must {@link #release(HttpURLConnection)} or {@link #disconnect(HttpURLConnection)} it.
+     */
+    public HttpURLConnection open(String videoUrl, Map<String, String> headers, String method)
+            throws IOException {
+        URL url = new URL(videoUrl);
+        int redirectCount = 0;
+        while (true) {
+            HttpURLConnection connection = connect(url, headers, method);
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode();
+            } catch (IOException e) {
+                disconnect(connection);
+                throw e;
+            }
+            if (!isRedirect(responseCode)) {
+                return connection;
+            }
+            String location = connection.getHeaderField("Location");
+            release(connection);
+            if (location == null) {
+                throw new ProtocolException("Null location redirect");
+            }
+            if (++redirectCount > HttpUtils.MAX_REDIRECT) {
+                throw new ProtocolException("Too many redirects: " + redirectCount);
+            }
+            url = new URL(url, location);
+            String protocol = url.getProtocol();
+            if (!"https".equals(protocol) && !"http".equals(protocol)) {
+                throw new ProtocolException("Unsupported protocol redirect: " + protocol);
+            }
+        }
+    }
+
+    /**
+     * Final url, content type and length of the resource.
+     * HEAD is tried first, a GET of the first byte is sent if the server rejects HEAD.
+     */
+    public Metadata probe(String videoUrl, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(videoUrl, headers, METHOD_HEAD);
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                return new Metadata(connection.getURL().toString(), connection.getContentType(),
+                        getContentLength(connection),
+                        "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")));
+            }
+            LogUtils.w("UpstreamClient HEAD " + videoUrl + " responseCode=" + connection.getResponseCode());
+        } catch (IOException e) {
+            LogUtils.w("UpstreamClient HEAD " + videoUrl + " failed, exception=" + e);
+        } finally {
+            release(connection);
+        }
+
+        HashMap<String, String> rangeHeaders = new HashMap<>();
+        if (headers != null) {
+            rangeHeaders.putAll(headers);
+        }
+        rangeHeaders.put("Range", "bytes=0-0");
+        connection = open(videoUrl, rangeHeaders);
+        int responseCode = connection.getResponseCode();
+        try {
+            long contentLength = -1L;
+            boolean acceptRanges = false;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                //Content-Range: bytes 0-0/total
+                String contentRange = connection.getHeaderField("Content-Range");
+                int index = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+                if (index >= 0) {
+                    try {
+                        contentLength = Long.parseLong(contentRange.substring(index + 1).trim());
+                    } catch (NumberFormatException e) {
+                        LogUtils.w("UpstreamClient Content-Range " + contentRange + " is invalid.");
+                    }
+                }
+                acceptRanges = true;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                contentLength = getContentLength(connection);
+            } else {
+                throw new IOException("Probe " + videoUrl + " failed, responseCode=" + responseCode);
+            }
+            return new Metadata(connection.getURL().toString(), connection.getContentType(),
+                    contentLength, acceptRanges);
+        } finally {
+            //The whole body follows a 200 response, do not drain it.
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                release(connection);
+            } else {
+                disconnect(connection);
+            }
+        }
+    }
+
+    //Content-Length as long, HttpURLConnection.getContentLength() is -1 beyond 2GB.
+    public static long getContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                LogUtils.w("UpstreamClient Content-Length " + contentLength + " is invalid.");
+            }
+        }
+        return -1L;
+    }
+
+    //The body is read to the end, the socket goes back to the keep-alive pool.
+    public void release(HttpURLConnection connection) {
+        if (connection == null || !removeActiveConnection(connection)) {
+            return;
+        }
+        try {
+            InputStream inputStream = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ?
+                    connection.getInputStream() : connection.getErrorStream();
+            LocalProxyUtils.close(inputStream);
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    //The body is abandoned, close the socket.
+    public void disconnect(HttpURLConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        removeActiveConnection(connection);
+        connection.disconnect();
+    }
+
+    private HttpURLConnection connect(URL url, Map<String, String> headers, String method)
+            throws IOException {
+        Semaphore permit = acquirePermit(url);
+        HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            if (mConfig.shouldIgnoreAllCertErrors() && connection instanceof HttpsURLConnection) {
+                trustAllCert((HttpsURLConnection) connection);
+            }
+            connection.setConnectTimeout(mConfig.getConnTimeOut());
+            connection.setReadTimeout(mConfig.getReadTimeOut());
+            connection.setRequestMethod(method);
+            if (headers != null) {
+                for (Map.Entry<String, String> item : headers.entrySet()) {
+                    connection.setRequestProperty(item.getKey(), item.getValue());
+                }
+            }
+        } catch (IOException e) {
+            permit.release();
+            throw e;
+        }
+        synchronized (mActiveConnections) {
+            mActiveConnections.put(connection, permit);
+        }
+        return connection;
+    }
+
+    private Semaphore acquirePermit(URL url) throws IOException {
+        Semaphore permit;
+        synchronized (mHostPermits) {
+            permit = mHostPermits.get(url.getAuthority());
+            if (permit == null) {
+                permit = new Semaphore(mConfig.getMaxConnectionsPerHost(), true);
+                mHostPermits.put(url.getAuthority(), permit);
+            }
+        }
+        try {
+            if (!permit.tryAcquire(mConfig.getConnTimeOut(), TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Wait connection to " + url.getAuthority() + " timeout.");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Wait connection to " + url.getAuthority() + " interrupted.", e);
+        }
+        return permit;
+    }
+
+    private boolean removeActiveConnection(HttpURLConnection connection) {
+        Semaphore permit;
+        synchronized (mActiveConnections) {
+            permit = mActiveConnections.remove(connection);
+        }
+        if (permit == null) {
+            return false;
+        }
+        permit.release();
+        return true;
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_MULT_CHOICE
+                || responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+                || responseCode == HttpURLConnection.HTTP_SEE_OTHER
+                || responseCode == HTTP_TEMP_REDIRECT
+                || responseCode == HTTP_PERM_REDIRECT;
+    }
+
+    //One socket factory for all the connections, the platform pool only reuses a connection with the same factory.
+    private synchronized void trustAllCert(HttpsURLConnection httpsURLConnection) {
+        if (mTrustAllSocketFactory == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                TrustManager tm = new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                        LogUtils.i( "checkClientTrusted.");
+                    }
+
+                    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                        LogUtils.i("checkServerTrusted.");
+                    }
+                };
+                sslContext.init(null, new TrustManager[] { tm }, null);
+                mTrustAllSocketFactory = sslContext.getSocketFactory();
+            } catch (Exception e) {
+                LogUtils.w( "SSLContext init failed");
+            }
+            mTrustAllHostnameVerifier = new HostnameVerifier() {
+                @Override
+                public boolean verify(String hostname, SSLSession session) {
+                    return true;
+                }
+            };
+        }
+        if (mTrustAllSocketFactory != null) {
+            httpsURLConnection.setSSLSocketFactory(mTrustAllSocketFactory);
+        }
+        httpsURLConnection.setHostnameVerifier(mTrustAllHostnameVerifier);
+    }
+}
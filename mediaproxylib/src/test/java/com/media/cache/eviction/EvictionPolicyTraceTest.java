@@ -0,0 +1,109 @@
+package com.media.cache.eviction;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic play traces against the eviction policies and compares their hit ratios.
+ *
+ * A play is one video opened by the player every minute. 70% of the plays are of a catalog of
+ * 500 clips with a skewed popularity, 30% are of videos which are played only once, e.g. a
+ * scan of a feed. The cache is full at 500MB.
+ */
+public class EvictionPolicyTraceTest {
+
+    private static final int PLAYS = 200000;
+    private static final int CLIPS = 500;
+    private static final long CAPACITY = 500L << 20;
+    private static final long PLAY_INTERVAL = 60 * 1000L;
+    private static final long TTL = 3600 * 1000L;
+
+    @Test
+    public void uniformSizes() {
+        double lru = replay(new LruEvictionPolicy(), false);
+        double lfu = replay(new LfuEvictionPolicy(), false);
+        double gds = replay(new GreedyDualSizeEvictionPolicy(), false);
+        double ttl = replay(new TtlEvictionPolicy(TTL), false);
+        double tinyLfu = replay(new TinyLfuEvictionPolicy(), false);
+        print("uniform", lru, lfu, gds, ttl, tinyLfu);
+
+        //The videos played once flush the popular clips out of an LRU.
+        assertTrue(lfu > lru);
+        assertTrue(tinyLfu > lru);
+        assertTrue(gds >= lru);
+        //The expired videos are deleted even if the cache is not full.
+        assertTrue(ttl <= lru);
+    }
+
+    @Test
+    public void mixedSizes() {
+        double lru = replay(new LruEvictionPolicy(), true);
+        double lfu = replay(new LfuEvictionPolicy(), true);
+        double gds = replay(new GreedyDualSizeEvictionPolicy(), true);
+        double ttl = replay(new TtlEvictionPolicy(TTL), true);
+        double tinyLfu = replay(new TinyLfuEvictionPolicy(), true);
+        print("mixed", lru, lfu, gds, ttl, tinyLfu);
+
+        //The large videos played once are evicted first by the size aware and frequency based policies.
+        assertTrue(gds > lru);
+        assertTrue(lfu > lru);
+        assertTrue(tinyLfu > lru);
+        assertTrue(tinyLfu >= gds);
+        assertTrue(ttl <= lru);
+    }
+
+    //Hit ratio of the policy in percent.
+    private static double replay(EvictionPolicy policy, boolean mixedSizes) {
+        Random random = new Random(1);
+        HashMap<String, Long> cached = new HashMap<>();
+        Set<String> pinned = new HashSet<>();
+        long total = 0;
+        int hits = 0;
+        for (int i = 0; i < PLAYS; i++) {
+            long now = i * PLAY_INTERVAL;
+            String key;
+            long size;
+            if (random.nextInt(10) < 3) {
+                key = "once" + i;
+                size = mixedSizes ? (50L + random.nextInt(200)) << 20 : 5L << 20;
+            } else {
+                int clip = (int) Math.floor(Math.pow(CLIPS, random.nextDouble()));
+                key = "clip" + clip;
+                size = mixedSizes ? (2L + clip % 8) << 20 : 5L << 20;
+            }
+            if (cached.containsKey(key)) {
+                hits++;
+                policy.onAccessed(key, now);
+                continue;
+            }
+            cached.put(key, size);
+            total += size;
+            policy.onAdded(key, 0, now);
+            policy.onSizeChanged(key, size);
+
+            //The video being played must not be evicted.
+            pinned.clear();
+            pinned.add(key);
+            String victim;
+            while ((victim = policy.evictExpired(now, pinned)) != null) {
+                total -= cached.remove(victim);
+            }
+            while (total > CAPACITY && (victim = policy.evict(pinned)) != null) {
+                total -= cached.remove(victim);
+            }
+            assertTrue(policy.getClass().getSimpleName() + " can not evict", total <= CAPACITY || cached.size() == 1);
+        }
+        return hits * 100.0 / PLAYS;
+    }
+
+    private static void print(String trace, double lru, double lfu, double gds, double ttl, double tinyLfu) {
+        System.out.println(String.format("%s: LRU %.1f%%, LFU %.1f%%, GDS %.1f%%, TTL %.1f%%, W-TinyLFU %.1f%%",
+                trace, lru, lfu, gds, ttl, tinyLfu));
+    }
+}
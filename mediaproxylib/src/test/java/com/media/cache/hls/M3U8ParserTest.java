@@ -0,0 +1,168 @@
+package com.media.cache.hls;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the regex free playlist parser over playlists laid out like the ones served by the common
+ * packagers: quoted attribute values holding commas, hexadecimal IVs, byte range segments and init maps.
+ */
+public class M3U8ParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PLAYLIST_URL = "http://example.com/vod/hls/index.m3u8";
+
+    //fMP4 segments as byte ranges of one file, their init segment is a byte range of it too.
+    private static final String BYTE_RANGE_PLAYLIST = "#EXTM3U\n" +
+            "#EXT-X-TARGETDURATION:6\n" +
+            "#EXT-X-VERSION:7\n" +
+            "#EXT-X-MEDIA-SEQUENCE:1\n" +
+            "#EXT-X-PLAYLIST-TYPE:VOD\n" +
+            "#EXT-X-INDEPENDENT-SEGMENTS\n" +
+            "#EXT-X-MAP:URI=\"main.mp4\",BYTERANGE=\"719@0\"\n" +
+            "#EXTINF:6.00600,\n" +
+            "#EXT-X-BYTERANGE:1508000@719\n" +
+            "main.mp4\n" +
+            "#EXTINF:6.00600,\n" +
+            "#EXT-X-BYTERANGE:1470000\n" +
+            "main.mp4\n" +
+            "#EXTINF:5.97266,\n" +
+            "#EXT-X-BYTERANGE:1399000@2978719\n" +
+            "main.mp4\n" +
+            "#EXT-X-ENDLIST\n";
+
+    //AES-128 ts with a key rotation, the key uri holds a comma and the IV is a hexadecimal-sequence.
+    private static final String ENCRYPTED_PLAYLIST = "#EXTM3U\n" +
+            "#EXT-X-VERSION:3\n" +
+            "#EXT-X-TARGETDURATION:10\n" +
+            "#EXT-X-MEDIA-SEQUENCE:0\n" +
+            "#EXT-X-KEY:METHOD=AES-128,URI=\"https://keys.example.com/key?id=1,2\",IV=0x00000000000000000000000000000001\n" +
+            "#EXTINF:9.009,\n" +
+            "/vod/hls/seg_0.ts\n" +
+            "#EXTINF:9.009,title with, a comma\n" +
+            "seg_1.ts\n" +
+            "#EXT-X-DISCONTINUITY-SEQUENCE:0\n" +
+            "#EXT-X-KEY:METHOD=AES-128,URI=\"key2.bin\",IV=0X1A2B3C4D5E6F708192A3B4C5D6E7F801,KEYFORMAT=\"identity\"\n" +
+            "#EXT-X-DISCONTINUITY\n" +
+            "#EXTINF:3.5,\n" +
+            "http://cdn.example.com/seg_2.ts\n" +
+            "#EXT-X-KEY:METHOD=NONE\n" +
+            "#EXTINF:4,\n" +
+            "seg_3.ts\n" +
+            "#EXT-X-ENDLIST\n";
+
+    @Test
+    public void byteRangePlaylist() throws IOException {
+        M3U8 m3u8 = parse(BYTE_RANGE_PLAYLIST);
+        assertEquals(3, m3u8.getTsCount());
+        assertEquals(6f, m3u8.getTargetDuration(), 0f);
+        assertEquals(7, m3u8.getVersion());
+        assertEquals(1, m3u8.getSequence());
+        assertTrue(m3u8.hasEndList());
+
+        M3U8InitSegment initSegment = m3u8.getTs(0).getInitSegment();
+        assertEquals("http://example.com/vod/hls/main.mp4", initSegment.getUrl());
+        assertEquals(0, initSegment.getByteRangeOffset());
+        assertEquals(719, initSegment.getByteRangeLength());
+
+        assertByteRange(m3u8.getTs(0), 719, 1508000);
+        //A range without the offset starts at the end of the previous one.
+        assertByteRange(m3u8.getTs(1), 719 + 1508000, 1470000);
+        assertByteRange(m3u8.getTs(2), 2978719, 1399000);
+        assertEquals(5.97266f, m3u8.getTs(2).getDuration(), 0.00001f);
+        assertEquals(initSegment, m3u8.getTs(2).getInitSegment());
+    }
+
+    @Test
+    public void encryptedPlaylist() throws IOException {
+        M3U8 m3u8 = parse(ENCRYPTED_PLAYLIST);
+        assertEquals(4, m3u8.getTsCount());
+
+        M3U8Ts ts = m3u8.getTs(0);
+        assertEquals("http://example.com/vod/hls/seg_0.ts", ts.getUrl());
+        assertEquals(9.009f, ts.getDuration(), 0.00001f);
+        assertTrue(ts.hasKey());
+        assertEquals("AES-128", ts.getMethod());
+        assertEquals("https://keys.example.com/key?id=1,2", ts.getKeyUri());
+        assertEquals("0x00000000000000000000000000000001", ts.getKeyIV());
+
+        //The key applies to the following ts until the next key.
+        assertEquals(9.009f, m3u8.getTs(1).getDuration(), 0.00001f);
+        assertEquals("http://example.com/vod/hls/seg_1.ts", m3u8.getTs(1).getUrl());
+        assertFalse(m3u8.getTs(1).hasDiscontinuity());
+
+        ts = m3u8.getTs(2);
+        assertEquals("http://cdn.example.com/seg_2.ts", ts.getUrl());
+        assertTrue(ts.hasDiscontinuity());
+        assertEquals("http://example.com/vod/hls/key2.bin", ts.getKeyUri());
+        assertEquals("0X1A2B3C4D5E6F708192A3B4C5D6E7F801", ts.getKeyIV());
+
+        ts = m3u8.getTs(3);
+        assertEquals("NONE", ts.getMethod());
+        assertNull(ts.getKeyUri());
+        assertNull(ts.getKeyIV());
+    }
+
+    @Test
+    public void attributeList() {
+        AttributeListReader attributes = new AttributeListReader();
+        String line = "#EXT-X-STREAM-INF:BANDWIDTH=2149280,AVERAGE-BANDWIDTH=1904000," +
+                "CODECS=\"avc1.64001f,mp4a.40.2\",RESOLUTION=1280x720,FRAME-RATE=29.970, IV=0xZZ";
+        attributes.reset(line, line.indexOf(':') + 1);
+
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("BANDWIDTH"));
+        assertEquals(2149280, attributes.longValue());
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("AVERAGE-BANDWIDTH"));
+        assertEquals(1904000, attributes.longValue());
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("CODECS"));
+        assertTrue(attributes.isQuoted());
+        assertEquals("avc1.64001f,mp4a.40.2", attributes.value());
+        assertEquals(-1, attributes.longValue());
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("RESOLUTION"));
+        assertTrue(attributes.valueIs("1280x720"));
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("FRAME-RATE"));
+        assertEquals("29.970", attributes.value());
+        assertTrue(attributes.next());
+        assertTrue(attributes.nameIs("IV"));
+        assertFalse(attributes.isHexValue());
+        assertFalse(attributes.next());
+    }
+
+    @Test
+    public void malformedAttributeList() {
+        AttributeListReader attributes = new AttributeListReader();
+        String line = "METHOD=AES-128,URI=\"key.bin";
+        attributes.reset(line, 0);
+        assertTrue(attributes.next());
+        assertTrue(attributes.valueIs("AES-128"));
+        //The quoted string is not closed.
+        assertFalse(attributes.next());
+
+        attributes.reset("NAME,=VALUE", 0);
+        assertFalse(attributes.next());
+    }
+
+    private static M3U8 parse(String playlist) throws IOException {
+        return M3U8Utils.parseM3U8Info(PLAYLIST_URL, new ByteArrayInputStream(playlist.getBytes(UTF_8)));
+    }
+
+    private static void assertByteRange(M3U8Ts ts, long offset, long length) {
+        assertEquals("http://example.com/vod/hls/main.mp4", ts.getUrl());
+        assertTrue(ts.hasByteRange());
+        assertEquals(offset, ts.getByteRangeOffset());
+        assertEquals(length, ts.getByteRangeLength());
+    }
+}
@@ -0,0 +1,106 @@
+package com.media.cache.proxy;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link HttpRequest#decodeRequest(byte[], int)} with the header bytes of the requests a
+ * player sends, and measures the time and the bytes allocated per request.
+ */
+public class HttpRequestTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TS_URI = "/http%3A%2F%2F127.0.0.1%3A8002%2Fvideo.m3u8&jeffmony&" +
+            "/96188d9a0d12fc391e3d2865edb232b9/seg_5.ts";
+    private static final byte[] PLAYER_REQUEST = ("GET " + TS_URI + " HTTP/1.1\r\n" +
+            "Host: 127.0.0.1:2911\r\n" +
+            "User-Agent: ExoPlayerLib/2.11.4 (Linux;Android 10)\r\n" +
+            "Accept-Encoding: identity\r\n" +
+            "Range: bytes=0-\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "Icy-MetaData: 1\r\n\r\n").getBytes(UTF_8);
+    private static final int WARMUP_REQUESTS = 200000;
+    private static final int MEASURED_REQUESTS = 1000000;
+
+    @Test
+    public void decodePlayerRequest() throws Exception {
+        HttpRequest request = new HttpRequest(null);
+        request.decodeRequest(PLAYER_REQUEST, PLAYER_REQUEST.length);
+        assertEquals(Method.GET, request.requestMethod());
+        assertEquals("/http://127.0.0.1:8002/video.m3u8&jeffmony&/96188d9a0d12fc391e3d2865edb232b9/seg_5.ts",
+                request.getUri());
+        assertEquals("bytes=0-", request.getRange());
+        assertNull(request.getIfRange());
+        assertEquals("127.0.0.1:2911", request.getHost());
+        assertTrue(request.keepAlive());
+    }
+
+    @Test
+    public void reuseForNextRequest() throws Exception {
+        HttpRequest request = new HttpRequest(null);
+        request.decodeRequest(PLAYER_REQUEST, PLAYER_REQUEST.length);
+        byte[] next = ("HEAD /abc/abc.video HTTP/1.0\r\n" +
+                "if-range: Sat, 17 Oct 2026 18:59:01 GMT\r\n" +
+                "RANGE : bytes=10-19\r\n\r\n").getBytes(UTF_8);
+        request.decodeRequest(next, next.length);
+        assertEquals(Method.HEAD, request.requestMethod());
+        assertEquals("/abc/abc.video", request.getUri());
+        assertEquals("bytes=10-19", request.getRange());
+        assertEquals("Sat, 17 Oct 2026 18:59:01 GMT", request.getIfRange());
+        assertNull(request.getHost());
+        //HTTP/1.0 is not kept alive by default.
+        assertFalse(request.keepAlive());
+    }
+
+    @Test
+    public void connectionClose() throws Exception {
+        HttpRequest request = new HttpRequest(null);
+        byte[] bytes = "GET /abc/abc.video HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(UTF_8);
+        request.decodeRequest(bytes, bytes.length);
+        assertFalse(request.keepAlive());
+    }
+
+    @Test
+    public void costPerRequest() throws Exception {
+        HttpRequest request = new HttpRequest(null);
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            request.decodeRequest(PLAYER_REQUEST, PLAYER_REQUEST.length);
+        }
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MEASURED_REQUESTS; i++) {
+            request.decodeRequest(PLAYER_REQUEST, PLAYER_REQUEST.length);
+        }
+        long nanos = (System.nanoTime() - startTime) / MEASURED_REQUESTS;
+        long endBytes = getAllocatedBytes();
+        if (startBytes < 0 || endBytes < 0) {
+            System.out.println("decodeRequest: " + nanos + " ns/request");
+            return;
+        }
+        long bytes = (endBytes - startBytes) / MEASURED_REQUESTS;
+        System.out.println("decodeRequest: " + nanos + " ns/request, " + bytes + " bytes/request");
+        //Only the uri and the values of the Range and Host headers are allocated.
+        assertTrue("allocated " + bytes + " bytes/request", bytes < 1024);
+    }
+
+    //Bytes allocated by the current thread, -1 if the JVM can not tell.
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1L;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1L;
+        }
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -10,6 +10,7 @@ public class CacheManager {
         File file = new File(getCachePath());
         LogUtils.w("deleteCacheFile file path = " + file.getAbsolutePath());
         deleteCacheFile(file);
+        LocalProxyCacheManager.getInstance().reloadCacheIndex();
     }
 
     private static void deleteCacheFile(File file) {
@@ -10,9 +10,12 @@ import com.media.cache.LocalProxyConfig;
 import com.media.cache.Video;
 import com.media.cache.VideoCacheInfo;
 import com.media.cache.VideoInfoParserManager;
+import com.media.cache.download.CacheIndex;
 import com.media.cache.download.EntireVideoDownloadTask;
+import com.media.cache.download.LiveM3U8DownloadTask;
 import com.media.cache.download.M3U8VideoDownloadTask;
 import com.media.cache.download.VideoDownloadTask;
+import com.media.cache.eviction.EvictionPolicy;
 import com.media.cache.hls.M3U8;
 import com.media.cache.listener.IVideoInfoCallback;
 import com.media.cache.listener.IVideoInfoParseCallback;
@@ -25,6 +28,8 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalProxyCacheManager {
 
@@ -46,6 +51,20 @@ public class LocalProxyCacheManager {
     private Handler mVideoProxyCacheHandler = new VideoProxyCacheHandler();
     private Map<String, VideoDownloadTask> mVideoDownloadTaskMap = new ConcurrentHashMap<>();
     private Map<String, IVideoProxyCacheCallback> mVideoDownloadTaskCallbackMap = new ConcurrentHashMap<>();
+    private Map<String, PreloadRequest> mPreloadRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger mPreloadCount = new AtomicInteger();
+    private final AtomicInteger mPreloadHitCount = new AtomicInteger();
+    private final AtomicLong mPreloadWastedSize = new AtomicLong();
+
+    private static class PreloadRequest {
+        final long mPreloadSize;
+        final int mPriority;
+
+        PreloadRequest(long preloadSize, int priority) {
+            mPreloadSize = preloadSize;
+            mPriority = priority;
+        }
+    }
 
     public static LocalProxyCacheManager getInstance() {
         if (sInstance == null) {
@@ -99,6 +118,13 @@ public class LocalProxyCacheManager {
         return null;
     }
 
+    //Rebuild the cache index after the cache files are deleted outside of the proxy.
+    public void reloadCacheIndex() {
+        if (mConfig != null) {
+            CacheIndex.getInstance(mConfig).reload();
+        }
+    }
+
     public LocalProxyCacheManager(LocalProxyConfig config) {
         mProxyServer = new LocalProxyServer(config);
         mConfig = config;
@@ -116,6 +142,9 @@ public class LocalProxyCacheManager {
                 videoUrl.startsWith("http://127.0.0.1")) {
             return;
         }
+        if (mPreloadRequests.remove(videoUrl) != null) {
+            mPreloadHitCount.incrementAndGet();
+        }
         String saveName = LocalProxyUtils.computeMD5(videoUrl);
         VideoCacheInfo info = LocalProxyUtils.readProxyCacheInfo(new File(mConfig.getCacheRoot(), saveName));
         LogUtils.w("startEngine info = " + info);
@@ -207,10 +236,8 @@ public class LocalProxyCacheManager {
             }
 
             @Override
-            public void onLiveM3U8Callback(VideoCacheInfo info) {
-                LogUtils.i("onLiveM3U8Callback cannot be cached.");
-                VideoInfo videoInfo = new VideoInfo(info.getVideoUrl());
-                mVideoProxyCacheHandler.obtainMessage(MSG_VIDEO_CANNOT_BE_CACHED, videoInfo).sendToTarget();
+            public void onLiveM3U8Callback(VideoCacheInfo info, M3U8 m3u8) {
+                startM3U8VideoDownloadTask(info, m3u8, headers);
             }
 
             @Override
@@ -232,6 +259,12 @@ public class LocalProxyCacheManager {
             task = mVideoDownloadTaskMap.get(info.getVideoUrl());
         }
 
+        PreloadRequest preload = mPreloadRequests.get(info.getVideoUrl());
+        if (task != null && preload != null) {
+            task.startPreload(preload.mPreloadSize, preload.mPriority);
+            return;
+        }
+
         if (task != null) {
             task.startDownload(
                     new IVideoProxyCacheCallback() {
@@ -284,13 +317,23 @@ public class LocalProxyCacheManager {
                                            HashMap<String, String> headers) {
         VideoDownloadTask task = null;
         if (!mVideoDownloadTaskMap.containsKey(info.getVideoUrl())) {
-            task = new M3U8VideoDownloadTask(mConfig, info, m3u8, headers);
+            if (info.getVideoType() == Video.Type.HLS_LIVE_TYPE) {
+                task = new LiveM3U8DownloadTask(mConfig, info, m3u8, headers);
+            } else {
+                task = new M3U8VideoDownloadTask(mConfig, info, m3u8, headers);
+            }
             mVideoDownloadTaskMap.put(info.getVideoUrl(), task);
 
         } else {
             task = mVideoDownloadTaskMap.get(info.getVideoUrl());
         }
 
+        PreloadRequest preload = mPreloadRequests.get(info.getVideoUrl());
+        if (task != null && preload != null) {
+            task.startPreload(preload.mPreloadSize, preload.mPriority);
+            return;
+        }
+
         if (task != null) {
             task.startDownload(
                     new IVideoProxyCacheCallback() {
@@ -338,6 +381,54 @@ public class LocalProxyCacheManager {
 
     }
 
+    /**
+     * Download the head of a video which may be played soon, e.g. the next videos of a feed.
+     * The preload runs below the priority of the playing videos, startEngine goes on from it.
+     * @param preloadSize milliseconds of a hls video, bytes of the other videos; an mp4 also
+     *                    preloads its moov box if it is after the mdat.
+     * @param priority 0 is the most urgent preload.
+     */
+    public void preload(String videoUrl, HashMap<String, String> headers, long preloadSize, int priority) {
+        if (TextUtils.isEmpty(videoUrl) || videoUrl.startsWith("http://127.0.0.1") ||
+                mVideoDownloadTaskMap.containsKey(videoUrl) || mPreloadRequests.containsKey(videoUrl)) {
+            return;
+        }
+        mPreloadRequests.put(videoUrl, new PreloadRequest(preloadSize, priority));
+        mPreloadCount.incrementAndGet();
+        startEngine(videoUrl, headers, true, "" /* default content-type*/);
+    }
+
+    //The preloaded video will not be played, e.g. it is scrolled away.
+    public void cancelPreload(String videoUrl) {
+        if (TextUtils.isEmpty(videoUrl) || mPreloadRequests.remove(videoUrl) == null) {
+            return;
+        }
+        VideoDownloadTask task = mVideoDownloadTaskMap.remove(videoUrl);
+        if (task != null) {
+            mPreloadWastedSize.addAndGet(task.getPreloadedSize());
+            task.stopDownload();
+        }
+    }
+
+    public int getPreloadCount() {
+        return mPreloadCount.get();
+    }
+
+    //Preloaded videos which are played by startEngine.
+    public int getPreloadHitCount() {
+        return mPreloadHitCount.get();
+    }
+
+    public float getPreloadHitRate() {
+        int preloadCount = mPreloadCount.get();
+        return preloadCount > 0 ? mPreloadHitCount.get() * 1.0f / preloadCount : 0f;
+    }
+
+    //Bytes preloaded for the videos cancelled before they are played.
+    public long getPreloadWastedSize() {
+        return mPreloadWastedSize.get();
+    }
+
     public void seekToDownloadTask(long curPosition, long totalDuration, String url) {
         VideoDownloadTask task = mVideoDownloadTaskMap.get(url);
         if (task != null) {
@@ -512,6 +603,16 @@ public class LocalProxyCacheManager {
         private boolean mFlowControlEnable = false; // true: control flow; false: no control
         private long mMaxBufferSize = 20 * 1024 * 1024L;  // 20M
         private long mMinBufferSize = 10 * 1024 * 1024L;  // 10M
+        private boolean mNioServerEnable = false; // true: selector server; false: thread-per-socket server
+        private int mNioEventLoopCount = 2;
+        private int mMaxConnectionsPerHost = 6;
+        private long mKeepAliveDuration = 5 * 60 * 1000L;
+        private int mDownloadThreadCount = 3;
+        private long mReadaheadDuration = 60 * 1000L; // 60 seconds
+        private EvictionPolicy mEvictionPolicy; // LRU if not set.
+        private long mCacheHeadSize = 4 * 1024 * 1024L; // 4M
+        private int mLiveCacheTsCount = 10;
+        private int mServerIdleTimeOut = 30 * 1000; // 30 seconds
 
         public Build(Context context) {
             mContext = context;
@@ -557,15 +658,76 @@ public class LocalProxyCacheManager {
             return this;
         }
 
+        //You can set enable=true to serve all the sockets by a few selector threads.
+        public Build setNioServerEnable(boolean enable, int eventLoopCount) {
+            mNioServerEnable = enable;
+            mNioEventLoopCount = eventLoopCount;
+            return this;
+        }
+
+        //You can set the upstream connections per host and how long the idle keep-alive connections are kept.
+        public Build setUpstreamConnectionPool(int maxConnectionsPerHost, long keepAliveDuration) {
+            mMaxConnectionsPerHost = maxConnectionsPerHost;
+            mKeepAliveDuration = keepAliveDuration;
+            return this;
+        }
+
+        //You can set how many segments are downloaded at the same time by all the videos.
+        public Build setDownloadThreadCount(int threadCount) {
+            mDownloadThreadCount = threadCount;
+            return this;
+        }
+
+        //You can set how long the hls video is downloaded ahead of the playing position.
+        public Build setReadaheadDuration(long readaheadDuration) {
+            mReadaheadDuration = readaheadDuration;
+            return this;
+        }
+
+        //You can set how the cached videos are evicted, e.g. LfuEvictionPolicy or TinyLfuEvictionPolicy for replayed short videos.
+        public Build setEvictionPolicy(EvictionPolicy policy) {
+            mEvictionPolicy = policy;
+            return this;
+        }
+
+        //You can set how many bytes at the head of a video are kept when its tail is evicted, 0 evicts whole videos only.
+        public Build setCacheHeadSize(long cacheHeadSize) {
+            mCacheHeadSize = cacheHeadSize;
+            return this;
+        }
+
+        //You can set how many latest segments of a live hls video are kept on disk.
+        public Build setLiveCacheTsCount(int liveCacheTsCount) {
+            mLiveCacheTsCount = liveCacheTsCount;
+            return this;
+        }
+
+        //You can set how long an idle or stalled connection of the player is kept by the proxy server.
+        public Build setServerIdleTimeOut(int serverIdleTimeOut) {
+            mServerIdleTimeOut = serverIdleTimeOut;
+            return this;
+        }
+
         public LocalProxyCacheManager build() {
             return new LocalProxyCacheManager(buildConfig());
         }
 
         private LocalProxyConfig buildConfig() {
-            return new LocalProxyConfig(mContext, mCacheRoot, mCacheSize,
+            LocalProxyConfig config = new LocalProxyConfig(mContext, mCacheRoot, mCacheSize,
                     mReadTimeOut, mConnTimeOut, mSocketTimeOut,
                     mRedirect, mPort, mFlowControlEnable,
                     mMaxBufferSize, mMinBufferSize);
+            config.setNioServerEnable(mNioServerEnable);
+            config.setNioEventLoopCount(mNioEventLoopCount);
+            config.setMaxConnectionsPerHost(mMaxConnectionsPerHost);
+            config.setKeepAliveDuration(mKeepAliveDuration);
+            config.setDownloadThreadCount(mDownloadThreadCount);
+            config.setReadaheadDuration(mReadaheadDuration);
+            config.setEvictionPolicy(mEvictionPolicy);
+            config.setCacheHeadSize(mCacheHeadSize);
+            config.setLiveCacheTsCount(mLiveCacheTsCount);
+            config.setServerIdleTimeOut(mServerIdleTimeOut);
+            return config;
         }
     }
 